@@ -0,0 +1,187 @@
+package net.jstreams.streams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.Checksum;
+
+/*
+Computes checksums and message digests on a background thread, so the thread doing the I/O only pays for a copy.
+Data is copied into fixed-size blocks and handed over through a bounded queue; when the digest thread falls behind,
+update() blocks, so memory stays at (queueDepth + 2) blocks. Small updates are gathered into one block before it is
+handed over, so the handoff cost is per block, not per call. All the checksums and digests are updated in one pass
+over each block, while it is hot in cache. update() and checkpoint() are meant for one producer thread.
+
+Checkpoints run on the digest thread, in order with the data: a checkpoint sees the digests exactly as they are
+after everything submitted before it. Verifying wrappers use them to compare per-block checksums without waiting.
+An IOException thrown by a checkpoint is kept, and thrown from the next update(), checkpoint() or drain().
+
+The digests must not be touched by other threads until drain() returns.
+*/
+public class AsyncDigester implements Closeable {
+
+    public interface Checkpoint {
+        void reached(AsyncDigester digester) throws IOException;
+    }
+
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+    public static final int DEFAULT_QUEUE_DEPTH = 8;
+
+    private static final Task STOP = new Task(null, 0, null);
+
+    private final Checksum[] checksums;
+    private final MessageDigest[] digests;
+    private final int blockSize;
+    private final BlockingQueue<Task> queue;
+    private final BlockingQueue<byte[]> freeBlocks;
+    private final Thread digestThread;
+    private volatile IOException error = null;
+    private volatile boolean closed = false;
+    private byte[] currentBlock = null;   // small updates are gathered here before being handed off
+    private int currentLength = 0;
+
+    private static class Task {
+        final byte[] block;
+        final int length;
+        final Checkpoint checkpoint;
+
+        Task(byte[] block, int length, Checkpoint checkpoint) {
+            this.block = block;
+            this.length = length;
+            this.checkpoint = checkpoint;
+        }
+    }
+
+    public AsyncDigester(Checksum... checksums) {
+        this(DEFAULT_BLOCK_SIZE, DEFAULT_QUEUE_DEPTH, checksums, new MessageDigest[0]);
+    }
+
+    public AsyncDigester(int blockSize, int queueDepth, Checksum[] checksums, MessageDigest[] digests) {
+        if (blockSize <= 0) throw new IllegalArgumentException("block size must be positive");
+        if (queueDepth <= 0) throw new IllegalArgumentException("queue depth must be positive");
+        this.checksums = checksums.clone();
+        this.digests = digests.clone();
+        this.blockSize = blockSize;
+        this.queue = new ArrayBlockingQueue<Task>(queueDepth);
+        this.freeBlocks = new ArrayBlockingQueue<byte[]>(queueDepth + 2);
+        this.digestThread = new Thread(new Runnable() {
+            public void run() {
+                digestLoop();
+            }
+        }, "AsyncDigester");
+        digestThread.setDaemon(true);
+        digestThread.start();
+    }
+
+    public Checksum getChecksum(int i) {
+        return checksums[i];
+    }
+
+    public MessageDigest getDigest(int i) {
+        return digests[i];
+    }
+
+    public void update(byte[] b, int off, int len) throws IOException {
+        checkState();
+        while (len > 0) {
+            if (currentBlock == null) {
+                currentBlock = freeBlocks.poll();
+                if (currentBlock == null) currentBlock = new byte[blockSize]; // bounded by the queue, see above
+                currentLength = 0;
+            }
+            int n = Math.min(len, blockSize - currentLength);
+            System.arraycopy(b, off, currentBlock, currentLength, n);
+            currentLength += n;
+            off += n;
+            len -= n;
+            if (currentLength == blockSize) handOffCurrentBlock();
+        }
+    }
+
+    public void checkpoint(Checkpoint checkpoint) throws IOException {
+        checkState();
+        handOffCurrentBlock();
+        put(new Task(null, 0, checkpoint));
+    }
+
+    private void handOffCurrentBlock() throws IOException {
+        if (currentBlock == null) return;
+        byte[] block = currentBlock;
+        currentBlock = null;
+        put(new Task(block, currentLength, null));
+    }
+
+    // waits until everything submitted so far has been digested, and all checkpoints have run
+    public void drain() throws IOException {
+        final CountDownLatch done = new CountDownLatch(1);
+        checkpoint(new Checkpoint() {
+            public void reached(AsyncDigester digester) {
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for digests");
+        }
+        if (error != null) throw error;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            queue.put(STOP);
+            digestThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (closed) throw new IOException("digester is closed");
+        if (error != null) throw error;
+    }
+
+    private void put(Task task) throws IOException {
+        try {
+            queue.put(task);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted handing a block to the digester");
+        }
+    }
+
+    private void digestLoop() {
+        while (true) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException ex) {
+                continue; // only close() stops the digester
+            }
+            if (task == STOP) return;
+            if (task.block != null) {
+                if (error == null) {
+                    for (Checksum c : checksums) c.update(task.block, 0, task.length);
+                    for (MessageDigest d : digests) d.update(task.block, 0, task.length);
+                }
+                freeBlocks.offer(task.block);
+            } else {
+                try {
+                    task.checkpoint.reached(this);
+                } catch (IOException ex) {
+                    if (error == null) error = ex;
+                } catch (RuntimeException ex) {
+                    if (error == null) error = new IOException("digest checkpoint failed", ex);
+                }
+            }
+        }
+    }
+}
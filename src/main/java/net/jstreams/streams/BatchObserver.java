@@ -0,0 +1,14 @@
+package net.jstreams.streams;
+
+/*
+Sees every byte a CoalescingOutputStream writes, once and in order, batch by batch: the shuttle calls it with each
+batch just before writing the batch to the underlying stream, so work like checksumming rides along with the
+shuttle's own pass over the data instead of costing every writer a lock. A batch resent after a backend error is
+not seen again.
+
+Runs on the shuttle thread, and must not throw or block. Whatever it computes is safe to read once flush() or close()
+on the stream has returned.
+*/
+public interface BatchObserver {
+    void batch(byte[] b, int off, int len);
+}
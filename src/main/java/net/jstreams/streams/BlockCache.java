@@ -0,0 +1,385 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+A bounded cache of fixed-size blocks of PositionedReadable data, shared by any number of streams (see
+CachingInputStream). Blocks are keyed by a file key, chosen by the stream, and the block number.
+
+Blocks are stored in numbered slots - heap arrays, or direct buffers allocated outside the Java heap - allocated as
+they are first used, and reused after eviction. Which block goes is up to the EvictionPolicy.
+
+Concurrency: one lock covers the index, the policy and the slot bookkeeping, but data is copied outside it. A reader
+pins the slot it copies from, and a pinned slot is never evicted. Misses are single-flight: the first reader to miss
+on a block loads it from the backend, outside the lock; other readers missing on the same block wait for that load
+and copy from it, so a block is read from the backend once however many threads want it. A failed load fails all of
+them, and is not cached.
+
+Invalidation takes effect at once for reads that start after it: the file's blocks leave the index even if they are
+being read (a pinned slot is freed when its last reader unpins it), and its loads in flight are marked stale - the
+readers already waiting on them get what they load, but it is not cached, and later misses load afresh.
+*/
+public class BlockCache {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private final int blockSize;
+    private final int capacity;   // in blocks
+    private final boolean direct;
+    private final EvictionPolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final HashMap<BlockKey, Integer> index = new HashMap<BlockKey, Integer>();
+    private final HashMap<BlockKey, Load> loading = new HashMap<BlockKey, Load>();
+    private final BlockKey[] keys;
+    private final int[] lengths;
+    private final int[] pins;
+    private final boolean[] invalidated;   // dropped while pinned: freed when the last pin goes
+    private final byte[][] heapBlocks;
+    private final ByteBuffer[] directBlocks;
+    private final int[] freeSlots;
+    private int freeCount;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long loads = 0;
+    private long loadJoins = 0;
+    private long evictions = 0;
+    private long rejections = 0;
+
+    static final class BlockKey {
+        final Object file;
+        final long block;
+
+        BlockKey(Object file, long block) {
+            this.file = file;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BlockKey)) return false;
+            BlockKey k = (BlockKey) o;
+            return block == k.block && file.equals(k.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return file.hashCode() * 31 + (int) (block ^ (block >>> 32));
+        }
+    }
+
+    // a block being read from the backend; readers that miss on it meanwhile wait here
+    private static final class Load {
+        final CountDownLatch done = new CountDownLatch(1);
+        byte[] data;
+        int length;
+        IOException error;
+        boolean stale;    // under the lock: the file was invalidated while loading, so don't cache the result
+    }
+
+    public BlockCache(int blockSize, int capacityBlocks) {
+        this(blockSize, capacityBlocks, new LruEvictionPolicy(), false);
+    }
+
+    public BlockCache(int blockSize, int capacityBlocks, EvictionPolicy policy, boolean direct) {
+        if (blockSize <= 0) throw new IllegalArgumentException("block size must be positive");
+        if (capacityBlocks <= 0) throw new IllegalArgumentException("capacity must be positive");
+        this.blockSize = blockSize;
+        this.capacity = capacityBlocks;
+        this.direct = direct;
+        this.policy = policy;
+        policy.init(capacityBlocks);
+        keys = new BlockKey[capacityBlocks];
+        lengths = new int[capacityBlocks];
+        pins = new int[capacityBlocks];
+        invalidated = new boolean[capacityBlocks];
+        heapBlocks = direct ? null : new byte[capacityBlocks][];
+        directBlocks = direct ? new ByteBuffer[capacityBlocks] : null;
+        freeSlots = new int[capacityBlocks];
+        for (int i = 0; i < capacityBlocks; i++) freeSlots[i] = capacityBlocks - 1 - i;
+        freeCount = capacityBlocks;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /*
+    Copies up to len bytes at position, from within the one block that holds position, out of the cache - loading
+    the block from backend on a miss. Returns the number of bytes copied, or -1 if position is at or past the end of
+    the data.
+    */
+    public int read(Object fileKey, PositionedReadable backend, long position, byte[] b, int off, int len)
+            throws IOException {
+        long block = position / blockSize;
+        int inBlock = (int) (position % blockSize);
+        len = Math.min(len, blockSize - inBlock);
+        BlockKey key = new BlockKey(fileKey, block);
+
+        int slot = -1;
+        Load load;
+        boolean loader = false;
+        lock.lock();
+        try {
+            policy.recordAccess(key.hashCode());
+            Integer s = index.get(key);
+            if (s != null) {
+                slot = s;
+                hits++;
+                policy.onHit(slot);
+                pins[slot]++;
+                load = null;
+            } else {
+                misses++;
+                load = loading.get(key);
+                if (load == null) {
+                    load = new Load();
+                    loading.put(key, load);
+                    loader = true;
+                } else {
+                    loadJoins++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (slot >= 0) {
+            try {
+                return copyOut(slot, inBlock, b, off, len);
+            } finally {
+                lock.lock();
+                if (--pins[slot] == 0 && invalidated[slot]) {
+                    invalidated[slot] = false;
+                    freeSlots[freeCount++] = slot;
+                }
+                lock.unlock();
+            }
+        }
+
+        if (loader) {
+            load(key, load, backend);
+        } else {
+            try {
+                load.done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for a block load");
+            }
+        }
+        if (load.error != null) throw new IOException("reading block " + block + " failed", load.error);
+        if (inBlock >= load.length) return -1;
+        int n = Math.min(len, load.length - inBlock);
+        System.arraycopy(load.data, inBlock, b, off, n);
+        return n;
+    }
+
+    private void load(BlockKey key, Load load, PositionedReadable backend) {
+        byte[] data = new byte[blockSize];
+        int length = 0;
+        IOException error = null;
+        try {
+            long start = key.block * blockSize;
+            while (length < blockSize) {
+                int n = backend.read(start + length, data, length, blockSize - length);
+                if (n < 0) break;
+                length += n;
+            }
+        } catch (IOException ex) {
+            error = ex;
+        } catch (RuntimeException ex) {
+            error = new IOException(ex);
+        }
+        load.data = data;
+        load.length = length;
+        load.error = error;
+        lock.lock();
+        try {
+            loads++;
+            if (loading.get(key) == load) loading.remove(key);   // else invalidate() took it out already
+            if (error == null && !load.stale) insert(key, data, length);
+        } finally {
+            lock.unlock();
+            load.done.countDown();
+        }
+    }
+
+    // caller holds the lock
+    private void insert(BlockKey key, byte[] data, int length) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            slot = -1;
+            for (int tries = 0; tries < capacity; tries++) {
+                int victim = policy.selectVictim();
+                if (pins[victim] == 0) {
+                    slot = victim;
+                    break;
+                }
+                policy.onHit(victim);   // being read: treat it as used, and look again
+            }
+            if (slot < 0 || !policy.admit(key.hashCode(), slot)) {
+                rejections++;
+                return;
+            }
+            index.remove(keys[slot]);
+            policy.onRemove(slot);
+            evictions++;
+        }
+        if (direct) {
+            if (directBlocks[slot] == null) directBlocks[slot] = ByteBuffer.allocateDirect(blockSize);
+            ByteBuffer dest = directBlocks[slot].duplicate();
+            dest.clear();
+            dest.put(data, 0, length);
+        } else {
+            if (heapBlocks[slot] == null) heapBlocks[slot] = new byte[blockSize];
+            System.arraycopy(data, 0, heapBlocks[slot], 0, length);
+        }
+        keys[slot] = key;
+        lengths[slot] = length;
+        index.put(key, slot);
+        policy.onInsert(slot, key.hashCode());
+    }
+
+    // slot is pinned by the caller
+    private int copyOut(int slot, int inBlock, byte[] b, int off, int len) {
+        int length = lengths[slot];
+        if (inBlock >= length) return -1;
+        int n = Math.min(len, length - inBlock);
+        if (direct) {
+            ByteBuffer src = directBlocks[slot].duplicate();
+            src.position(inBlock);
+            src.get(b, off, n);
+        } else {
+            System.arraycopy(heapBlocks[slot], inBlock, b, off, n);
+        }
+        return n;
+    }
+
+    // drops all cached blocks of a file, e.g. after it has changed; reads that start afterwards go to the backend.
+    // Loads in progress finish for the readers waiting on them, but are not cached.
+    public void invalidate(Object fileKey) {
+        lock.lock();
+        try {
+            Iterator<Map.Entry<BlockKey, Integer>> it = index.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<BlockKey, Integer> e = it.next();
+                if (!e.getKey().file.equals(fileKey)) continue;
+                int slot = e.getValue();
+                it.remove();
+                policy.onRemove(slot);
+                keys[slot] = null;
+                if (pins[slot] > 0) {
+                    invalidated[slot] = true;   // being read: the last reader frees it
+                } else {
+                    freeSlots[freeCount++] = slot;
+                }
+            }
+            Iterator<Map.Entry<BlockKey, Load>> loads = loading.entrySet().iterator();
+            while (loads.hasNext()) {
+                Map.Entry<BlockKey, Load> e = loads.next();
+                if (!e.getKey().file.equals(fileKey)) continue;
+                e.getValue().stale = true;
+                loads.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHitCount() {
+        lock.lock();
+        try {
+            return hits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMissCount() {
+        lock.lock();
+        try {
+            return misses;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // backend block reads; misses that joined a load in progress are counted in getLoadJoinCount() instead
+    public long getLoadCount() {
+        lock.lock();
+        try {
+            return loads;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getLoadJoinCount() {
+        lock.lock();
+        try {
+            return loadJoins;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEvictionCount() {
+        lock.lock();
+        try {
+            return evictions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // loaded blocks not cached because the policy preferred the victim, or every candidate was being read
+    public long getRejectionCount() {
+        lock.lock();
+        try {
+            return rejections;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCachedBlockCount() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getHitRatio() {
+        lock.lock();
+        try {
+            long lookups = hits + misses;
+            return (lookups == 0) ? 0 : (double) hits / lookups;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("BlockCache[block=%d, capacity=%d, cached=%d, hits=%d, misses=%d, loads=%d, " +
+                            "joins=%d, evictions=%d, rejections=%d]",
+                    blockSize, capacity, index.size(), hits, misses, loads, loadJoins, evictions, rejections);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package net.jstreams.streams;
+
+/*
+Waiters park on the stream's lock Condition straight away, and are woken by signalAll. Lowest CPU use; each
+hand-off costs a thread wake-up.
+*/
+public class BlockingWaitStrategy extends WaitStrategy {
+
+    public boolean spins() {
+        return false;
+    }
+
+    public boolean spin(Ready ready) {
+        return ready.isReady();
+    }
+
+    @Override
+    public String toString() {
+        return "blocking";
+    }
+}
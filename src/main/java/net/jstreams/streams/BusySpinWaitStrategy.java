@@ -0,0 +1,29 @@
+package net.jstreams.streams;
+
+/*
+Waiters never park: they spin until what they wait for happens. The fastest hand-off, at the price of a core per
+waiting thread - including the shuttle, all the time the stream is idle (so an idle ring is never released either).
+Only for threads pinned to dedicated cores, with no more spinning threads than cores.
+*/
+public class BusySpinWaitStrategy extends WaitStrategy {
+
+    public boolean spins() {
+        return true;
+    }
+
+    public boolean spin(Ready ready) {
+        while (!ready.isReady()) {
+            if (MULTIPROCESSOR) {
+                onSpinWait();
+            } else {
+                Thread.yield();   // let the thread we wait for run
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "busy-spin";
+    }
+}
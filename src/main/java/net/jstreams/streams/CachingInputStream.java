@@ -0,0 +1,111 @@
+package net.jstreams.streams;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+Seekable stream over a PositionedReadable backend (NullInputStream, RandomMemoryInputStream, a
+SynchronizedInputStream over any seekable stream, CoalescingRangeReader...) whose reads go through a shared
+BlockCache. Streams that pass the same file key share cached blocks, so each file should have one key - a path, say.
+The default key is the backend object itself.
+
+Positional reads are safe from many threads; the cursor-based methods are for one thread at a time, as usual.
+*/
+public class CachingInputStream extends InputStream implements Seekable, PositionedReadable {
+
+    private final PositionedReadable backend;
+    private final BlockCache cache;
+    private final Object fileKey;
+    private long cursor = 0;
+    private volatile boolean streamClosed = false;
+
+    public CachingInputStream(PositionedReadable backend, BlockCache cache) {
+        this(backend, cache, backend);
+    }
+
+    public CachingInputStream(PositionedReadable backend, BlockCache cache, Object fileKey) {
+        this.backend = backend;
+        this.cache = cache;
+        this.fileKey = fileKey;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int i = read(b, 0, 1);
+        if (i < 0) return i;
+        else return (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to read() method");
+        }
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = read(cursor, b, off, len);
+        if (n > 0) cursor += n;
+        return n;
+    }
+
+    // reads across block boundaries until len bytes or the end of the data
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        if (streamClosed) throw new IOException("attempting to read from a closed stream");
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to read() method");
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (position < 0) throw new EOFException("Cannot read before the beginning of file");
+        if (len == 0) return 0;
+        int total = 0;
+        while (total < len) {
+            int n = cache.read(fileKey, backend, position + total, b, off + total, len - total);
+            if (n < 0) break;
+            total += n;
+            if ((position + total) % cache.getBlockSize() != 0) break;  // short block: end of the data
+        }
+        return (total == 0) ? -1 : total;
+    }
+
+    public void seek(long n) throws IOException {
+        if (streamClosed) throw new IOException("attempting to seek into a closed stream;");
+        if (n < 0) throw new EOFException("Cannot seek to before the beginning of file");
+        cursor = n;
+    }
+
+    public long getPos() throws IOException {
+        if (streamClosed) throw new IOException("attempting to call getPos() on a closed stream");
+        return cursor;
+    }
+
+    // closes the backend too, if it is closeable; cached blocks stay for other streams
+    @Override
+    public void close() throws IOException {
+        if (streamClosed) return;
+        streamClosed = true;
+        if (backend instanceof Closeable) ((Closeable) backend).close();
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        throw new UnsupportedOperationException("mark()/reset() not supported on this stream");
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new UnsupportedOperationException("mark()/reset() not supported on this stream");
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -0,0 +1,215 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Checksum;
+
+/*
+Verifies data as it is read, against an expected checksum for the whole stream, or against a list of expected
+checksums for fixed-size blocks (the last block may be short). A mismatch, or a stream that ends early or runs long,
+is an IOException: for per-block checksums at the first read past the bad block, for a whole-stream checksum at EOF.
+
+With an AsyncDigester the checksum is computed on the digester's thread (the digester's checksum 0 is the one
+verified; any other checksums and digests it has come along in the same pass). Per-block verification then runs as
+digester checkpoints, so a mismatch surfaces a few blocks later than inline, but always before EOF is returned.
+In per-block mode, the verified checksum is reset at every block boundary.
+*/
+public class ChecksumInputStream extends InputStream {
+
+    private final InputStream underlyingStream;
+    private final Checksum checksum;          // inline mode
+    private final AsyncDigester digester;     // async mode
+    private final int blockSize;              // 0 = whole stream
+    private final long[] expectedBlockChecksums;
+    private final long expectedChecksum;
+
+    private long position = 0;
+    private int positionInBlock = 0;
+    private int blockIndex = 0;
+    private boolean verified = false;
+    private byte[] skipBuffer = null;
+
+    public ChecksumInputStream(InputStream underlyingStream, Checksum checksum, long expectedChecksum) {
+        this(underlyingStream, checksum, null, 0, null, expectedChecksum);
+    }
+
+    public ChecksumInputStream(InputStream underlyingStream, Checksum checksum, int blockSize,
+                               long[] expectedBlockChecksums) {
+        this(underlyingStream, checksum, null, blockSize, expectedBlockChecksums, 0);
+    }
+
+    public ChecksumInputStream(InputStream underlyingStream, AsyncDigester digester, long expectedChecksum) {
+        this(underlyingStream, null, digester, 0, null, expectedChecksum);
+    }
+
+    public ChecksumInputStream(InputStream underlyingStream, AsyncDigester digester, int blockSize,
+                               long[] expectedBlockChecksums) {
+        this(underlyingStream, null, digester, blockSize, expectedBlockChecksums, 0);
+    }
+
+    private ChecksumInputStream(InputStream underlyingStream, Checksum checksum, AsyncDigester digester,
+                                int blockSize, long[] expectedBlockChecksums, long expectedChecksum) {
+        if (expectedBlockChecksums != null && blockSize <= 0) {
+            throw new IllegalArgumentException("block size must be positive");
+        }
+        this.underlyingStream = underlyingStream;
+        this.checksum = checksum;
+        this.digester = digester;
+        this.blockSize = (expectedBlockChecksums == null) ? 0 : blockSize;
+        this.expectedBlockChecksums = expectedBlockChecksums;
+        this.expectedChecksum = expectedChecksum;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int i = read(b, 0, 1);
+        if (i < 0) return i;
+        else return (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to read() method");
+        }
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = underlyingStream.read(b, off, len);
+        if (n > 0) {
+            update(b, off, n);
+        } else if (n < 0) {
+            verifyAtEof();
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped bytes still have to be checksummed
+        if (skipBuffer == null) skipBuffer = new byte[8192];
+        long skipped = 0;
+        while (skipped < n) {
+            int r = read(skipBuffer, 0, (int) Math.min(skipBuffer.length, n - skipped));
+            if (r < 0) break;
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return underlyingStream.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        underlyingStream.close();
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        throw new UnsupportedOperationException("mark()/reset() not supported on this stream");
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new UnsupportedOperationException("mark()/reset() not supported on this stream");
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    // checksum of everything read so far (whole-stream mode); waits for the digester in async mode
+    public long getChecksum() throws IOException {
+        if (digester != null) {
+            digester.drain();
+            return digester.getChecksum(0).getValue();
+        }
+        return checksum.getValue();
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    private void update(byte[] b, int off, int n) throws IOException {
+        if (blockSize == 0) {
+            updateChecksum(b, off, n);
+            position += n;
+            return;
+        }
+        while (n > 0) {
+            int k = Math.min(n, blockSize - positionInBlock);
+            updateChecksum(b, off, k);
+            position += k;
+            positionInBlock += k;
+            off += k;
+            n -= k;
+            if (positionInBlock == blockSize) endBlock();
+        }
+    }
+
+    private void updateChecksum(byte[] b, int off, int len) throws IOException {
+        if (digester != null) {
+            digester.update(b, off, len);
+        } else {
+            checksum.update(b, off, len);
+        }
+    }
+
+    private void endBlock() throws IOException {
+        final int index = blockIndex++;
+        final long blockStart = position - positionInBlock;
+        positionInBlock = 0;
+        if (index >= expectedBlockChecksums.length) {
+            throw new IOException(String.format("stream is longer than expected: block %d at offset %d",
+                    index, blockStart));
+        }
+        if (digester != null) {
+            digester.checkpoint(new AsyncDigester.Checkpoint() {
+                public void reached(AsyncDigester d) throws IOException {
+                    Checksum c = d.getChecksum(0);
+                    long actual = c.getValue();
+                    c.reset();
+                    checkBlock(index, blockStart, actual);
+                }
+            });
+        } else {
+            long actual = checksum.getValue();
+            checksum.reset();
+            checkBlock(index, blockStart, actual);
+        }
+    }
+
+    private void checkBlock(int index, long blockStart, long actual) throws IOException {
+        if (actual != expectedBlockChecksums[index]) {
+            throw new IOException(String.format("checksum mismatch in block %d at offset %d: expected %x, got %x",
+                    index, blockStart, expectedBlockChecksums[index], actual));
+        }
+    }
+
+    private void verifyAtEof() throws IOException {
+        if (verified) return;
+        if (blockSize > 0) {
+            if (positionInBlock > 0) endBlock();   // short last block
+            if (digester != null) digester.drain();
+            if (blockIndex != expectedBlockChecksums.length) {
+                throw new IOException(String.format("stream ended early: %d of %d blocks at offset %d",
+                        blockIndex, expectedBlockChecksums.length, position));
+            }
+        } else {
+            long actual = getChecksum();
+            if (actual != expectedChecksum) {
+                throw new IOException(String.format("checksum mismatch over %d bytes: expected %x, got %x",
+                        position, expectedChecksum, actual));
+            }
+        }
+        verified = true;
+    }
+}
@@ -0,0 +1,138 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Checksum;
+
+/*
+Checksums data as it is written: over the whole stream, or per fixed-size block (the last block may be short) to
+produce the list ChecksumInputStream verifies against. With an AsyncDigester the checksum (the digester's checksum 0,
+plus anything else the digester computes) is done on the digester's thread. In per-block mode the checksum is reset
+at every block boundary; the final short block is closed by close().
+*/
+public class ChecksumOutputStream extends OutputStream {
+
+    private final OutputStream underlyingStream;
+    private final Checksum checksum;        // inline mode
+    private final AsyncDigester digester;   // async mode
+    private final int blockSize;            // 0 = whole stream
+    private final List<Long> blockChecksums = new ArrayList<Long>();
+    private int positionInBlock = 0;
+    private boolean closed = false;
+
+    public ChecksumOutputStream(OutputStream underlyingStream, Checksum checksum) {
+        this(underlyingStream, checksum, null, 0);
+    }
+
+    public ChecksumOutputStream(OutputStream underlyingStream, Checksum checksum, int blockSize) {
+        this(underlyingStream, checksum, null, blockSize);
+    }
+
+    public ChecksumOutputStream(OutputStream underlyingStream, AsyncDigester digester) {
+        this(underlyingStream, null, digester, 0);
+    }
+
+    public ChecksumOutputStream(OutputStream underlyingStream, AsyncDigester digester, int blockSize) {
+        this(underlyingStream, null, digester, blockSize);
+    }
+
+    private ChecksumOutputStream(OutputStream underlyingStream, Checksum checksum, AsyncDigester digester,
+                                 int blockSize) {
+        if (blockSize < 0) throw new IllegalArgumentException("block size cannot be negative");
+        this.underlyingStream = underlyingStream;
+        this.checksum = checksum;
+        this.digester = digester;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        byte[] buf = new byte[1];
+        buf[0] = (byte) b;
+        write(buf, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        underlyingStream.write(b, off, len);
+        if (blockSize == 0) {
+            updateChecksum(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            int k = Math.min(len, blockSize - positionInBlock);
+            updateChecksum(b, off, k);
+            positionInBlock += k;
+            off += k;
+            len -= k;
+            if (positionInBlock == blockSize) endBlock();
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        underlyingStream.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (blockSize > 0 && positionInBlock > 0) endBlock();
+        underlyingStream.close();
+        if (digester != null) digester.drain();
+    }
+
+    // checksum of everything written so far (whole-stream mode)
+    public synchronized long getChecksum() throws IOException {
+        if (digester != null) {
+            digester.drain();
+            return digester.getChecksum(0).getValue();
+        }
+        return checksum.getValue();
+    }
+
+    // checksums of the completed blocks (per-block mode; all blocks once the stream is closed)
+    public synchronized long[] getBlockChecksums() throws IOException {
+        if (digester != null) digester.drain();
+        long[] result;
+        synchronized (blockChecksums) {
+            result = new long[blockChecksums.size()];
+            for (int i = 0; i < result.length; i++) result[i] = blockChecksums.get(i);
+        }
+        return result;
+    }
+
+    private void updateChecksum(byte[] b, int off, int len) throws IOException {
+        if (digester != null) {
+            digester.update(b, off, len);
+        } else {
+            checksum.update(b, off, len);
+        }
+    }
+
+    private void endBlock() throws IOException {
+        positionInBlock = 0;
+        if (digester != null) {
+            digester.checkpoint(new AsyncDigester.Checkpoint() {
+                public void reached(AsyncDigester d) {
+                    Checksum c = d.getChecksum(0);
+                    synchronized (blockChecksums) {
+                        blockChecksums.add(c.getValue());
+                    }
+                    c.reset();
+                }
+            });
+        } else {
+            blockChecksums.add(checksum.getValue());
+            checksum.reset();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package net.jstreams.streams;
+
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/*
+Factory for the checksums the streams in this library use, by name: CRC32, CRC32C, ADLER32.
+CRC32C comes from the JDK (java.util.zip.CRC32C, intrinsified on 9+) when present, and from Crc32c otherwise.
+*/
+public class Checksums {
+
+    private static final Class<?> JDK_CRC32C = findJdkCrc32c();
+
+    private Checksums() {}
+
+    private static Class<?> findJdkCrc32c() {
+        try {
+            return Class.forName("java.util.zip.CRC32C");
+        } catch (ClassNotFoundException ex) {
+            return null;
+        }
+    }
+
+    public static Checksum newCrc32c() {
+        if (JDK_CRC32C != null) {
+            try {
+                return (Checksum) JDK_CRC32C.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException ex) {
+                // fall through to the portable version
+            }
+        }
+        return new Crc32c();
+    }
+
+    public static Checksum newChecksum(String name) {
+        String n = name.toUpperCase();
+        if (n.equals("CRC32")) return new CRC32();
+        if (n.equals("CRC32C")) return newCrc32c();
+        if (n.equals("ADLER32")) return new Adler32();
+        throw new IllegalArgumentException("unknown checksum " + name);
+    }
+}
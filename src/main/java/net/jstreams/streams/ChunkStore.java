@@ -0,0 +1,11 @@
+package net.jstreams.streams;
+
+/*
+Chunk contents by fingerprint, for DedupInputStream to resolve references. put() is called for every literal chunk,
+get() for every reference, in stream order; get() returns null for an unknown fingerprint.
+*/
+public interface ChunkStore {
+    void put(byte[] fingerprint, byte[] chunk);
+
+    byte[] get(byte[] fingerprint);
+}
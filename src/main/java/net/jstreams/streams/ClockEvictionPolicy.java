@@ -0,0 +1,52 @@
+package net.jstreams.streams;
+
+/*
+CLOCK (second chance): a hit only sets the slot's reference bit, so hits cost no list manipulation. The hand sweeps
+the slots, clearing reference bits, and evicts the first slot it finds with the bit clear.
+*/
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private boolean[] referenced;
+    private boolean[] occupied;
+    private int hand = 0;
+
+    public void init(int slots) {
+        if (referenced != null) throw new IllegalStateException("eviction policy is already in use by a cache");
+        referenced = new boolean[slots];
+        occupied = new boolean[slots];
+    }
+
+    public void recordAccess(int keyHash) {
+    }
+
+    public void onHit(int slot) {
+        referenced[slot] = true;
+    }
+
+    public void onInsert(int slot, int keyHash) {
+        occupied[slot] = true;
+        referenced[slot] = false;
+    }
+
+    public void onRemove(int slot) {
+        occupied[slot] = false;
+        referenced[slot] = false;
+    }
+
+    public int selectVictim() {
+        while (true) {
+            int slot = hand;
+            hand = (hand + 1) % referenced.length;
+            if (!occupied[slot]) continue;
+            if (referenced[slot]) {
+                referenced[slot] = false;
+            } else {
+                return slot;
+            }
+        }
+    }
+
+    public boolean admit(int candidateKeyHash, int victimSlot) {
+        return true;
+    }
+}
@@ -0,0 +1,50 @@
+package net.jstreams.streams;
+
+/*
+Hook for diagnostic events from CoalescingOutputStream. This class is the no-op version; on JDK 11+ builds it is
+replaced by JfrCoalescingEvents (in src/main/java11), which turns the calls into JDK Flight Recorder events. The
+core library still targets 1.7, so the JFR version is only ever reached through reflection.
+
+The begin methods return a token (null when the event is not being recorded) that is handed back to the matching
+end method, so callers do no timing work at all unless a recording has the event enabled.
+*/
+class CoalescingEvents {
+
+    static final CoalescingEvents INSTANCE = load();
+
+    private static CoalescingEvents load() {
+        try {
+            Class<?> jfrEvents = Class.forName("net.jstreams.streams.JfrCoalescingEvents");
+            return (CoalescingEvents) jfrEvents.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {  // not built with the java11 profile
+            return new CoalescingEvents();
+        } catch (LinkageError ex) {  // JFR not present in this JVM
+            return new CoalescingEvents();
+        }
+    }
+
+    // one shuttle batch: the backend write and flush of bytes taken from the ring
+    Object batchBegin() {
+        return null;
+    }
+
+    void batchEnd(Object token, String stream, long bytes, long lockWaitNanos, long writeNanos, long flushNanos,
+                  boolean failed) {
+    }
+
+    // a writer waiting for ring space (or pool budget) because the shuttle has not caught up
+    Object writerBlockedBegin() {
+        return null;
+    }
+
+    void writerBlockedEnd(Object token, String stream, long bytesRequested, long bytesBuffered) {
+    }
+
+    // a flush() waiting for the shuttle to persist everything written before it
+    Object flushWaitBegin() {
+        return null;
+    }
+
+    void flushWaitEnd(Object token, String stream, long bytesWaitedFor) {
+    }
+}
@@ -0,0 +1,167 @@
+package net.jstreams.streams;
+
+import java.io.File;
+
+/*
+Tunables for CoalescingOutputStream. Setters return this, so options can be chained:
+
+    new CoalescingOutputStream(out, new CoalescingOptions().setMaxBufferSize(1024 * 1024));
+
+The options object is read once, when the stream is constructed.
+*/
+public class CoalescingOptions {
+
+    public static final int DEFAULT_INITIAL_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+    public static final long DEFAULT_IDLE_RELEASE_MILLIS = 60 * 1000;
+    public static final long DEFAULT_SPILL_LIMIT = 1024L * 1024 * 1024;
+
+    private int initialBufferSize = DEFAULT_INITIAL_BUFFER_SIZE;
+    private int maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+    private long maxRingSize = 0;   // 0: the max buffer size
+    private long idleReleaseMillis = DEFAULT_IDLE_RELEASE_MILLIS;
+    private boolean instrumented = false;
+    private SlabBufferPool bufferPool = null;
+    private RetryPolicy retryPolicy = null;
+    private StreamReopener reopener = null;
+    private WaitStrategy waitStrategy = new BlockingWaitStrategy();
+    private BatchObserver batchObserver = null;
+    private File spillDirectory = null;
+    private long spillLimit = DEFAULT_SPILL_LIMIT;
+
+    public int getInitialBufferSize() {
+        return initialBufferSize;
+    }
+
+    // size of the ring allocated on the first write
+    public CoalescingOptions setInitialBufferSize(int initialBufferSize) {
+        if (initialBufferSize <= 0) throw new IllegalArgumentException("initial buffer size must be positive");
+        this.initialBufferSize = initialBufferSize;
+        return this;
+    }
+
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    // per-stream cap: the ring grows under backlog, but never beyond this size. Also the largest single write
+    // that is kept together in one underlying write.
+    public CoalescingOptions setMaxBufferSize(int maxBufferSize) {
+        if (maxBufferSize <= 0) throw new IllegalArgumentException("max buffer size must be positive");
+        this.maxBufferSize = maxBufferSize;
+        return this;
+    }
+
+    public long getMaxRingSize() {
+        return (maxRingSize == 0) ? maxBufferSize : Math.max(maxRingSize, maxBufferSize);
+    }
+
+    // lets the ring grow past the max buffer size, to absorb longer backlogs - up to many GB, in 1G segments (or
+    // pool slabs). Writes are still split, and batches still staged, at the max buffer size; a backlog bigger than
+    // that is written straight from the ring. Defaults to the max buffer size. Growing a big ring copies its live
+    // bytes: the shuttle and flushes go on meanwhile, but the writer that grows it (and the writers behind it) wait.
+    public CoalescingOptions setMaxRingSize(long maxRingSize) {
+        if (maxRingSize <= 0) throw new IllegalArgumentException("max ring size must be positive");
+        this.maxRingSize = maxRingSize;
+        return this;
+    }
+
+    public long getIdleReleaseMillis() {
+        return idleReleaseMillis;
+    }
+
+    // an empty ring is released after this long without writes; 0 keeps the ring until close
+    public CoalescingOptions setIdleReleaseMillis(long idleReleaseMillis) {
+        if (idleReleaseMillis < 0) throw new IllegalArgumentException("idle release time cannot be negative");
+        this.idleReleaseMillis = idleReleaseMillis;
+        return this;
+    }
+
+    public SlabBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    // borrow ring and staging memory from a pool shared with other streams, instead of the heap. The max buffer size
+    // is rounded up to whole slabs, and must fit in the pool budget.
+    public CoalescingOptions setBufferPool(SlabBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        return this;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    // retry batches the underlying stream fails to write, instead of dropping them and failing every later write.
+    // Buffered data then stays in the ring until it is persisted, not just until the shuttle picks it up.
+    // Delivery is at-least-once: without a reopener, a failed flush is retried alone (the written bytes are not sent
+    // twice), but the bytes a failed write got through before it failed are sent again. Set a reopener that
+    // repositions the backend at the persisted length if duplicates matter.
+    public CoalescingOptions setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public StreamReopener getReopener() {
+        return reopener;
+    }
+
+    // repairs or replaces the underlying stream before a retry; only used with a retry policy
+    public CoalescingOptions setReopener(StreamReopener reopener) {
+        this.reopener = reopener;
+        return this;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    // how writers, the shuttle and flush() wait for each other: blocking (the default), spin-then-park or busy-spin
+    public CoalescingOptions setWaitStrategy(WaitStrategy waitStrategy) {
+        if (waitStrategy == null) throw new IllegalArgumentException("wait strategy cannot be null");
+        this.waitStrategy = waitStrategy;
+        return this;
+    }
+
+    public boolean isInstrumented() {
+        return instrumented;
+    }
+
+    public CoalescingOptions setInstrumented(boolean instrumented) {
+        this.instrumented = instrumented;
+        return this;
+    }
+
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    // when the ring is full (and at its max size), append writes to a temp file here instead of blocking; the
+    // shuttle sends them on, in order, after what is in the ring. null (the default) means writers block.
+    public CoalescingOptions setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+        return this;
+    }
+
+    public long getSpillLimit() {
+        return spillLimit;
+    }
+
+    // most bytes one overflow spills before writers block again; the file is reused once the shuttle has sent
+    // everything in it
+    public CoalescingOptions setSpillLimit(long spillLimit) {
+        if (spillLimit <= 0) throw new IllegalArgumentException("spill limit must be positive");
+        this.spillLimit = spillLimit;
+        return this;
+    }
+
+    public BatchObserver getBatchObserver() {
+        return batchObserver;
+    }
+
+    // shown every batch on the shuttle thread, before it is written (see BatchObserver)
+    public CoalescingOptions setBatchObserver(BatchObserver batchObserver) {
+        this.batchObserver = batchObserver;
+        return this;
+    }
+}
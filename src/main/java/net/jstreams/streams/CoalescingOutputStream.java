@@ -1,9 +1,12 @@
 package net.jstreams.streams;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -11,23 +14,54 @@ import java.util.concurrent.locks.ReentrantLock;
 public class CoalescingOutputStream extends OutputStream {
 
     private OutputStream underlyingStream;
-    private final int blocksize = 4 * 1024 * 1024;
-    private final int BUFSIZE = blocksize;
-    private byte[] buffer = new byte[BUFSIZE];
+    private final int initialBufferSize;
+    private final int blocksize;   // largest write that is kept in one piece
+    private final long maxRingCapacity;
+    private final long idleReleaseNanos;
+    private final SlabBufferPool bufferPool; // null means ring and staging are plain heap arrays
+    private final RetryPolicy retryPolicy;   // null means failed batches are dropped (see lastError)
+    private final StreamReopener reopener;
+    private final WaitStrategy waitStrategy;
+    private final BatchObserver batchObserver;  // null if nobody watches the batches
+    private long observedIndex = 0;             // shuttle-only: everything before it has been shown to batchObserver
+    private volatile ShuttleListener shuttleListener = null;
+    private volatile boolean closeFromShuttle = false;  // closeAsync(): the shuttle closes the underlying stream
+    private volatile long retryCount = 0;
+    private RingBuffer ring = null; // allocated on first write, grown under backlog, released when idle
+    private boolean shuttleReadingRing = false; // shuttle is writing straight from the ring - don't move or free it
+    private boolean resizingRing = false;       // a writer is copying out of the ring, unlocked - don't free it
+    private byte[] transferBuffer = null; // shuttle-only, for writing straight from off-heap slabs
     private volatile boolean streamClosed = false;
     private AtomicInteger inProgressWrites = new AtomicInteger(0);
     private volatile IOException lastError = null;
     private volatile Thread shuttleThread = null;
 
+    // overflow to disk (see note 12); all under shuttleNotificationLock except the file reads and writes themselves
+    private final File spillDirectory;   // null: no spilling
+    private final long spillLimit;
+    private SpillFile spill = null;      // created on the first overflow
+    private volatile boolean spilling = false;    // [spillStart, writtenIndex) is in the spill file, not the ring
+    private long spillStart = 0;
+    private volatile boolean spillAppending = false;  // a writer is writing to the file, outside the lock
+    private long spillBeganNanos = 0;
+    private volatile long spilledBytes = 0;
+    private volatile long spillCount = 0;
+    private volatile long spillDrainNanos = 0;
+    private volatile long maxSpillDrainNanos = 0;
+
     private volatile long writtenIndex;
     private volatile long flushedIndex;
     private volatile long persistedIndex;
 
+    private final CoalescingEvents events = CoalescingEvents.INSTANCE; // JFR events, when built and enabled
+    private final String streamName = "CoalescingOutputStream@" + Integer.toHexString(System.identityHashCode(this));
+
     private class LockObj {}  // just so lock shows up as a class name in jcmd Thread.print output
     private LockObj lockObj = new LockObj();
     private ReentrantLock shuttleNotificationLock = new ReentrantLock(true);
     private Condition bufferWrite = shuttleNotificationLock.newCondition(); // notify when a write happens
-    private Condition bufferFlush = shuttleNotificationLock.newCondition(); // notify when shuttle flushes from buffer
+    private Condition bufferFlush = shuttleNotificationLock.newCondition(); // notify the writer waiting for space
+    private IndexWaiters flushWaiters = new IndexWaiters(shuttleNotificationLock); // flushes, by index they need
 
 
     class SingleReading {
@@ -62,12 +96,43 @@ public class CoalescingOutputStream extends OutputStream {
 
 
     public CoalescingOutputStream(OutputStream underlyingStream) {
-        this(underlyingStream, false);
+        this(underlyingStream, new CoalescingOptions());
     }
 
     public CoalescingOutputStream(OutputStream underlyingStream, boolean instrumented) {
+        this(underlyingStream, new CoalescingOptions().setInstrumented(instrumented));
+    }
+
+    public CoalescingOutputStream(OutputStream underlyingStream, CoalescingOptions options) {
+        this(underlyingStream, options, null);
+    }
+
+    // for StreamPipeline, which fuses its stages into the shuttle; batchObserver is in addition to the options' one
+    CoalescingOutputStream(OutputStream underlyingStream, CoalescingOptions options, BatchObserver batchObserver) {
         this.underlyingStream = underlyingStream;
-        this.instrumented = instrumented;
+        BatchObserver optionsObserver = options.getBatchObserver();
+        if (batchObserver == null) {
+            this.batchObserver = optionsObserver;
+        } else if (optionsObserver == null) {
+            this.batchObserver = batchObserver;
+        } else {
+            this.batchObserver = new BatchObservers(optionsObserver, batchObserver);
+        }
+        this.instrumented = options.isInstrumented();
+        this.blocksize = options.getMaxBufferSize();
+        this.initialBufferSize = Math.min(options.getInitialBufferSize(), blocksize);
+        this.idleReleaseNanos = TimeUnit.MILLISECONDS.toNanos(options.getIdleReleaseMillis());
+        this.bufferPool = options.getBufferPool();
+        this.retryPolicy = options.getRetryPolicy();
+        this.reopener = options.getReopener();
+        this.waitStrategy = options.getWaitStrategy();
+        this.spillDirectory = options.getSpillDirectory();
+        this.spillLimit = options.getSpillLimit();
+        if (bufferPool != null) { // rings are made of whole slabs
+            this.maxRingCapacity = (long) bufferPool.slabsFor(options.getMaxRingSize()) * bufferPool.getSlabSize();
+        } else {
+            this.maxRingCapacity = options.getMaxRingSize();
+        }
     }
 
 
@@ -80,9 +145,49 @@ Other notes:
 1. Exceptions encountered by Shuttle are thrown by the next write or flush
 2. Shuttle has a higher-priority lock. Shuttle can wait for any in-progress write (buffer-copy) to finish, but multiple
    writers should not starve the shuttle. This can have high impact on perf if lock priority is not ensured.
-3. Big writes - these will be broken into smaller 4MB writes, and Shuttle should start writing the fragments of the
-   write even as the write() is un-acknowledged - this is required to avoid deadlocking the write().
+3. Big writes - these will be broken into blocksize (max buffer size) writes, and Shuttle should start writing the
+   fragments of the write even as the write() is un-acknowledged - this is required to avoid deadlocking the write().
 4. Write boundaries are preserved upto blocksize.
+5. The buffer is a ring that is allocated on the first write, at the initial size. A write that does not fit grows
+   the ring (doubling, up to the max size) before it waits for the shuttle, so the ring only gets big under backlog.
+   The shuttle releases an empty ring after it has been idle for a while; the next write allocates it again. All
+   access to the ring is under shuttleNotificationLock. The ring's max size is the max buffer size, unless the
+   options allow a bigger ring (up to many GB, addressed with 64-bit positions - see RingBuffer); the shuttle stages
+   at most blocksize bytes, and writes a bigger backlog straight from the ring instead. Growing allocates the new
+   ring and copies the live bytes with the lock released, so the shuttle and flushes are not held up by it.
+6. With a SlabBufferPool, the ring is made of slabs borrowed from the pool, and the shuttle's staging copy is
+   reserved against the pool budget. Nothing ever blocks on the pool while holding pool memory (that could deadlock
+   streams against each other): growing the ring and staging only try the pool. If growing fails, the writer waits
+   for the shuttle to drain the ring, and only an empty ring is handed back so the writer can queue for the size it
+   needs. If staging fails, the shuttle writes straight from the ring and frees the space after the write.
+7. Without a RetryPolicy, a batch the backend fails is dropped: the error is kept, and thrown by every later write and
+   flush. With one, ring space is only freed once it is persisted (flushedIndex then moves with persistedIndex), so
+   a failed batch is still in the ring: the shuttle backs off, lets the StreamReopener repair the backend, and resends
+   everything from persistedIndex. Without a reopener the backend is the same stream, so the shuttle resends only
+   what that stream has not taken yet: after a failed flush, just the flush is retried. A write that fails part way
+   may still have got some bytes through, which are then sent again - delivery is at-least-once unless a reopener
+   repositions the backend. Writers block on the full ring meanwhile. Once the policy gives up, the batch is
+   dropped and the error kept, as without a policy.
+8. Every wait (writer for space, shuttle for data, flush for persistence) is a loop on the volatile indexes under
+   shuttleNotificationLock. With a spinning WaitStrategy, the waiter first watches the indexes with the lock released
+   - the other side still signals, but nobody needs waking if the change comes while spinning - and re-checks under
+   the lock before it parks on the Condition, so a signal cannot be missed in between.
+9. Waiters are woken only when what they wait for has happened. Flushes wait in IndexWaiters, ordered by the index
+   they need persisted, each on its own Condition: after a batch the shuttle wakes just the flushes it satisfied (or
+   all of them, on an error), not every flush in the process. Writers are serialized on lockObj, so at most one
+   waits for ring space, and it gets a single signal.
+10. A BatchObserver (from the options, or fused in by StreamPipeline) is shown each batch before it is written, and
+   each byte only once: observedIndex remembers how far it has seen, so a resent batch is not shown again.
+11. For callers that cannot block (the Flow subscriber on JDK 11+ builds) there is tryWrite(), which gives up instead
+   of waiting for space, a ShuttleListener that hears when batches complete (so the caller knows when to try again),
+   and closeAsync(), which leaves the final drain and close to the shuttle.
+12. With a spill directory, a write that finds the ring full at its max size goes to a spill file instead of
+   waiting, and so does every write after it until the shuttle has caught up: the ring then holds
+   [flushedIndex, spillStart) and the file holds [spillStart, writtenIndex), and the shuttle sends the ring's part
+   first and then reads the file back in batches of up to blocksize. Once everything spilled is sent, the spill
+   ends and writes go to the ring again, reusing the file from the start. Writers only block when an overflow
+   reaches the spill limit. The file write itself happens with shuttleNotificationLock released (spillAppending
+   keeps the shuttle from ending the spill or exiting meanwhile), so a slow disk holds up writers, not the shuttle.
 
 
 Write:
@@ -100,12 +205,17 @@ Shuttle End:
 2. Unblock waiting flushes
 
 Flush:
-1. Read writtenIndex, and block until flushedIndex comes up to it
+1. Read writtenIndex, and block until persistedIndex comes up to it
 
 Close:
 1. Shut down the shuttle, and prevent all future writes and flushes
 2. But some writes may already be in progress. They go through, and shuttle closes only after the in-progress writes are done.
 
+Diagnostics:
+CoalescingEvents reports shuttle batches, writers blocked on a full ring, and slow flush() waits. On JDK 11+ builds
+these are JFR events (net.jstreams.ShuttleBatch, .WriterBlocked, .FlushWait) with the usual JFR thresholds, and cost
+a flag check when not recorded.
+
 */
 
     @Override
@@ -145,6 +255,46 @@ Close:
     }
 
     public void writeInternal(byte[] b, int off, int len) throws IOException {
+        writeInternal(null, 0, b, off, len, true);
+    }
+
+    /*
+    Non-blocking write, for callers that must not park (a Flow subscriber, an event loop): writes all of b[off..len)
+    and returns true if the ring has (or can grow to) room for it right now, and otherwise writes nothing and returns
+    false - try again once the shuttle has freed space. It never waits for the shuttle or for pool memory itself, but
+    it does queue behind other writers for their turn at the ring, so a stream that also has blocking writers can
+    still hold it up. len must fit in getMaxWriteSize().
+    */
+    public boolean tryWrite(byte[] b, int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException();
+        }
+        if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+        if (len > blocksize) throw new IllegalArgumentException("write is larger than the buffer");
+        if (len == 0) return true;
+        return writeInternal(null, 0, b, off, len, false) >= 0;
+    }
+
+    /*
+    For streams layered on this one (StreamMultiplexer): writes header and then the data as one write - adjacent in
+    the stream, and in the same batch - and returns the stream index just past it, for flushTo(). Header plus data
+    must fit in getMaxWriteSize().
+    */
+    long writeFramed(byte[] header, int headerLen, byte[] b, int off, int len) throws IOException {
+        if (headerLen + len > blocksize) throw new IllegalArgumentException("frame is larger than the buffer");
+        return writeInternal(header, headerLen, b, off, len, true);
+    }
+
+    // largest write kept in one piece, and the largest tryWrite()
+    public int getMaxWriteSize() {
+        return blocksize;
+    }
+
+    // returns the stream index just past the write, or -1 if it would have to wait and wait is false
+    private long writeInternal(byte[] header, int headerLen, byte[] b, int off, int dataLen, boolean wait)
+            throws IOException {
+        int len = headerLen + dataLen;
+        long endIndex;
         synchronized (lockObj) { // lockObj is used just by writers to synchronize among themselves
             shuttleNotificationLock.lock(); // this lock is used for coordinating between writers and the shuttle
             try {
@@ -152,19 +302,92 @@ Close:
                 if (shuttleThread == null)
                     shuttleThread = ShuttleStarter.startThread(this);  // one-time, when the first write comes in
 
-                // available space = BUSIZE - occupied space;
-                // len should be < available space, otherwise we wait for space to become available
-                while (len > BUFSIZE - (writtenIndex - flushedIndex)) {  // while there isn't enough available space
-                    bufferFlush.awaitUninterruptibly();
+                // available space = ring capacity - occupied space;
+                // len should be < available space, otherwise we grow the ring, spill, or wait for space to become
+                // available
+                boolean blocked = false;
+                boolean toSpill = false;
+                Object blockedEvent = null;
+                long bufferedWhenBlocked = 0;
+                while (true) {
+                    if (spilling) {
+                        // once anything is spilled, later writes follow it into the file, to stay in order
+                        if (writtenIndex - spillStart + len <= spillLimit) {
+                            toSpill = true;
+                            break;
+                        }
+                    } else if (len <= availableSpace()) {
+                        break;
+                    } else if (growRing(len, wait && spillDirectory == null)) {
+                        continue;
+                    } else if (spillDirectory != null && len <= spillLimit) {
+                        startSpill();
+                        toSpill = true;
+                        break;
+                    }
+                    if (!wait) return -1;
+                    if (!blocked) {
+                        blocked = true;
+                        blockedEvent = events.writerBlockedBegin();
+                        bufferedWhenBlocked = writtenIndex - flushedIndex;
+                    }
+                    final long flushedWhenBlocked = flushedIndex;
+                    final boolean spillingWhenBlocked = spilling;
+                    if (!spinUnlocked(new WaitStrategy.Ready() {
+                        public boolean isReady() {
+                            return flushedIndex != flushedWhenBlocked || spilling != spillingWhenBlocked;
+                        }
+                    })) {
+                        bufferFlush.awaitUninterruptibly();
+                    }
+                }
+                if (blocked) events.writerBlockedEnd(blockedEvent, streamName, len, bufferedWhenBlocked);
+                if (toSpill) {
+                    appendToSpill(header, headerLen, b, off, dataLen);
+                } else {
+                    if (headerLen > 0) ring.put(writtenIndex, header, 0, headerLen);
+                    ring.put(writtenIndex + headerLen, b, off, dataLen);
                 }
-                writeToBuffer(b, off, writtenIndex, len);
                 writtenIndex += len;
+                endIndex = writtenIndex;
                 bufferWrite.signalAll();
             } finally {
                 shuttleNotificationLock.unlock();
             }
         }
         if (lastError != null) throw lastError; // throw any exceptions that happened in Shuttle
+        return endIndex;
+    }
+
+    // caller holds shuttleNotificationLock (and lockObj)
+    private void startSpill() throws IOException {
+        if (spill == null) spill = new SpillFile(spillDirectory);
+        spilling = true;
+        spillStart = writtenIndex;
+        spillBeganNanos = System.nanoTime();
+    }
+
+    // writes at writtenIndex's place in the spill file, with shuttleNotificationLock released for the file write.
+    // Caller holds the lock (and lockObj, so no other writer can come in meanwhile), and has it again on return.
+    private void appendToSpill(byte[] header, int headerLen, byte[] b, int off, int dataLen) throws IOException {
+        long position = writtenIndex - spillStart;
+        IOException error = null;
+        spillAppending = true;   // keeps the shuttle from ending the spill, or exiting, under us
+        shuttleNotificationLock.unlock();
+        try {
+            if (headerLen > 0) spill.write(position, header, 0, headerLen);
+            spill.write(position + headerLen, b, off, dataLen);
+        } catch (IOException ex) {
+            error = ex;
+        } finally {
+            shuttleNotificationLock.lock();
+            spillAppending = false;
+        }
+        if (error != null) {
+            bufferWrite.signalAll();  // a closing shuttle may be waiting for this append
+            throw new IOException("could not spill write to " + spill.getPath(), error);
+        }
+        spilledBytes += headerLen + dataLen;
     }
 
     private static class ShuttleStarter implements Runnable {
@@ -186,69 +409,54 @@ Close:
         }
     }
 
-    private void shuttleBackup() {
-        //shuttle is the only thread that writes flushedIndex
-        long start, end, wait1 = 0, wait2 = 0;
-        long length = 0, endpoint;
-
-        shuttleLoop:
-        while (true) {
-            // we want the write/flush to the underlying stream outside of the lock
-            endpoint = writtenIndex; // read writtenIndex and keep local snapshot
-            if (endpoint > flushedIndex) {
-                try {
-                    length = (endpoint - flushedIndex);
-                    underlyingStream.write(getFromBuffer(flushedIndex, (int) length));
-                    underlyingStream.flush();
-                } catch (IOException ex) {
-                    lastError = ex;
-                }
-            }
-
-            start = System.currentTimeMillis();
-            shuttleNotificationLock.lock();
-            try {
-                end = System.currentTimeMillis();
-                flushedIndex = endpoint;
-                bufferFlush.signalAll();
-
-                while ((writtenIndex == flushedIndex) && !streamClosed) {
-                    bufferWrite.awaitUninterruptibly();
-                }
-                if ((writtenIndex == flushedIndex) && streamClosed) {
-                    break shuttleLoop;
-                }
-                // now we have something in the buffer - go to next iteration of the loop
-            } finally {
-                shuttleNotificationLock.unlock();
-            }
-            wait2 = end - start;
-            statter.add(wait1+wait2, length);
-        }
-        buffer = null; // release buffer
-    }
-
-
     private void shuttle() {
         //shuttle is the only thread that writes flushedIndex and persistedIndex
         // write() consumes flushedIndex and flush() consumes persistedIndex
-        long start, end, waittime;
-        long length = 0, endpoint;
+        long start, end;
+        long length = 0, startpoint, endpoint = 0;
+        long releaseTo = 0;    // ring space up to here can be freed at the next lock acquisition
+        int failedAttempts = 0;
+        long sentIndex = 0;    // everything before it has been written (maybe not flushed) to the current backend
         byte[] contentToWrite = null;
+        RingBuffer ringToWrite = null;
+        boolean spillBatch = false;   // the batch is in the spill file, at spillOffset
+        long spillOffset = 0;
 
         shuttleLoop:
         while (true) {
 
-            start = System.currentTimeMillis();  // measure time taken to acquire lock
+            start = System.nanoTime();  // measure time taken to acquire lock
             shuttleNotificationLock.lock();
             try {
-                end = System.currentTimeMillis();
-                if (flushedIndex > 0) {
-                    bufferFlush.signalAll();
+                end = System.nanoTime();
+                if (ringToWrite != null) { // previous batch went straight from the ring; the ring can move again
+                    shuttleReadingRing = false;
+                    ringToWrite = null;
+                }
+                if (releaseTo > flushedIndex) flushedIndex = releaseTo;
+                endSpillIfDrained();
+                if (lastError != null) {
+                    flushWaiters.wakeAll();  // flushes waiting for a batch that failed
+                    bufferFlush.signal();
+                } else if (flushedIndex > 0) {
+                    flushWaiters.wakeUpTo(persistedIndex);
+                    bufferFlush.signal();    // writers are serialized on lockObj: at most one waits for space
                 }
 
-                while ((writtenIndex == flushedIndex) && !streamClosed) {
-                    bufferWrite.awaitUninterruptibly();
+                if (writtenIndex == flushedIndex && bufferPool != null && bufferPool.getQueuedWaiters() > 0
+                        && !resizingRing) {
+                    releaseRing(); // drained, and other streams are waiting on the pool budget
+                }
+                while ((writtenIndex == flushedIndex) && (!streamClosed || spillAppending)) {
+                    endSpillIfDrained();
+                    if (spinUnlocked(shuttleReady)) continue;
+                    if (ring != null && idleReleaseNanos > 0) {
+                        if (!awaitWrite(idleReleaseNanos) && writtenIndex == flushedIndex && !resizingRing) {
+                            releaseRing(); // idle with nothing buffered - give the memory back until the next write
+                        }
+                    } else {
+                        bufferWrite.awaitUninterruptibly();
+                    }
                 }
                 if ((writtenIndex == flushedIndex) && streamClosed) {
                     break shuttleLoop;
@@ -256,53 +464,349 @@ Close:
 
                 // now we have something in the buffer
                 endpoint = writtenIndex; // read writtenIndex and keep local snapshot
-                length = (endpoint - flushedIndex);
-                contentToWrite = getFromBuffer(flushedIndex, (int) length);
-                flushedIndex = endpoint;
+                startpoint = flushedIndex;
+                spillBatch = false;
+                if (spilling) {
+                    if (startpoint < spillStart) {
+                        endpoint = spillStart;  // what is in the ring goes first
+                    } else {
+                        spillBatch = true;
+                        spillOffset = startpoint - spillStart;
+                        endpoint = Math.min(endpoint, startpoint + blocksize);
+                    }
+                }
+                length = (endpoint - startpoint);
+                if (spillBatch) {
+                    // read back outside the lock: into a staging copy, or a transfer buffer at a time if no budget
+                    boolean staged = bufferPool == null || bufferPool.tryReserve(length);
+                    contentToWrite = staged ? new byte[(int) length] : null;
+                    if (retryPolicy == null) flushedIndex = endpoint;
+                } else if (length <= blocksize && (bufferPool == null || bufferPool.tryReserve(length))) {
+                    contentToWrite = new byte[(int) length];
+                    ring.get(startpoint, contentToWrite, 0, (int) length);
+                    if (retryPolicy == null) flushedIndex = endpoint; // else keep it in the ring until persisted
+                } else {
+                    contentToWrite = null;  // bigger than a staging copy may be, or no budget for one
+                    ringToWrite = ring;
+                    shuttleReadingRing = true;
+                }
             } finally {
                 shuttleNotificationLock.unlock();
             }
-            waittime = end - start;
-            statter.add(waittime, length);
+            statter.add(TimeUnit.NANOSECONDS.toMillis(end - start), length);
 
             // we want the write/flush to the underlying stream outside of the lock
+            Object batchEvent = events.batchBegin();
+            long writeStart = (batchEvent != null) ? System.nanoTime() : 0;
+            long writeEnd = writeStart;
+            boolean failed = true;
             try {
-                underlyingStream.write(contentToWrite);
+                if (spillBatch && contentToWrite != null) spill.read(spillOffset, contentToWrite, 0, (int) length);
+                if (batchObserver != null && endpoint > observedIndex && (contentToWrite != null || !spillBatch)) {
+                    observe(contentToWrite, ringToWrite, startpoint, endpoint);
+                }
+                // a retry on the same backend resends only what it has not taken yet; if just the flush failed,
+                // that is nothing, and the retry is only the flush
+                long from = Math.max(startpoint, sentIndex);
+                if (from < endpoint) {
+                    int skip = (int) (from - startpoint);
+                    if (contentToWrite != null) {
+                        underlyingStream.write(contentToWrite, skip, (int) length - skip);
+                    } else if (spillBatch) {
+                        writeFromSpill(spillOffset + skip, from, (int) length - skip);
+                    } else {
+                        ringToWrite.writeTo(underlyingStream, from, endpoint - from, getTransferBuffer());
+                    }
+                    sentIndex = endpoint;
+                }
+                if (batchEvent != null) writeEnd = System.nanoTime();
                 underlyingStream.flush();
                 persistedIndex = endpoint;
+                releaseTo = endpoint;
+                failedAttempts = 0;
+                failed = false;
             } catch (IOException ex) {
-                lastError = ex;
+                if (retryPolicy != null && retryPolicy.shouldRetry(ex, ++failedAttempts)) {
+                    retryCount++;
+                    // the batch stays in the ring, and goes again next time round
+                    if (prepareRetry(ex, failedAttempts)) sentIndex = persistedIndex;  // a new backend gets it all
+                } else {
+                    lastError = ex;
+                    releaseTo = endpoint;  // drop the batch
+                    failedAttempts = 0;
+                }
+            } finally {
+                if (contentToWrite != null && bufferPool != null) bufferPool.unreserve(length);
+            }
+            ShuttleListener listener = shuttleListener;
+            if (listener != null && (!failed || lastError != null)) {
+                // free the batch's ring space before telling the listener, so a tryWrite() it makes can use it -
+                // with a retry policy nothing else frees it until the next time round the loop
+                shuttleNotificationLock.lock();
+                try {
+                    if (ringToWrite != null) {
+                        shuttleReadingRing = false;
+                        ringToWrite = null;
+                    }
+                    if (releaseTo > flushedIndex) flushedIndex = releaseTo;
+                } finally {
+                    shuttleNotificationLock.unlock();
+                }
+                listener.afterBatch(persistedIndex, lastError);
+            }
+            if (batchEvent != null) {
+                long flushEnd = System.nanoTime();
+                events.batchEnd(batchEvent, streamName, length, end - start, writeEnd - writeStart,
+                        flushEnd - writeEnd, failed);
             }
         }
-        buffer = null; // release buffer
+        shuttleNotificationLock.lock();
+        try {
+            releaseRing(); // release buffer
+            if (spill != null) {
+                try {
+                    spill.close();  // deletes the file
+                } catch (IOException ex) {
+                    // nothing left to lose: everything in it has been sent
+                }
+                spill = null;
+            }
+        } finally {
+            shuttleNotificationLock.unlock();
+        }
+        if (closeFromShuttle) finishAsyncClose();
+    }
+
+    // backs off, then lets the reopener repair or replace the underlying stream. A failed reopen is just another
+    // failed attempt: the resend will fail too, and come back here or give up. Returns whether the stream was reopened.
+    private boolean prepareRetry(IOException cause, int attempt) {
+        try {
+            Thread.sleep(retryPolicy.backoffMillis(attempt));
+        } catch (InterruptedException ex) {
+            // nobody interrupts the shuttle on purpose; retry right away
+        }
+        if (reopener != null) {
+            try {
+                underlyingStream = reopener.reopen(underlyingStream, persistedIndex, cause);
+                return true;
+            } catch (IOException ex) {
+                // keep the old stream
+            }
+        }
+        return false;
     }
 
+    // shuttle, under shuttleNotificationLock: once everything spilled has been sent, writes go to the ring again
+    private void endSpillIfDrained() {
+        if (!spilling || flushedIndex != writtenIndex || spillAppending) return;
+        spilling = false;
+        long drain = System.nanoTime() - spillBeganNanos;
+        spillDrainNanos += drain;
+        if (drain > maxSpillDrainNanos) maxSpillDrainNanos = drain;
+        spillCount++;
+    }
 
-    byte[] getFromBuffer(long startpoint, int length) {
-        byte[] returnBuffer = new byte[length];
-        if (length == 0) return returnBuffer;
-        long endpoint = startpoint + length;
-        int physicalStartPoint = (int) startpoint % BUFSIZE;
-        int physicalEndPoint = (int) endpoint % BUFSIZE;
-        if (physicalStartPoint >= physicalEndPoint) { // == implies buffer wrapped over, we already checked length == 0
-            System.arraycopy(buffer, physicalStartPoint, returnBuffer, 0, BUFSIZE - physicalStartPoint);
-            System.arraycopy(buffer, 0, returnBuffer, BUFSIZE - physicalStartPoint, physicalEndPoint);
-        } else {
-            System.arraycopy(buffer, physicalStartPoint, returnBuffer, 0, length);
+    // a spilled batch with no budget for a staging copy: read back and written a transfer buffer at a time
+    private void writeFromSpill(long spillOffset, long startpoint, int length) throws IOException {
+        byte[] buf = getTransferBuffer();
+        int done = 0;
+        while (done < length) {
+            int n = Math.min(buf.length, length - done);
+            spill.read(spillOffset + done, buf, 0, n);
+            long pieceStart = startpoint + done;
+            if (batchObserver != null && pieceStart + n > observedIndex) {
+                long from = Math.max(pieceStart, observedIndex);
+                batchObserver.batch(buf, (int) (from - pieceStart), (int) (pieceStart + n - from));
+                observedIndex = pieceStart + n;
+            }
+            underlyingStream.write(buf, 0, n);
+            done += n;
         }
-        return returnBuffer;
     }
 
-    void writeToBuffer(byte[] content, long contentOffset, long startpoint, int length) {
-        if (length == 0) return;
-        long endpoint = startpoint + length;
-        int physicalStartPoint = (int) startpoint % BUFSIZE;
-        int physicalEndPoint = (int) endpoint % BUFSIZE;
-        if (physicalStartPoint >= physicalEndPoint) { // == implies buffer wrapped over, we already checked length == 0
-            System.arraycopy(content, (int) contentOffset, buffer, physicalStartPoint, BUFSIZE - physicalStartPoint);
-            System.arraycopy(content, (int) contentOffset + BUFSIZE - physicalStartPoint, buffer, 0, physicalEndPoint);
-        } else {
-            System.arraycopy(content, (int) contentOffset, buffer, physicalStartPoint, length);
+    // shows the batch to batchObserver, except what an earlier attempt at it already showed
+    private void observe(byte[] staged, RingBuffer fromRing, long startpoint, long endpoint) throws IOException {
+        long from = Math.max(startpoint, observedIndex);
+        if (staged != null) {
+            batchObserver.batch(staged, (int) (from - startpoint), (int) (endpoint - from));
+        } else {   // the ring is pinned (shuttleReadingRing) while the shuttle writes from it
+            fromRing.writeTo(new ObserverSink(batchObserver), from, endpoint - from, getTransferBuffer());
+        }
+        observedIndex = endpoint;
+    }
+
+    private static final class ObserverSink extends OutputStream {
+        private final BatchObserver observer;
+
+        ObserverSink(BatchObserver observer) {
+            this.observer = observer;
+        }
+
+        @Override
+        public void write(int b) {
+            observer.batch(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            observer.batch(b, off, len);
+        }
+    }
+
+    private static final class BatchObservers implements BatchObserver {
+        private final BatchObserver first, second;
+
+        BatchObservers(BatchObserver first, BatchObserver second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        public void batch(byte[] b, int off, int len) {
+            first.batch(b, off, len);
+            second.batch(b, off, len);
+        }
+    }
+
+    // bytes that went to the spill file because the ring was full, over the life of the stream
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    // overflows that have been sent on in full, and how long they took from the first spilled write to the last
+    // spilled byte persisted (or dropped): in total, and the longest
+    public long getSpillCount() {
+        return spillCount;
+    }
+
+    public long getSpillDrainMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(spillDrainNanos);
+    }
+
+    public long getMaxSpillDrainMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxSpillDrainNanos);
+    }
+
+    // whether writes are going to the spill file right now
+    boolean isSpilling() {
+        return spilling;
+    }
+
+    // number of batch resends after backend errors
+    public long getRetryCount() {
+        return retryCount;
+    }
+
+    private byte[] getTransferBuffer() {
+        if (transferBuffer == null) {
+            int slabSize = (bufferPool != null) ? bufferPool.getSlabSize() : Integer.MAX_VALUE;
+            transferBuffer = new byte[Math.min(slabSize, 64 * 1024)];
+        }
+        return transferBuffer;
+    }
+
+    private final WaitStrategy.Ready shuttleReady = new WaitStrategy.Ready() {
+        public boolean isReady() {
+            return writtenIndex != flushedIndex || (streamClosed && !spillAppending);
+        }
+    };
+
+    // With a spinning wait strategy, spins without the lock until ready or the strategy gives up. Caller holds
+    // shuttleNotificationLock and gets it back; returns ready, as re-checked under the lock - if false, the caller
+    // can park on its Condition knowing the signal it waits for is still to come.
+    private boolean spinUnlocked(WaitStrategy.Ready ready) {
+        if (!waitStrategy.spins()) return false;
+        shuttleNotificationLock.unlock();
+        try {
+            waitStrategy.spin(ready);
+        } finally {
+            shuttleNotificationLock.lock();
+        }
+        return ready.isReady();
+    }
+
+    // returns false if the wait timed out
+    private boolean awaitWrite(long nanos) {
+        try {
+            return bufferWrite.awaitNanos(nanos) > 0;
+        } catch (InterruptedException ex) {
+            return true;  // nobody interrupts the shuttle on purpose; treat it as a spurious wakeup
+        }
+    }
+
+    // caller holds shuttleNotificationLock
+    private void releaseRing() {
+        if (ring != null && bufferPool != null) bufferPool.release(ring.segments());
+        ring = null;
+    }
+
+    private long availableSpace() {
+        if (ring == null) return 0;
+        return ring.capacity() - (writtenIndex - flushedIndex);
+    }
+
+    // grows (or allocates) the ring so that it can hold len more bytes, within the max size.
+    // returns false if the ring cannot grow right now, and the writer has to wait for the shuttle to drain it.
+    // Caller holds shuttleNotificationLock (and lockObj).
+    private boolean growRing(int len, boolean mayWait) throws IOException {
+        long currentCapacity = (ring == null) ? 0 : ring.capacity();
+        if (currentCapacity >= maxRingCapacity || shuttleReadingRing) return false;
+        long occupied = writtenIndex - flushedIndex;
+        long newCapacity = Math.max(initialBufferSize, 2L * currentCapacity);
+        while (newCapacity < occupied + len) newCapacity *= 2;
+        newCapacity = Math.min(newCapacity, maxRingCapacity);
+
+        ByteBuffer[] slabs = null;
+        if (bufferPool != null) {
+            int slabCount = bufferPool.slabsFor(newCapacity);
+            slabs = bufferPool.tryAcquire(slabCount);
+            if (slabs == null) {
+                if (occupied > 0 || !mayWait) return false;
+                // nothing buffered: give back what we hold, and queue for the budget without holding the lock the
+                // shuttle and flushers need. Writers are still serialized on lockObj, so nobody else touches the ring.
+                releaseRing();
+                shuttleNotificationLock.unlock();
+                try {
+                    slabs = bufferPool.acquire(slabCount);
+                } finally {
+                    shuttleNotificationLock.lock();
+                }
+            }
+        }
+
+        // allocating a big ring and copying the live bytes into it takes a while, so do it with the lock released:
+        // the shuttle and flushes carry on meanwhile. The live bytes cannot change under us - writers are serialized
+        // on lockObj and the shuttle only reads them - and resizingRing keeps the shuttle from releasing the old ring.
+        RingBuffer oldRing = ring;
+        long liveFrom = flushedIndex;
+        long liveTo = writtenIndex;
+        RingBuffer newRing;
+        resizingRing = true;
+        shuttleNotificationLock.unlock();
+        try {
+            newRing = (slabs != null) ? new RingBuffer(slabs) : RingBuffer.allocate(newCapacity, false);
+            if (oldRing != null) oldRing.copyTo(newRing, liveFrom, liveTo);
+        } finally {
+            shuttleNotificationLock.lock();
+            resizingRing = false;
+        }
+        if (streamClosed || shuttleReadingRing) {
+            // closed meanwhile (the shuttle may be gone already, and would never drain or free the new ring), or the
+            // shuttle is now writing straight from the old ring, which cannot move until it is done
+            if (slabs != null) bufferPool.release(slabs);
+            if (streamClosed) throw new IOException("attempting to write to a closed stream");
+            return false;
+        }
+        if (oldRing != null) releaseRing();
+        ring = newRing;
+        return true;
+    }
+
+    long getBufferCapacity() {
+        shuttleNotificationLock.lock();
+        try {
+            return (ring == null) ? 0 : ring.capacity();
+        } finally {
+            shuttleNotificationLock.unlock();
         }
     }
 
@@ -313,22 +817,100 @@ Close:
     }
 
     public void flushInternal() throws IOException {
-        long indexToWaitFor = writtenIndex;
+        flushTo(writtenIndex);
+    }
+
+    // waits until everything before indexToWaitFor is persisted - but not anything written after it
+    void flushTo(final long indexToWaitFor) throws IOException {
+        long bytesToWaitFor = indexToWaitFor - persistedIndex;
+        Object flushEvent = (bytesToWaitFor > 0) ? events.flushWaitBegin() : null;
         shuttleNotificationLock.lock();
         try {
-            while (persistedIndex < indexToWaitFor) {
-                bufferFlush.awaitUninterruptibly();
+            WaitStrategy.Ready persisted = null;
+            IndexWaiters.Waiter waiter = null;
+            while (persistedIndex < indexToWaitFor && lastError == null) {
+                if (waitStrategy.spins()) {
+                    if (persisted == null) {
+                        persisted = new WaitStrategy.Ready() {
+                            public boolean isReady() {
+                                return persistedIndex >= indexToWaitFor || lastError != null;
+                            }
+                        };
+                    }
+                    if (spinUnlocked(persisted)) continue;
+                }
+                if (waiter == null) waiter = flushWaiters.newWaiter(indexToWaitFor);
+                flushWaiters.await(waiter);
             }
+            if (waiter != null) flushWaiters.remove(waiter);
         } finally {
             shuttleNotificationLock.unlock();
         }
+        if (flushEvent != null) events.flushWaitEnd(flushEvent, streamName, bytesToWaitFor);
         if (lastError != null) throw lastError;  // throw any exceptions that happened in Shuttle
     }
 
+    /*
+    For non-blocking callers (the Flow subscriber): hears about the shuttle's progress on the shuttle thread, outside
+    its locks. afterBatch comes after every batch that was persisted or given up on, with persistedIndex and the
+    error, if any, once the batch's ring space has been freed (so a tryWrite() from it sees the space); closed comes once, after closeAsync() has drained the ring and closed the underlying stream. Both
+    must be quick and must not block. Set it before the first write.
+    */
+    interface ShuttleListener {
+        void afterBatch(long persistedIndex, IOException error);
+
+        void closed(IOException error);
+    }
+
+    void setShuttleListener(ShuttleListener listener) {
+        this.shuttleListener = listener;
+    }
+
+    // bytes written to the underlying stream and flushed; with lastError set, some of them may have been dropped
+    public long getPersistedBytes() {
+        return persistedIndex;
+    }
+
+    /*
+    close() without waiting: stops further writes, and leaves the shuttle to write out what is buffered, close the
+    underlying stream and tell the ShuttleListener. If nothing was ever written there is no shuttle, and the
+    underlying stream is closed here.
+    */
+    void closeAsync() {
+        boolean noShuttle;
+        shuttleNotificationLock.lock();
+        try {
+            if (streamClosed) return;
+            closeFromShuttle = true;
+            streamClosed = true;
+            noShuttle = (shuttleThread == null);
+            bufferWrite.signalAll();
+        } finally {
+            shuttleNotificationLock.unlock();
+        }
+        if (noShuttle) finishAsyncClose();
+    }
+
+    private void finishAsyncClose() {
+        IOException error = lastError;
+        try {
+            underlyingStream.close();
+        } catch (IOException ex) {
+            if (error == null) error = ex;
+        }
+        ShuttleListener listener = shuttleListener;
+        if (listener != null) listener.closed(error);
+    }
+
     @Override
     public void close() throws IOException {
         if (streamClosed) return;
-        flushInternal();
+        IOException flushError = null;
+        try {
+            flushInternal();
+        } catch (IOException ex) {
+            flushError = ex;   // still shut the shuttle down, then report it
+        }
 
         // wake up the shuttle if it is awaiting, so it can terminate
         shuttleNotificationLock.lock();
@@ -340,6 +922,7 @@ Close:
         }
         closeUnderlyingStream();
         statter.dump();
+        if (flushError != null) throw flushError;
     }
 
     private void closeUnderlyingStream() throws IOException {
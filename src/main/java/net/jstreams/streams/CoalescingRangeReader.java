@@ -0,0 +1,280 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+PositionedReadable wrapper that merges concurrent small reads into fewer, larger reads of the backend - for readers
+of columnar files on remote storage, where each backend read is a request and a few hundred bytes cost as much as a
+megabyte.
+
+Reads are batched the way CoalescingOutputStream batches writes, without a background thread: a reader queues its
+range, and if fewer than maxConcurrentFetches reads of the backend are in progress it becomes a leader, takes
+everything queued, and fetches it; otherwise it waits, and its range is picked up by the next leader - which is how
+ranges from many threads end up in one batch while the backend is busy. A leader sorts its batch and merges ranges
+that overlap or are at most maxGap bytes apart, as long as the merged read stays within maxMergedRead. Each merged
+range is one backend read (repeated until full or EOF); the results are copied out to the waiting readers. A range
+on its own is read straight into the caller's array. Reads of maxMergedRead or more skip the queue.
+
+An optional gather window makes a leader wait a little before taking the batch, trading latency for fewer reads
+when the backend is idle and readers arrive just apart.
+
+The backend must allow concurrent positional reads if maxConcurrentFetches > 1.
+*/
+public class CoalescingRangeReader implements PositionedReadable {
+
+    public static final int DEFAULT_MAX_GAP = 64 * 1024;
+    public static final int DEFAULT_MAX_MERGED_READ = 8 * 1024 * 1024;
+    public static final int DEFAULT_MAX_CONCURRENT_FETCHES = 4;
+
+    private final PositionedReadable backend;
+    private final int maxGap;
+    private final int maxMergedRead;
+    private final int maxConcurrentFetches;
+    private final long gatherNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchDone = lock.newCondition();
+    private List<Request> queued = new ArrayList<Request>();
+    private int activeFetches = 0;
+
+    private long requestCount = 0;
+    private long backendReadCount = 0;
+    private long bytesRequested = 0;
+    private long bytesFetched = 0;
+
+    private static class Request {
+        final long position;
+        final byte[] b;
+        final int off;
+        final int len;
+        int result = 0;
+        IOException error = null;
+        boolean done = false;
+
+        Request(long position, byte[] b, int off, int len) {
+            this.position = position;
+            this.b = b;
+            this.off = off;
+            this.len = len;
+        }
+
+        long end() {
+            return position + len;
+        }
+    }
+
+    private static final Comparator<Request> BY_POSITION = new Comparator<Request>() {
+        public int compare(Request x, Request y) {
+            return (x.position < y.position) ? -1 : ((x.position == y.position) ? 0 : 1);
+        }
+    };
+
+    public CoalescingRangeReader(PositionedReadable backend) {
+        this(backend, DEFAULT_MAX_GAP, DEFAULT_MAX_MERGED_READ, DEFAULT_MAX_CONCURRENT_FETCHES, 0);
+    }
+
+    public CoalescingRangeReader(PositionedReadable backend, int maxGap, int maxMergedRead,
+                                 int maxConcurrentFetches, long gatherMicros) {
+        if (maxGap < 0) throw new IllegalArgumentException("max gap cannot be negative");
+        if (maxMergedRead <= 0) throw new IllegalArgumentException("max merged read must be positive");
+        if (maxConcurrentFetches <= 0) throw new IllegalArgumentException("max concurrent fetches must be positive");
+        this.backend = backend;
+        this.maxGap = maxGap;
+        this.maxMergedRead = maxMergedRead;
+        this.maxConcurrentFetches = maxConcurrentFetches;
+        this.gatherNanos = gatherMicros * 1000;
+    }
+
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to read() method");
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) return 0;
+        if (len >= maxMergedRead) {
+            countDirect(len);
+            return backend.read(position, b, off, len);
+        }
+
+        Request request = new Request(position, b, off, len);
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            requestCount++;
+            bytesRequested += len;
+            queued.add(request);
+            // lead batches until someone (maybe us) has done ours; another leader can take our request while we
+            // gather, so being a leader does not mean our request is in our batch
+            while (!request.done) {
+                if (activeFetches < maxConcurrentFetches && !queued.isEmpty()) {
+                    activeFetches++;
+                    if (gatherNanos > 0) {
+                        try {
+                            batchDone.awaitNanos(gatherNanos);
+                        } catch (InterruptedException ex) {
+                            interrupted = true;  // go on: others may be waiting on this batch
+                        }
+                    }
+                    List<Request> batch = queued;
+                    queued = new ArrayList<Request>();
+                    lock.unlock();
+                    try {
+                        fetch(batch);
+                    } finally {
+                        lock.lock();
+                        for (Request r : batch) r.done = true;
+                        activeFetches--;
+                        batchDone.signalAll();
+                    }
+                } else {
+                    batchDone.awaitUninterruptibly();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        if (request.error != null) {
+            throw new IOException("range read failed at " + position, request.error);
+        }
+        return request.result;
+    }
+
+    // called without the lock
+    private void fetch(List<Request> batch) {
+        Collections.sort(batch, BY_POSITION);
+        int reads = 0;
+        long fetched = 0;
+        int i = 0;
+        while (i < batch.size()) {
+            // extend the merged range while the next request starts within maxGap of it, and fits
+            long start = batch.get(i).position;
+            long end = batch.get(i).end();
+            int j = i + 1;
+            while (j < batch.size()) {
+                Request next = batch.get(j);
+                long newEnd = Math.max(end, next.end());
+                if (next.position > end + maxGap || newEnd - start > maxMergedRead) break;
+                end = newEnd;
+                j++;
+            }
+            fetchMerged(batch.subList(i, j), start, (int) (end - start));
+            reads++;
+            fetched += end - start;
+            i = j;
+        }
+        lock.lock();
+        try {
+            backendReadCount += reads;
+            bytesFetched += fetched;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // one backend read for the merged range [start, start+length), copied out to the requests in it
+    private void fetchMerged(List<Request> requests, long start, int length) {
+        if (requests.size() == 1) {
+            Request r = requests.get(0);
+            try {
+                r.result = readFully(start, r.b, r.off, r.len);
+            } catch (IOException ex) {
+                r.error = ex;
+            } catch (RuntimeException ex) {
+                r.error = new IOException(ex);
+            }
+            return;
+        }
+        byte[] buf = new byte[length];
+        int n;
+        try {
+            n = readFully(start, buf, 0, length);
+        } catch (IOException ex) {
+            for (Request r : requests) r.error = ex;
+            return;
+        } catch (RuntimeException ex) {
+            for (Request r : requests) r.error = new IOException(ex);
+            return;
+        }
+        for (Request r : requests) {
+            int from = (int) (r.position - start);
+            int available = (n < 0) ? 0 : n - from;
+            if (available <= 0) {
+                r.result = -1;
+            } else {
+                r.result = Math.min(r.len, available);
+                System.arraycopy(buf, from, r.b, r.off, r.result);
+            }
+        }
+    }
+
+    // reads until len bytes or EOF; -1 only if there is nothing at position
+    private int readFully(long position, byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = backend.read(position + total, b, off + total, len - total);
+            if (n < 0) break;
+            total += n;
+        }
+        return (total == 0) ? -1 : total;
+    }
+
+    private void countDirect(int len) {
+        lock.lock();
+        try {
+            requestCount++;
+            backendReadCount++;
+            bytesRequested += len;
+            bytesFetched += len;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRequestCount() {
+        lock.lock();
+        try {
+            return requestCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // number of reads issued to the backend (a merged range retried until full counts once)
+    public long getBackendReadCount() {
+        lock.lock();
+        try {
+            return backendReadCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBytesRequested() {
+        lock.lock();
+        try {
+            return bytesRequested;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // includes the gaps read to merge ranges
+    public long getBytesFetched() {
+        lock.lock();
+        try {
+            return bytesFetched;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Drop-in for SynchronizedOutputStream that combines contended writes (flat combining). Every write is queued as a
+request; whichever thread gets the lock becomes the combiner and writes the queued requests of all waiting threads,
+in queue order, as one underlying write, then hands each its result and unparks it. Under contention the underlying
+stream sees a few large writes instead of one small write per thread; uncontended, a write goes straight through
+with just the queue and the lock in the way. There is no background thread: the combiner is always a writer.
+
+1. Order: requests are written in the order they were queued, and a write() returns only once its bytes have been
+   handed to the underlying stream - so one thread's writes stay in order, and writes are atomic (never interleaved).
+2. Batching: the requests are copied into one combining buffer (batchSize bytes, the only buffer the stream keeps)
+   since OutputStream has no gathering write; a request bigger than that is written on its own, straight from the
+   caller's array.
+3. Errors: if an underlying write fails, every request in that batch gets the exception; later requests are tried
+   again as usual. That goes for unchecked exceptions and errors too - they are caught and handed to each writer of
+   the batch wrapped in an IOException, so no waiter is left parked on a batch the combiner abandoned. If the
+   combiner itself fails some other way, it takes its own request off the queue before the exception leaves write(),
+   so a later combiner does not write the bytes of a call that has already thrown.
+4. Hand-off: the combiner keeps combining until its own request is done. After it lets go of the lock it looks at
+   the queue again, and wakes the first waiter if there is one - a request queued just as the combiner was leaving
+   would otherwise wait for a combiner that never comes.
+
+flush() and close() take the same lock, so they come after every write that has returned.
+*/
+public class CombiningOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+
+    private final OutputStream underlyingStream;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<Request>();
+    private final byte[] batch;   // combiner-only
+    private volatile long underlyingWrites = 0;
+    private volatile long requests = 0;
+
+    private static final class Request {
+        final byte[] b;
+        final int off, len;
+        final Thread thread = Thread.currentThread();
+        Throwable error;            // written before done
+        volatile boolean done = false;
+
+        Request(byte[] b, int off, int len) {
+            this.b = b;
+            this.off = off;
+            this.len = len;
+        }
+    }
+
+    public CombiningOutputStream(OutputStream underlyingStream) {
+        this(underlyingStream, DEFAULT_BATCH_SIZE);
+    }
+
+    public CombiningOutputStream(OutputStream underlyingStream, int batchSize) {
+        if (batchSize <= 0) throw new IllegalArgumentException("batch size must be positive");
+        this.underlyingStream = underlyingStream;
+        this.batch = new byte[batchSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to write() method");
+        }
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to write() method");
+        }
+        if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+        if (len == 0) return;
+        Request r = new Request(b, off, len);
+        queue.add(r);
+        while (!r.done) {
+            if (lock.tryLock()) {
+                try {
+                    combine(r);
+                } catch (RuntimeException ex) {
+                    if (!r.done) queue.remove(r);
+                    throw ex;
+                } catch (Error ex) {
+                    if (!r.done) queue.remove(r);
+                    throw ex;
+                } finally {
+                    unlockAndHandOff();
+                }
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        if (r.error instanceof IOException) throw (IOException) r.error;
+        if (r.error != null) throw new IOException("underlying write failed", r.error);
+    }
+
+    // caller holds lock; writes batches from the head of the queue until own is done
+    private void combine(Request own) {
+        while (!own.done) {
+            Request first = queue.poll();
+            if (first == null) return;   // cannot happen while own is queued, but don't spin if it does
+            Throwable error = null;
+            if (first.len > batch.length || !fitsWithNext(first)) {
+                try {
+                    underlyingStream.write(first.b, first.off, first.len);
+                } catch (Throwable ex) {
+                    error = ex;
+                }
+                underlyingWrites++;
+                requests++;
+                complete(first, error);
+                continue;
+            }
+            // gather: first, and whatever follows it that fits
+            Request[] taken = new Request[16];
+            int count = 0;
+            int total = 0;
+            Request r = first;
+            while (true) {
+                System.arraycopy(r.b, r.off, batch, total, r.len);
+                total += r.len;
+                if (count == taken.length) {
+                    Request[] bigger = new Request[count * 2];
+                    System.arraycopy(taken, 0, bigger, 0, count);
+                    taken = bigger;
+                }
+                taken[count++] = r;
+                Request next = queue.peek();
+                if (next == null || next.len > batch.length - total) break;
+                r = queue.poll();
+            }
+            try {
+                underlyingStream.write(batch, 0, total);
+            } catch (Throwable ex) {   // whatever it is, every writer of the batch has to hear about it
+                error = ex;
+            }
+            underlyingWrites++;
+            requests += count;
+            for (int i = 0; i < count; i++) complete(taken[i], error);
+        }
+    }
+
+    // whether first should be copied into the batch: only worth it if something else is waiting to join it
+    private boolean fitsWithNext(Request first) {
+        Request next = queue.peek();
+        return next != null && next.len <= batch.length - first.len;
+    }
+
+    private static void complete(Request r, Throwable error) {
+        r.error = error;
+        r.done = true;
+        if (r.thread != Thread.currentThread()) LockSupport.unpark(r.thread);
+    }
+
+    private void unlockAndHandOff() {
+        lock.unlock();
+        Request head = queue.peek();
+        if (head != null) LockSupport.unpark(head.thread);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            underlyingStream.flush();
+        } finally {
+            unlockAndHandOff();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            underlyingStream.close();
+        } finally {
+            unlockAndHandOff();
+        }
+    }
+
+    // writes made to the underlying stream; compare with getRequestCount() for the combining ratio
+    public long getUnderlyingWriteCount() {
+        return underlyingWrites;
+    }
+
+    public long getRequestCount() {
+        return requests;
+    }
+}
@@ -8,28 +8,43 @@ import java.util.zip.CRC32;
 public class Crc32OutputStream extends OutputStream {
     private OutputStream underlyingStream;
     private CRC32 crc32;
+    private AsyncDigester digester = null;  // computes crc32 on a background thread, if async
 
     public Crc32OutputStream(OutputStream underlyingStream) {
+        this(underlyingStream, false);
+    }
+
+    public Crc32OutputStream(OutputStream underlyingStream, boolean async) {
         this.underlyingStream = underlyingStream;
         this.crc32 = new CRC32();
+        if (async) this.digester = new AsyncDigester(crc32);
     }
 
     @Override
     public synchronized void write(int b) throws IOException {
         underlyingStream.write(b);
-        crc32.update(b);
+        if (digester != null) {
+            byte[] buf = new byte[1];
+            buf[0] = (byte) b;
+            digester.update(buf, 0, 1);
+        } else {
+            crc32.update(b);
+        }
     }
 
     @Override
     public synchronized void write(byte[] b) throws IOException {
-        underlyingStream.write(b);
-        crc32.update(b);
+        write(b, 0, b.length);
     }
 
     @Override
     public synchronized void write(byte[] b, int off, int len) throws IOException {
         underlyingStream.write(b, off, len);
-        crc32.update(b, off, len);
+        if (digester != null) {
+            digester.update(b, off, len);
+        } else {
+            crc32.update(b, off, len);
+        }
     }
 
     @Override
@@ -40,9 +55,21 @@ public class Crc32OutputStream extends OutputStream {
     @Override
     public synchronized void close() throws IOException {
         underlyingStream.close();
+        if (digester != null) {
+            digester.drain();
+            digester.close();
+            digester = null;  // crc32 is final now
+        }
     }
 
     public synchronized long getCrc32() {
+        if (digester != null) {
+            try {
+                digester.drain();
+            } catch (IOException ex) {  // only if interrupted while waiting
+                throw new IllegalStateException("crc32 not available", ex);
+            }
+        }
         return crc32.getValue();
     }
 }
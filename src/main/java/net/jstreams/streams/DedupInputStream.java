@@ -0,0 +1,160 @@
+package net.jstreams.streams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/*
+Reads what DedupOutputStream wrote. Literal chunks are fingerprinted and put in the ChunkStore as they are read;
+references are resolved from it. The store must remember at least what the writer's FingerprintIndex did - an
+LruChunkStore with the same capacity as the writer's LruFingerprintIndex does.
+
+A reference to a chunk the store does not have, or a stream that ends inside a record, is an IOException.
+*/
+public class DedupInputStream extends InputStream {
+
+    private final InputStream underlyingStream;
+    private final ChunkStore store;
+    private final MessageDigest sha256 = DedupOutputStream.newSha256();
+    private final byte[] fingerprint = new byte[DedupOutputStream.FINGERPRINT_LENGTH];
+
+    private boolean headerRead = false;
+    private boolean eof = false;
+    private byte[] current = null;
+    private int currentPos = 0;
+    private long position = 0;
+
+    public DedupInputStream(InputStream underlyingStream) {
+        this(underlyingStream, new LruChunkStore(DedupOutputStream.DEFAULT_INDEX_CAPACITY));
+    }
+
+    public DedupInputStream(InputStream underlyingStream, ChunkStore store) {
+        this.underlyingStream = underlyingStream;
+        this.store = store;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int i = read(b, 0, 1);
+        if (i < 0) return i;
+        else return (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to read() method");
+        }
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to read() method");
+        }
+        if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+        if (len == 0) return 0;
+        while (current == null || currentPos == current.length) {
+            if (!nextChunk()) return -1;
+        }
+        int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current, currentPos, b, off, n);
+        currentPos += n;
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return (current == null) ? 0 : current.length - currentPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        underlyingStream.close();
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        throw new UnsupportedOperationException("mark()/reset() not supported on this stream");
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new UnsupportedOperationException("mark()/reset() not supported on this stream");
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (eof) return false;
+        if (!headerRead) {
+            byte[] magic = new byte[DedupOutputStream.MAGIC.length];
+            int n = readFully(magic, true);
+            if (n == 0) {           // empty stream: nothing was ever written, not even the header
+                eof = true;
+                return false;
+            }
+            if (!Arrays.equals(magic, DedupOutputStream.MAGIC)) {
+                throw new IOException("not a deduplicated stream (bad header)");
+            }
+            headerRead = true;
+        }
+        int type = underlyingStream.read();
+        if (type < 0) {
+            eof = true;
+            return false;
+        }
+        int length = readLength();
+        if (type == DedupOutputStream.LITERAL) {
+            byte[] chunk = new byte[length];
+            readFully(chunk, false);
+            sha256.update(chunk);
+            store.put(sha256.digest(), chunk);
+            current = chunk;
+        } else if (type == DedupOutputStream.REFERENCE) {
+            readFully(fingerprint, false);
+            byte[] chunk = store.get(fingerprint);
+            if (chunk == null || chunk.length != length) {
+                throw new IOException(String.format("unresolvable chunk reference at offset %d (%d bytes)",
+                        position, length));
+            }
+            current = chunk;
+        } else {
+            throw new IOException(String.format("corrupt stream: record type %d at offset %d", type, position));
+        }
+        currentPos = 0;
+        return true;
+    }
+
+    private int readLength() throws IOException {
+        int length = Varint.read(underlyingStream);
+        if (length < 0) throw new EOFException("stream ended inside a chunk record");
+        return length;
+    }
+
+    // returns the number of bytes read, which is less than buf.length only if allowEmpty and the stream was empty
+    private int readFully(byte[] buf, boolean allowEmpty) throws IOException {
+        int n = 0;
+        while (n < buf.length) {
+            int r = underlyingStream.read(buf, n, buf.length - n);
+            if (r < 0) {
+                if (n == 0 && allowEmpty) return 0;
+                throw new EOFException("stream ended inside a chunk record");
+            }
+            n += r;
+        }
+        return n;
+    }
+}
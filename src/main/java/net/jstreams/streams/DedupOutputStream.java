@@ -0,0 +1,303 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/*
+Deduplicating OutputStream: splits the data into content-defined chunks, fingerprints each chunk with SHA-256, and
+writes chunks the FingerprintIndex has seen before as references instead of data. DedupInputStream restores it.
+
+Chunking
+Chunk boundaries come from a gear rolling hash (as in FastCDC): hash = (hash << 1) + GEAR[byte], and a boundary is
+where the top bits of the hash are all zero, so it depends only on the last 64 bytes. An insert or delete therefore
+only changes the chunks around it, and the rest of the stream still deduplicates. Chunks are between minChunkSize and
+maxChunkSize, averaging about minChunkSize + 2^maskBits. The gear table comes from a fixed seed, so the same data
+chunks the same way in every run, which a persistent index depends on.
+
+Pipeline
+Finding boundaries is a shift and an add per byte, and is done inline by the writing thread. Fingerprinting is the
+expensive part, and runs on an executor: each completed chunk is submitted, and the writing thread carries on. Chunks
+are then emitted in order, from the head of a queue of at most maxInFlight chunks; the writer only waits on a
+fingerprint when the queue is full, or on flush()/close(). With a null executor fingerprints are computed inline.
+
+Format
+A 5-byte header ("JSDD", version 1), then one record per chunk:
+  0x01 varint(length) data        literal chunk
+  0x02 varint(length) sha256[32]  reference to an earlier chunk
+The reader fingerprints literal chunks itself, so literal records carry no fingerprint.
+
+Like the other wrappers in this package, instances are synchronized, but meant for one writer.
+*/
+public class DedupOutputStream extends OutputStream {
+
+    static final byte[] MAGIC = {'J', 'S', 'D', 'D', 1};
+    static final int LITERAL = 1;
+    static final int REFERENCE = 2;
+    static final int FINGERPRINT_LENGTH = 32;
+
+    public static final int DEFAULT_MIN_CHUNK_SIZE = 2 * 1024;
+    public static final int DEFAULT_MASK_BITS = 13;            // ~8K average above the minimum
+    public static final int DEFAULT_MAX_CHUNK_SIZE = 64 * 1024;
+    public static final long DEFAULT_INDEX_CAPACITY = 256L * 1024 * 1024;
+
+    private static final long[] GEAR = new long[256];
+    static {
+        Random r = new Random(0x6a53747265616d73L);
+        for (int i = 0; i < GEAR.length; i++) GEAR[i] = r.nextLong();
+    }
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newSha256();
+        }
+    };
+
+    private final OutputStream underlyingStream;
+    private final FingerprintIndex index;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final long boundaryMask;
+    private final int maxInFlight;
+    private final ArrayDeque<PendingChunk> inFlight = new ArrayDeque<PendingChunk>();
+
+    private final byte[] chunk;
+    private int chunkLength = 0;
+    private long hash = 0;
+    private boolean headerWritten = false;
+    private boolean closed = false;
+    private final byte[] recordHeader = new byte[1 + Varint.MAX_INT_LENGTH];
+
+    private long bytesIn = 0;
+    private long bytesOut = 0;
+    private long chunks = 0;
+    private long duplicateChunks = 0;
+
+    private static class PendingChunk {
+        final byte[] data;
+        final int length;
+        final Future<byte[]> fingerprint;   // null when computed inline
+        final byte[] inlineFingerprint;
+
+        PendingChunk(byte[] data, int length, Future<byte[]> fingerprint, byte[] inlineFingerprint) {
+            this.data = data;
+            this.length = length;
+            this.fingerprint = fingerprint;
+            this.inlineFingerprint = inlineFingerprint;
+        }
+    }
+
+    // in-memory LRU index and a private fingerprinting pool, one thread per core
+    public DedupOutputStream(OutputStream underlyingStream) {
+        this(underlyingStream, new LruFingerprintIndex(DEFAULT_INDEX_CAPACITY), newFingerprintPool(), true,
+                DEFAULT_MIN_CHUNK_SIZE, DEFAULT_MASK_BITS, DEFAULT_MAX_CHUNK_SIZE);
+    }
+
+    public DedupOutputStream(OutputStream underlyingStream, FingerprintIndex index, ExecutorService executor) {
+        this(underlyingStream, index, executor, false,
+                DEFAULT_MIN_CHUNK_SIZE, DEFAULT_MASK_BITS, DEFAULT_MAX_CHUNK_SIZE);
+    }
+
+    public DedupOutputStream(OutputStream underlyingStream, FingerprintIndex index, ExecutorService executor,
+                             int minChunkSize, int maskBits, int maxChunkSize) {
+        this(underlyingStream, index, executor, false, minChunkSize, maskBits, maxChunkSize);
+    }
+
+    private DedupOutputStream(OutputStream underlyingStream, FingerprintIndex index, ExecutorService executor,
+                              boolean ownExecutor, int minChunkSize, int maskBits, int maxChunkSize) {
+        if (minChunkSize <= 0 || maxChunkSize < minChunkSize) {
+            throw new IllegalArgumentException("need 0 < minChunkSize <= maxChunkSize");
+        }
+        if (maskBits <= 0 || maskBits >= 32) throw new IllegalArgumentException("maskBits must be in 1..31");
+        this.underlyingStream = underlyingStream;
+        this.index = index;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.boundaryMask = -1L << (64 - maskBits);
+        // enough chunks in flight to keep every fingerprinting thread busy while the head is emitted
+        this.maxInFlight = Math.max(4, 4 * Runtime.getRuntime().availableProcessors());
+        this.chunk = new byte[maxChunkSize];
+    }
+
+    private static ExecutorService newFingerprintPool() {
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DedupFingerprint");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);  // every JRE is required to have it
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        byte[] buf = new byte[1];
+        buf[0] = (byte) b;
+        write(buf, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("attempting to write to a closed stream");
+        if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+        bytesIn += len;
+        int end = off + len;
+        while (off < end) {
+            // bytes that cannot end a chunk are copied without hashing; only the 64 bytes before the minimum
+            // matter to the first possible boundary
+            int skipTo = Math.min(end, off + Math.max(0, minChunkSize - 64 - chunkLength));
+            if (skipTo > off) {
+                System.arraycopy(b, off, chunk, chunkLength, skipTo - off);
+                chunkLength += skipTo - off;
+                off = skipTo;
+                continue;
+            }
+            int limit = Math.min(end, off + (maxChunkSize - chunkLength));
+            int i = off;
+            long h = hash;
+            boolean boundary = false;
+            while (i < limit) {
+                h = (h << 1) + GEAR[b[i++] & 0xFF];
+                if ((h & boundaryMask) == 0 && chunkLength + (i - off) >= minChunkSize) {
+                    boundary = true;
+                    break;
+                }
+            }
+            hash = h;
+            System.arraycopy(b, off, chunk, chunkLength, i - off);
+            chunkLength += i - off;
+            off = i;
+            if (boundary || chunkLength == maxChunkSize) endChunk();
+        }
+    }
+
+    // emits everything written so far, including a partial chunk, and flushes; data after a flush starts a new chunk
+    @Override
+    public synchronized void flush() throws IOException {
+        if (closed) throw new IOException("attempting to flush a closed stream");
+        if (chunkLength > 0) endChunk();
+        emitAll();
+        underlyingStream.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        try {
+            if (chunkLength > 0) endChunk();
+            emitAll();
+            underlyingStream.close();
+        } finally {
+            closed = true;
+            if (ownExecutor) executor.shutdown();
+        }
+    }
+
+    public synchronized long getBytesIn() {
+        return bytesIn;
+    }
+
+    public synchronized long getBytesOut() {
+        return bytesOut;
+    }
+
+    public synchronized long getChunkCount() {
+        return chunks;
+    }
+
+    public synchronized long getDuplicateChunkCount() {
+        return duplicateChunks;
+    }
+
+    private void endChunk() throws IOException {
+        final int length = chunkLength;
+        final byte[] data = Arrays.copyOf(chunk, length);  // the chunk buffer is reused; queued chunks are exact size
+        chunkLength = 0;
+        hash = 0;
+        PendingChunk p;
+        if (executor != null) {
+            Future<byte[]> f = executor.submit(new Callable<byte[]>() {
+                public byte[] call() {
+                    return fingerprint(data, length);
+                }
+            });
+            p = new PendingChunk(data, length, f, null);
+        } else {
+            p = new PendingChunk(data, length, null, fingerprint(data, length));
+        }
+        inFlight.addLast(p);
+        while (inFlight.size() > maxInFlight) emit(inFlight.removeFirst());
+    }
+
+    private static byte[] fingerprint(byte[] data, int length) {
+        MessageDigest md = SHA256.get();
+        md.update(data, 0, length);
+        return md.digest();
+    }
+
+    private void emitAll() throws IOException {
+        while (!inFlight.isEmpty()) emit(inFlight.removeFirst());
+    }
+
+    private void emit(PendingChunk p) throws IOException {
+        byte[] fp = p.inlineFingerprint;
+        if (fp == null) {
+            try {
+                fp = p.fingerprint.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for a chunk fingerprint");
+            } catch (ExecutionException ex) {
+                throw new IOException("fingerprinting failed", ex.getCause());
+            }
+        }
+        if (!headerWritten) {
+            underlyingStream.write(MAGIC);
+            bytesOut += MAGIC.length;
+            headerWritten = true;
+        }
+        chunks++;
+        boolean duplicate = index.addOrTouch(fp, p.length);
+        recordHeader[0] = (byte) (duplicate ? REFERENCE : LITERAL);
+        int n = 1 + Varint.put(recordHeader, 1, p.length);
+        underlyingStream.write(recordHeader, 0, n);
+        if (duplicate) {
+            duplicateChunks++;
+            underlyingStream.write(fp);
+            bytesOut += n + fp.length;
+        } else {
+            underlyingStream.write(p.data, 0, p.length);
+            bytesOut += n + p.length;
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package net.jstreams.streams;
+
+/*
+Decides which block BlockCache evicts. The cache stores blocks in numbered slots and tells the policy what happens to
+each slot; all calls are made under the cache's lock, so implementations need no locking of their own. An instance
+belongs to one cache (init() is called once, by the cache's constructor).
+
+selectVictim() is only called when every slot is occupied. The cache may refuse the victim (it is being read by
+another thread); it then calls onHit() for it and asks again. admit() lets frequency-based policies keep a victim
+that is worth more than the block that would replace it; the new block is then returned to the reader uncached.
+*/
+public interface EvictionPolicy {
+    void init(int slots);
+
+    // every lookup, hit or miss, before anything else
+    void recordAccess(int keyHash);
+
+    void onHit(int slot);
+
+    void onInsert(int slot, int keyHash);
+
+    void onRemove(int slot);
+
+    int selectVictim();
+
+    boolean admit(int candidateKeyHash, int victimSlot);
+}
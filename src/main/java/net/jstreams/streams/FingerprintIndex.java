@@ -0,0 +1,11 @@
+package net.jstreams.streams;
+
+/*
+The set of chunks DedupOutputStream treats as already sent. addOrTouch() is called once for every chunk, in stream
+order, and returns true if the chunk can be sent as a reference. Whatever the index answers, the reader must be able
+to resolve: an index that forgets chunks is fine, an index that remembers chunks the reader's ChunkStore has dropped
+is not. LruFingerprintIndex and LruChunkStore, given the same byte capacity, always agree.
+*/
+public interface FingerprintIndex {
+    boolean addOrTouch(byte[] fingerprint, int chunkLength);
+}
@@ -0,0 +1,88 @@
+package net.jstreams.streams;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/*
+Threads waiting for an index that only moves forward (CoalescingOutputStream's persistedIndex) to reach their own
+target. Waiters are kept in a heap ordered by target, and each parks on a Condition of its own, so moving the index
+wakes exactly the waiters it satisfied - the rest sleep on, instead of all waking to re-check and go back to sleep.
+
+Every method must be called with the owner's lock held; await() releases it while parked, like Condition.await.
+A waiter woken by wakeUpTo() or wakeAll() is already off the queue; one that wakes spuriously, or finds it still has
+to wait, calls await() again and is re-queued.
+*/
+final class IndexWaiters {
+
+    static final class Waiter implements Comparable<Waiter> {
+        final long target;
+        final Condition condition;
+        boolean queued = false;
+
+        Waiter(long target, Condition condition) {
+            this.target = target;
+            this.condition = condition;
+        }
+
+        public int compareTo(Waiter o) {
+            return (target < o.target) ? -1 : ((target == o.target) ? 0 : 1);
+        }
+    }
+
+    private final Lock lock;
+    private final PriorityQueue<Waiter> queue = new PriorityQueue<Waiter>();
+    private long wakeups = 0;
+
+    IndexWaiters(Lock lock) {
+        this.lock = lock;
+    }
+
+    Waiter newWaiter(long target) {
+        return new Waiter(target, lock.newCondition());
+    }
+
+    void await(Waiter w) {
+        if (!w.queued) {
+            queue.add(w);
+            w.queued = true;
+        }
+        w.condition.awaitUninterruptibly();
+    }
+
+    // for a waiter leaving without being woken (its wait was satisfied some other way)
+    void remove(Waiter w) {
+        if (w.queued) {
+            queue.remove(w);
+            w.queued = false;
+        }
+    }
+
+    // wakes the waiters whose target is at or below index; returns how many
+    int wakeUpTo(long index) {
+        int n = 0;
+        Waiter w;
+        while ((w = queue.peek()) != null && w.target <= index) {
+            queue.poll();
+            w.queued = false;
+            w.condition.signal();
+            n++;
+        }
+        wakeups += n;
+        return n;
+    }
+
+    // wakes everyone, whatever their target - for errors and shutdown
+    int wakeAll() {
+        return wakeUpTo(Long.MAX_VALUE);
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    // total waiters woken so far
+    long getWakeupCount() {
+        return wakeups;
+    }
+}
@@ -0,0 +1,43 @@
+package net.jstreams.streams;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+In-memory LRU ChunkStore holding up to capacityBytes of chunk data. Its eviction mirrors LruFingerprintIndex exactly,
+so a DedupInputStream with an LruChunkStore can read what a DedupOutputStream with an LruFingerprintIndex of the same
+capacity wrote.
+*/
+public class LruChunkStore implements ChunkStore {
+
+    private final long capacityBytes;
+    private final LinkedHashMap<ByteBuffer, byte[]> entries = new LinkedHashMap<ByteBuffer, byte[]>(1024, 0.75f, true);
+    private long bytes = 0;
+
+    public LruChunkStore(long capacityBytes) {
+        if (capacityBytes <= 0) throw new IllegalArgumentException("capacity must be positive");
+        this.capacityBytes = capacityBytes;
+    }
+
+    public synchronized void put(byte[] fingerprint, byte[] chunk) {
+        ByteBuffer key = ByteBuffer.wrap(fingerprint);
+        if (entries.get(key) != null) return;
+        entries.put(key, chunk);
+        bytes += chunk.length;
+        Iterator<Map.Entry<ByteBuffer, byte[]>> it = entries.entrySet().iterator();
+        while (bytes > capacityBytes && it.hasNext()) {
+            bytes -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    public synchronized byte[] get(byte[] fingerprint) {
+        return entries.get(ByteBuffer.wrap(fingerprint));
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+}
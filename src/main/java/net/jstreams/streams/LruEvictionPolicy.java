@@ -0,0 +1,58 @@
+package net.jstreams.streams;
+
+/*
+Least recently used: an intrusive doubly linked list over the slot numbers. O(1) for everything.
+*/
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    private int[] prev;
+    private int[] next;
+    private int head = -1;   // most recently used
+    private int tail = -1;   // least recently used
+
+    public void init(int slots) {
+        if (prev != null) throw new IllegalStateException("eviction policy is already in use by a cache");
+        prev = new int[slots];
+        next = new int[slots];
+    }
+
+    public void recordAccess(int keyHash) {
+    }
+
+    public void onHit(int slot) {
+        if (slot == head) return;
+        unlink(slot);
+        linkAtHead(slot);
+    }
+
+    public void onInsert(int slot, int keyHash) {
+        linkAtHead(slot);
+    }
+
+    public void onRemove(int slot) {
+        unlink(slot);
+    }
+
+    public int selectVictim() {
+        return tail;
+    }
+
+    public boolean admit(int candidateKeyHash, int victimSlot) {
+        return true;
+    }
+
+    private void linkAtHead(int slot) {
+        prev[slot] = -1;
+        next[slot] = head;
+        if (head >= 0) prev[head] = slot;
+        head = slot;
+        if (tail < 0) tail = slot;
+    }
+
+    private void unlink(int slot) {
+        if (prev[slot] >= 0) next[prev[slot]] = next[slot];
+        else head = next[slot];
+        if (next[slot] >= 0) prev[next[slot]] = prev[slot];
+        else tail = prev[slot];
+    }
+}
@@ -0,0 +1,44 @@
+package net.jstreams.streams;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+In-memory LRU FingerprintIndex, bounded by the total length of the chunks it vouches for (not by its own size), so
+that it matches an LruChunkStore of the same capacity on the reading side: both see the same sequence of inserts and
+touches, and evict the same entries. A chunk larger than the capacity is never remembered.
+*/
+public class LruFingerprintIndex implements FingerprintIndex {
+
+    private final long capacityBytes;
+    private final LinkedHashMap<ByteBuffer, Integer> entries = new LinkedHashMap<ByteBuffer, Integer>(1024, 0.75f, true);
+    private long bytes = 0;
+
+    public LruFingerprintIndex(long capacityBytes) {
+        if (capacityBytes <= 0) throw new IllegalArgumentException("capacity must be positive");
+        this.capacityBytes = capacityBytes;
+    }
+
+    public synchronized boolean addOrTouch(byte[] fingerprint, int chunkLength) {
+        ByteBuffer key = ByteBuffer.wrap(fingerprint);
+        if (entries.get(key) != null) return true;   // get() moves it to the young end
+        entries.put(key, chunkLength);
+        bytes += chunkLength;
+        Iterator<Map.Entry<ByteBuffer, Integer>> it = entries.entrySet().iterator();
+        while (bytes > capacityBytes && it.hasNext()) {
+            bytes -= it.next().getValue();
+            it.remove();
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+}
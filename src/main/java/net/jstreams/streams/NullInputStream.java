@@ -6,7 +6,7 @@ import java.io.InputStream;
 import java.util.Arrays;
 
 
-public class NullInputStream extends InputStream {
+public class NullInputStream extends InputStream implements Seekable, PositionedReadable {
 
     private long streamLength;
     private int cursor = 0;
@@ -54,6 +54,22 @@ public class NullInputStream extends InputStream {
         return len;
     }
 
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        if (streamClosed) throw new IOException("attempting to read from a closed stream");
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to read() method");
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (position < 0) throw new EOFException("Cannot read before the beginning of file");
+        if (len == 0) return 0;
+        if (position >= streamLength) return -1;
+        if (len > streamLength - position) len = (int) (streamLength - position);
+        Arrays.fill(b, off, off+len, (byte) 0);
+        return len;
+    }
+
     public void seek(long n) throws IOException, EOFException {
 
         if (streamClosed) throw new IOException("attempting to seek into a closed stream;");
@@ -0,0 +1,158 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Checksum;
+
+/*
+Copies from a PositionedReadable source to an OutputStream with many reads in flight, so a copy from high-latency
+storage is not limited to one request at a time.
+
+The source is split into ranges of rangeSize bytes. The copying thread keeps up to maxInFlightBytes / rangeSize
+ranges being read on the executor, and writes the completed ranges to the sink in order - so the sink sees one
+ordinary sequential stream (a CoalescingOutputStream works well as the sink, as it lets the writes overlap with the
+backend too). Memory is bounded by the in-flight limit: range buffers are reused, and a range is only scheduled
+when an earlier one has been written out.
+
+Optionally, the data is checksummed in order as it is written, and a listener is told the progress after every
+range. If a read or write fails, the remaining reads are cancelled and the copy throws; nothing is retried.
+
+The copier holds no state between copies, and one instance may be used for several copies at once.
+*/
+public class ParallelRangeCopier {
+
+    public static final int DEFAULT_RANGE_SIZE = 8 * 1024 * 1024;
+    public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 128L * 1024 * 1024;
+
+    public interface ProgressListener {
+        // totalBytes is -1 when copying to the end of a source of unknown length
+        void progress(long bytesCopied, long totalBytes);
+    }
+
+    private final ExecutorService executor;
+    private final int rangeSize;
+    private final int maxInFlightRanges;
+
+    private static final class Range {
+        final long position;
+        final Future<Integer> read;
+        final byte[] buffer;
+
+        Range(long position, Future<Integer> read, byte[] buffer) {
+            this.position = position;
+            this.read = read;
+            this.buffer = buffer;
+        }
+    }
+
+    public ParallelRangeCopier(ExecutorService executor) {
+        this(executor, DEFAULT_RANGE_SIZE, DEFAULT_MAX_IN_FLIGHT_BYTES);
+    }
+
+    public ParallelRangeCopier(ExecutorService executor, int rangeSize, long maxInFlightBytes) {
+        if (rangeSize <= 0) throw new IllegalArgumentException("range size must be positive");
+        if (maxInFlightBytes < rangeSize) throw new IllegalArgumentException("in-flight limit is below one range");
+        this.executor = executor;
+        this.rangeSize = rangeSize;
+        this.maxInFlightRanges = (int) Math.min(Integer.MAX_VALUE, maxInFlightBytes / rangeSize);
+    }
+
+    // copies the whole source; returns the number of bytes copied
+    public long copy(PositionedReadable source, OutputStream sink) throws IOException {
+        return copy(source, 0, -1, sink, null, null);
+    }
+
+    /*
+    Copies length bytes starting at offset, or everything from offset to the end of the source if length is -1,
+    and flushes the sink (it is not closed). Returns the number of bytes copied, which is less than length only if
+    the source ended first.
+    */
+    public long copy(PositionedReadable source, long offset, long length, OutputStream sink, Checksum checksum,
+                     ProgressListener listener) throws IOException {
+        if (offset < 0) throw new IllegalArgumentException("offset cannot be negative");
+        if (length < -1) throw new IllegalArgumentException("length must be -1 (to the end) or more");
+        long end = (length < 0) ? Long.MAX_VALUE : offset + length;
+        ArrayDeque<Range> inFlight = new ArrayDeque<Range>();
+        ArrayDeque<byte[]> freeBuffers = new ArrayDeque<byte[]>();
+        long nextPosition = offset;
+        long copied = 0;
+        boolean sourceEnded = false;
+        try {
+            while (true) {
+                while (!sourceEnded && nextPosition < end && inFlight.size() < maxInFlightRanges) {
+                    int size = (int) Math.min(rangeSize, end - nextPosition);
+                    byte[] buffer = freeBuffers.poll();
+                    if (buffer == null) buffer = new byte[rangeSize];
+                    inFlight.addLast(new Range(nextPosition, executor.submit(new RangeRead(source, nextPosition,
+                            buffer, size)), buffer));
+                    nextPosition += size;
+                }
+                Range range = inFlight.pollFirst();
+                if (range == null) break;
+                int n = await(range);
+                if (n > 0) {
+                    sink.write(range.buffer, 0, n);
+                    if (checksum != null) checksum.update(range.buffer, 0, n);
+                    copied += n;
+                    if (listener != null) listener.progress(copied, length);
+                }
+                freeBuffers.add(range.buffer);
+                if (n < Math.min(rangeSize, end - range.position)) {
+                    sourceEnded = true;     // short range: the source ends here; drop the reads beyond it
+                    cancelAll(inFlight);
+                }
+            }
+            sink.flush();
+            return copied;
+        } finally {
+            cancelAll(inFlight);   // only non-empty if we are leaving with an exception
+        }
+    }
+
+    private static int await(Range range) throws IOException {
+        try {
+            return range.read.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a range read");
+        } catch (ExecutionException ex) {
+            throw new IOException("reading range at " + range.position + " failed", ex.getCause());
+        }
+    }
+
+    private static void cancelAll(ArrayDeque<Range> inFlight) {
+        Range r;
+        while ((r = inFlight.pollFirst()) != null) r.read.cancel(false);
+    }
+
+    // reads until size bytes or the end of the source; returns the number of bytes read
+    private static final class RangeRead implements Callable<Integer> {
+        private final PositionedReadable source;
+        private final long position;
+        private final byte[] buffer;
+        private final int size;
+
+        RangeRead(PositionedReadable source, long position, byte[] buffer, int size) {
+            this.source = source;
+            this.position = position;
+            this.buffer = buffer;
+            this.size = size;
+        }
+
+        public Integer call() throws IOException {
+            int total = 0;
+            while (total < size) {
+                int n = source.read(position + total, buffer, total, size - total);
+                if (n < 0) break;
+                total += n;
+            }
+            return total;
+        }
+    }
+}
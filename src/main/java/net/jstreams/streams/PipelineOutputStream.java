@@ -0,0 +1,92 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/*
+What StreamPipeline builds: the top of the stage stack, behind at most one lock. Thread-safe whenever the pipeline
+is (it takes the lock itself when its top stage is not).
+*/
+public class PipelineOutputStream extends OutputStream {
+
+    private final OutputStream head;
+    private final boolean locked;
+    private final List<Checksum> checksums;
+    private final List<Deflater> deflaters;
+    private final String plan;
+    private boolean closed = false;
+
+    PipelineOutputStream(OutputStream head, boolean locked, List<Checksum> checksums, List<Deflater> deflaters,
+                         String plan) {
+        this.head = head;
+        this.locked = locked;
+        this.checksums = Collections.unmodifiableList(checksums);
+        this.deflaters = deflaters;
+        this.plan = plan;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to write() method");
+        }
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (locked) {
+            synchronized (this) {
+                head.write(b, off, len);
+            }
+        } else {
+            head.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (locked) {
+            synchronized (this) {
+                head.flush();
+            }
+        } else {
+            head.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            head.close();
+        } finally {
+            for (Deflater d : deflaters) d.end();   // DeflaterOutputStream only ends the deflaters it made itself
+        }
+    }
+
+    // the pipeline's checksums, writer side first; each covers the bytes as they were at its stage. Fused ones are
+    // up to date once flush() or close() has returned.
+    public List<Checksum> getChecksums() {
+        return checksums;
+    }
+
+    public String getPlan() {
+        return plan;
+    }
+
+    @Override
+    public String toString() {
+        return "PipelineOutputStream[" + plan + "]";
+    }
+}
@@ -0,0 +1,12 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+
+/*
+Reads at an absolute position, without moving (or depending on) any stream cursor, so implementations can serve
+many threads at once. Returns the number of bytes read, which may be less than len, or -1 if position is at or past
+the end of the data.
+*/
+public interface PositionedReadable {
+    int read(long position, byte[] b, int off, int len) throws IOException;
+}
@@ -0,0 +1,240 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Two-lane CoalescingOutputStream, for a few small urgent records (commit markers, heartbeats) that share a stream with
+bulk data: they should persist in milliseconds, not after the megabytes queued ahead of them. Each lane is a
+CoalescingOutputStream of its own - a small priority ring and the normal bulk ring, each with its shuttle - over
+one underlying stream, and the two shuttles take turns at it a batch at a time, the priority shuttle first: when
+both have a batch ready, the priority batch goes next. So an urgent record waits for at most the one bulk batch
+already being written, and keeping the bulk max buffer size down keeps that wait short.
+
+1. Order is kept within each lane - a lane is an ordinary CoalescingOutputStream - but not across lanes: a priority
+   record can come out ahead of bulk data written before it. That is the point.
+2. Batches are never interleaved, so a write is contiguous in the output as long as it fits in its lane's max buffer
+   size; a bigger bulk write is split into batches, and priority batches can land between the pieces.
+3. flush() covers both lanes; flush(Lane) waits for one lane only, so flush(Lane.PRIORITY) does not wait for bulk.
+4. Each lane keeps its own options (buffer sizes, retry, spill directory, ...) and its own errors: a failed bulk
+   batch fails later bulk writes and flushes, not priority ones. The underlying stream is closed when both lanes are.
+
+Turn-taking: a shuttle's batch is everything it writes up to and including its flush(). Each lane writes to a
+LaneSink that takes the turn on the batch's first write and hands it back after the flush, or on an error.
+*/
+public class PriorityCoalescingOutputStream extends OutputStream {
+
+    public enum Lane { PRIORITY, BULK }
+
+    public static final int DEFAULT_PRIORITY_BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream underlyingStream;
+    private final CoalescingOutputStream priority;
+    private final CoalescingOutputStream bulk;
+
+    private final ReentrantLock turnLock = new ReentrantLock();
+    private final Condition turnFreed = turnLock.newCondition();
+    private boolean turnTaken = false;
+    private int priorityWaiting = 0;
+    private int lanesOpen = 2;
+    private long priorityBatches = 0;
+    private long bulkBatches = 0;
+    private long bulkYields = 0;   // times the bulk shuttle let a waiting priority batch go first
+
+    public PriorityCoalescingOutputStream(OutputStream underlyingStream) {
+        this(underlyingStream, new CoalescingOptions(), new CoalescingOptions()
+                .setInitialBufferSize(DEFAULT_PRIORITY_BUFFER_SIZE).setMaxBufferSize(DEFAULT_PRIORITY_BUFFER_SIZE));
+    }
+
+    public PriorityCoalescingOutputStream(OutputStream underlyingStream, CoalescingOptions bulkOptions,
+                                          CoalescingOptions priorityOptions) {
+        this.underlyingStream = underlyingStream;
+        this.priority = new CoalescingOutputStream(new LaneSink(true), priorityOptions);
+        this.bulk = new CoalescingOutputStream(new LaneSink(false), bulkOptions);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        bulk.write(b);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        bulk.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        bulk.write(b, off, len);
+    }
+
+    public void write(Lane lane, byte[] b, int off, int len) throws IOException {
+        lane(lane).write(b, off, len);
+    }
+
+    // both lanes: returns once everything written to either lane before the call is persisted
+    @Override
+    public void flush() throws IOException {
+        IOException error = null;
+        try {
+            priority.flush();
+        } catch (IOException ex) {
+            error = ex;
+        }
+        bulk.flush();
+        if (error != null) throw error;
+    }
+
+    public void flush(Lane lane) throws IOException {
+        lane(lane).flush();
+    }
+
+    // the lane as a stream of its own; closing it closes just that lane
+    public CoalescingOutputStream lane(Lane lane) {
+        return (lane == Lane.PRIORITY) ? priority : bulk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        try {
+            priority.close();
+        } catch (IOException ex) {
+            error = ex;
+        }
+        bulk.close();
+        if (error != null) throw error;
+    }
+
+    public long getPriorityBatchCount() {
+        turnLock.lock();
+        try {
+            return priorityBatches;
+        } finally {
+            turnLock.unlock();
+        }
+    }
+
+    public long getBulkBatchCount() {
+        turnLock.lock();
+        try {
+            return bulkBatches;
+        } finally {
+            turnLock.unlock();
+        }
+    }
+
+    // times a bulk batch was ready but a priority batch went first
+    public long getBulkYieldCount() {
+        turnLock.lock();
+        try {
+            return bulkYields;
+        } finally {
+            turnLock.unlock();
+        }
+    }
+
+    private void takeTurn(boolean isPriority) {
+        turnLock.lock();
+        try {
+            if (isPriority) {
+                priorityWaiting++;
+                while (turnTaken) turnFreed.awaitUninterruptibly();
+                priorityWaiting--;
+                priorityBatches++;
+            } else {
+                boolean yielded = false;
+                while (turnTaken || priorityWaiting > 0) {
+                    if (!turnTaken && !yielded) {
+                        yielded = true;
+                        bulkYields++;
+                    }
+                    turnFreed.awaitUninterruptibly();
+                }
+                bulkBatches++;
+            }
+            turnTaken = true;
+        } finally {
+            turnLock.unlock();
+        }
+    }
+
+    private void giveTurn() {
+        turnLock.lock();
+        try {
+            turnTaken = false;
+            turnFreed.signalAll();  // two shuttles at most: whoever should go next re-checks
+        } finally {
+            turnLock.unlock();
+        }
+    }
+
+    private void laneClosed() throws IOException {
+        boolean last;
+        turnLock.lock();
+        try {
+            last = (--lanesOpen == 0);
+        } finally {
+            turnLock.unlock();
+        }
+        if (last) underlyingStream.close();
+    }
+
+    // what a lane's shuttle writes to; only ever called from that shuttle (and, for close, the lane's closer)
+    private final class LaneSink extends OutputStream {
+        private final boolean isPriority;
+        private boolean holdingTurn = false;
+        private boolean closed = false;
+
+        LaneSink(boolean isPriority) {
+            this.isPriority = isPriority;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!holdingTurn) {
+                takeTurn(isPriority);
+                holdingTurn = true;
+            }
+            boolean ok = false;
+            try {
+                underlyingStream.write(b, off, len);
+                ok = true;
+            } finally {
+                if (!ok) release();   // the shuttle drops or retries the batch; either way this turn is over
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!holdingTurn) {
+                takeTurn(isPriority);
+                holdingTurn = true;
+            }
+            try {
+                underlyingStream.flush();
+            } finally {
+                release();
+            }
+        }
+
+        private void release() {
+            holdingTurn = false;
+            giveTurn();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            laneClosed();
+        }
+    }
+}
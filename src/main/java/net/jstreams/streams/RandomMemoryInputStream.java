@@ -6,7 +6,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.SecureRandom;
 
-public class RandomMemoryInputStream extends InputStream {
+public class RandomMemoryInputStream extends InputStream implements Seekable, PositionedReadable {
 
     private static final int bufsize = 8 * 1024 * 1024; //64MB buffer
     private static final byte[] buffer = new byte[2*bufsize];
@@ -78,6 +78,26 @@ public class RandomMemoryInputStream extends InputStream {
         return len;
     }
 
+    // same content as the sequential read would return at that position; safe to call from many threads at once
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        if (streamClosed) throw new IOException("attempting to read from a closed stream");
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to read() method");
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (position < 0) throw new EOFException("Cannot read before the beginning of file");
+        if (len == 0) return 0;
+        if (position >= streamLength) return -1;
+        if (len > bufsize) len = bufsize;
+        if (len > streamLength - position) len = (int) (streamLength - position);
+
+        int readOffset = (int) (position % bufsize);
+        System.arraycopy(buffer, readOffset, b, off, len);
+        return len;
+    }
+
     public void seek(long n) throws IOException, EOFException {
 
         if (streamClosed) throw new IOException("attempting to seek into a closed stream;");
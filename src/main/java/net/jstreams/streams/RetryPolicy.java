@@ -0,0 +1,78 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+When and how long CoalescingOutputStream's shuttle retries a batch the underlying stream failed to write or flush.
+
+A batch is retried up to maxRetries times in a row, with exponential backoff (initialBackoffMillis, doubling up to
+maxBackoffMillis, each wait jittered down to as little as half so streams that failed together don't retry together).
+On top of that, the retry budget caps the retries over the lifetime of the policy; a policy shared by several streams
+shares its budget, so a backend that is down for good cannot keep every stream retrying forever.
+
+Subclasses can override isRetryable() to give up at once on errors that retrying will not fix.
+*/
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 100;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 10 * 1000;
+
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final AtomicLong remainingBudget = new AtomicLong(Long.MAX_VALUE);
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_RETRIES, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    public RetryPolicy(int maxRetries, long initialBackoffMillis, long maxBackoffMillis) {
+        if (maxRetries < 0) throw new IllegalArgumentException("max retries cannot be negative");
+        if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+            throw new IllegalArgumentException("need 0 <= initial backoff <= max backoff");
+        }
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    // total retries allowed over the life of this policy, across all the streams using it
+    public RetryPolicy setRetryBudget(long retries) {
+        if (retries < 0) throw new IllegalArgumentException("retry budget cannot be negative");
+        remainingBudget.set(retries);
+        return this;
+    }
+
+    public long getRemainingBudget() {
+        return remainingBudget.get();
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    protected boolean isRetryable(IOException ex) {
+        return true;
+    }
+
+    // attempt is 1 for the first retry of a batch. Takes a retry from the budget if it returns true.
+    boolean shouldRetry(IOException ex, int attempt) {
+        if (attempt > maxRetries || !isRetryable(ex)) return false;
+        while (true) {
+            long budget = remainingBudget.get();
+            if (budget <= 0) return false;
+            if (budget == Long.MAX_VALUE || remainingBudget.compareAndSet(budget, budget - 1)) return true;
+        }
+    }
+
+    long backoffMillis(int attempt) {
+        long backoff = initialBackoffMillis;
+        for (int i = 1; i < attempt && backoff < maxBackoffMillis; i++) backoff *= 2;
+        backoff = Math.min(backoff, maxBackoffMillis);
+        if (backoff <= 1) return backoff;
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+}
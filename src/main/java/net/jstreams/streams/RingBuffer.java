@@ -0,0 +1,172 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/*
+Circular byte store addressed by logical stream positions. The caller owns all the bookkeeping (which logical range
+is live) and the locking; the ring only maps a logical position to a physical slot and copies bytes in and out.
+
+The storage is a list of equal-sized segments, so a ring can be one plain array, a set of slabs borrowed from a
+SlabBufferPool (on- or off-heap), or - past the 2G limit of one array or ByteBuffer - several large segments.
+
+Addressing is 64-bit throughout: logical positions are non-negative longs (at 10GB/s a stream takes decades to run
+out), and physical offsets within the ring are longs until they are split into a segment and an int offset in it.
+When the capacity is a power of two, position to slot is a mask rather than a division, and likewise segment and
+offset when the segment size is a power of two - the usual case, since rings grow by doubling and slabs are sized
+in powers of two. Other sizes work too, at the cost of a division per copy.
+*/
+class RingBuffer {
+
+    static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    private final ByteBuffer[] segments;
+    private final int segmentSize;
+    private final int segmentShift;   // log2(segmentSize), or -1 if it is not a power of two
+    private final long capacity;
+    private final long mask;          // capacity - 1, or -1 if capacity is not a power of two
+
+    RingBuffer(int capacity) {
+        this(new ByteBuffer[] {ByteBuffer.wrap(new byte[capacity])});
+    }
+
+    RingBuffer(ByteBuffer[] segments) {
+        if (segments.length == 0) throw new IllegalArgumentException("ring needs at least one segment");
+        this.segments = segments;
+        this.segmentSize = segments[0].capacity();
+        if (segmentSize <= 0) throw new IllegalArgumentException("ring capacity must be positive");
+        for (ByteBuffer segment : segments) {
+            if (segment.capacity() != segmentSize) throw new IllegalArgumentException("ring segments differ in size");
+        }
+        this.capacity = (long) segmentSize * segments.length;
+        this.segmentShift = isPowerOfTwo(segmentSize) ? Integer.numberOfTrailingZeros(segmentSize) : -1;
+        this.mask = isPowerOfTwo(capacity) ? capacity - 1 : -1;
+    }
+
+    // a heap (or, if direct, off-heap) ring of at least capacity bytes, in segments of up to MAX_SEGMENT_SIZE
+    static RingBuffer allocate(long capacity, boolean direct) {
+        if (capacity <= 0) throw new IllegalArgumentException("ring capacity must be positive");
+        int segmentSize = (int) Math.min(capacity, MAX_SEGMENT_SIZE);
+        long count = (capacity + segmentSize - 1) / segmentSize;
+        if (count > Integer.MAX_VALUE) throw new IllegalArgumentException("ring too large: " + capacity);
+        ByteBuffer[] segments = new ByteBuffer[(int) count];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = direct ? ByteBuffer.allocateDirect(segmentSize) : ByteBuffer.wrap(new byte[segmentSize]);
+        }
+        return new RingBuffer(segments);
+    }
+
+    private static boolean isPowerOfTwo(long n) {
+        return (n & (n - 1)) == 0;
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    ByteBuffer[] segments() {
+        return segments;
+    }
+
+    // physical offset of a logical position
+    private long slot(long position) {
+        return (mask >= 0) ? (position & mask) : (position % capacity);
+    }
+
+    private ByteBuffer segmentAt(long physical) {
+        return segments[(int) ((segmentShift >= 0) ? (physical >>> segmentShift) : (physical / segmentSize))];
+    }
+
+    private int offsetInSegment(long physical) {
+        return (int) ((segmentShift >= 0) ? (physical & (segmentSize - 1)) : (physical % segmentSize));
+    }
+
+    // the physical offset after a run that ended at the end of a segment, or earlier
+    private long advance(long physical, int run) {
+        physical += run;
+        return (physical == capacity) ? 0 : physical;
+    }
+
+    void put(long startpoint, byte[] content, int contentOffset, int length) {
+        long physical = slot(startpoint);
+        while (length > 0) {
+            int segmentOffset = offsetInSegment(physical);
+            int run = Math.min(length, segmentSize - segmentOffset);
+            ByteBuffer segment = segmentAt(physical);
+            if (segment.hasArray()) {
+                System.arraycopy(content, contentOffset, segment.array(), segment.arrayOffset() + segmentOffset, run);
+            } else {
+                ByteBuffer dup = segment.duplicate();
+                dup.position(segmentOffset);
+                dup.put(content, contentOffset, run);
+            }
+            contentOffset += run;
+            length -= run;
+            physical = advance(physical, run);
+        }
+    }
+
+    void get(long startpoint, byte[] dest, int destOffset, int length) {
+        long physical = slot(startpoint);
+        while (length > 0) {
+            int segmentOffset = offsetInSegment(physical);
+            int run = Math.min(length, segmentSize - segmentOffset);
+            ByteBuffer segment = segmentAt(physical);
+            if (segment.hasArray()) {
+                System.arraycopy(segment.array(), segment.arrayOffset() + segmentOffset, dest, destOffset, run);
+            } else {
+                ByteBuffer dup = segment.duplicate();
+                dup.position(segmentOffset);
+                dup.get(dest, destOffset, run);
+            }
+            destOffset += run;
+            length -= run;
+            physical = advance(physical, run);
+        }
+    }
+
+    // writes [startpoint, startpoint+length) straight from the ring. Heap segments are written without a copy;
+    // off-heap segments go through scratch.
+    void writeTo(OutputStream out, long startpoint, long length, byte[] scratch) throws IOException {
+        long physical = slot(startpoint);
+        while (length > 0) {
+            int segmentOffset = offsetInSegment(physical);
+            int run = (int) Math.min(length, segmentSize - segmentOffset);
+            ByteBuffer segment = segmentAt(physical);
+            if (segment.hasArray()) {
+                out.write(segment.array(), segment.arrayOffset() + segmentOffset, run);
+            } else {
+                run = Math.min(run, scratch.length);
+                ByteBuffer dup = segment.duplicate();
+                dup.position(segmentOffset);
+                dup.get(scratch, 0, run);
+                out.write(scratch, 0, run);
+            }
+            length -= run;
+            physical = advance(physical, run);
+        }
+    }
+
+    // copies the live range [from, to) of this ring into dest, at the same logical positions
+    void copyTo(RingBuffer dest, long from, long to) {
+        if (to - from > dest.capacity()) throw new IllegalArgumentException("live data does not fit in target ring");
+        byte[] scratch = null;
+        long position = from;
+        while (position < to) {
+            long physical = slot(position);
+            int segmentOffset = offsetInSegment(physical);
+            int run = (int) Math.min(to - position, segmentSize - segmentOffset);
+            ByteBuffer segment = segmentAt(physical);
+            if (segment.hasArray()) {
+                dest.put(position, segment.array(), segment.arrayOffset() + segmentOffset, run);
+            } else {
+                if (scratch == null) scratch = new byte[Math.min(segmentSize, 64 * 1024)];
+                run = Math.min(run, scratch.length);
+                get(position, scratch, 0, run);
+                dest.put(position, scratch, 0, run);
+            }
+            position += run;
+        }
+    }
+}
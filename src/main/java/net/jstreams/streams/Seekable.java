@@ -0,0 +1,12 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+
+/*
+A stream with a movable cursor.
+*/
+public interface Seekable {
+    void seek(long n) throws IOException;
+
+    long getPos() throws IOException;
+}
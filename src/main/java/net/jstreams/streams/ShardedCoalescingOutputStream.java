@@ -0,0 +1,270 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Unordered sibling of CoalescingOutputStream, for writers whose records are self-contained and need no order across
+threads. Instead of one ring behind one lock, there are several lanes, each a ring with its own lock; a thread is
+given a lane on its first write and keeps it, so writers on different lanes never contend. One shuttle drains the
+lanes round-robin into a staging batch and writes each batch to the underlying stream with one write and a flush.
+
+What is kept:
+1. Each write (up to the max buffer size; bigger ones are split like in CoalescingOutputStream) is contiguous in
+   the output, and one thread's writes come out in the order it made them.
+2. flush() covers all lanes: it returns once everything any thread wrote before the call is persisted.
+3. A backend error is kept and thrown by every later write and flush, as CoalescingOutputStream without a
+   RetryPolicy does; the failed batch is dropped.
+
+What is not: writes from different threads come out in whatever order the shuttle met them. Only the max buffer size
+is taken from CoalescingOptions - each lane's ring is that size, allocated on the lane's first write, and the staging
+batch is that size too. Retry, buffer pools, idle release and wait strategies are CoalescingOutputStream features.
+
+Locking: a writer takes only its lane's lock. The shuttle takes each lane's lock just long enough to copy the lane's
+pending bytes into the batch, which frees the lane's space at once, so writers keep going while the batch is being
+written. When every lane is empty the shuttle parks; writers publish their lane's index before they check whether
+it is parked (and it marks itself parked before it re-checks the lanes), so a wake-up cannot be lost.
+*/
+public class ShardedCoalescingOutputStream extends OutputStream {
+
+    private final OutputStream underlyingStream;
+    private final int blocksize;
+    private final Lane[] lanes;
+    private final AtomicInteger nextLane = new AtomicInteger();
+    private final ThreadLocal<Lane> threadLane = new ThreadLocal<Lane>() {
+        @Override
+        protected Lane initialValue() {
+            return lanes[(nextLane.getAndIncrement() & Integer.MAX_VALUE) % lanes.length];
+        }
+    };
+
+    private volatile boolean streamClosed = false;
+    private volatile boolean shuttleStopping = false;
+    private volatile boolean shuttleParked = false;
+    private volatile IOException lastError = null;
+    private volatile Thread shuttleThread = null;
+    private volatile long batchCount = 0;
+
+    private final ReentrantLock persistLock = new ReentrantLock();
+    private final Condition batchPersisted = persistLock.newCondition();
+
+    private final class Lane {
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition spaceFreed = lock.newCondition();
+        RingBuffer ring = null;
+        // both written under lock, and read without it by the shuttle before it parks
+        volatile long writtenIndex = 0;
+        volatile long drainedIndex = 0;   // copied out by the shuttle
+        volatile long persistedIndex = 0; // shuttle only
+
+        long pending() {
+            return writtenIndex - drainedIndex;
+        }
+    }
+
+    public ShardedCoalescingOutputStream(OutputStream underlyingStream) {
+        this(underlyingStream, Runtime.getRuntime().availableProcessors(), new CoalescingOptions());
+    }
+
+    public ShardedCoalescingOutputStream(OutputStream underlyingStream, int laneCount, CoalescingOptions options) {
+        if (laneCount <= 0) throw new IllegalArgumentException("need at least one lane");
+        this.underlyingStream = underlyingStream;
+        this.blocksize = options.getMaxBufferSize();
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) lanes[i] = new Lane();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to write() method");
+        }
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to write() method");
+        }
+        if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+        if (shuttleThread == null) startShuttle();
+        Lane lane = threadLane.get();
+        while (len > 0) {
+            int n = Math.min(len, blocksize);
+            writeToLane(lane, b, off, n);
+            off += n;
+            len -= n;
+        }
+        if (lastError != null) throw lastError; // throw any exceptions that happened in Shuttle
+    }
+
+    private void writeToLane(Lane lane, byte[] b, int off, int len) throws IOException {
+        lane.lock.lock();
+        try {
+            if (streamClosed) throw new IOException("attempting to write to a closed stream");
+            if (lane.ring == null) lane.ring = new RingBuffer(blocksize);
+            while (lane.ring.capacity() - lane.pending() < len) {
+                wakeShuttle();
+                lane.spaceFreed.awaitUninterruptibly();
+            }
+            lane.ring.put(lane.writtenIndex, b, off, len);
+            lane.writtenIndex += len;
+        } finally {
+            lane.lock.unlock();
+        }
+        wakeShuttle();
+    }
+
+    private void wakeShuttle() {
+        if (shuttleParked) LockSupport.unpark(shuttleThread);
+    }
+
+    private synchronized void startShuttle() {
+        if (shuttleThread != null) return;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                shuttle();
+            }
+        }, "Shuttle");
+        t.start();
+        shuttleThread = t;
+    }
+
+    private void shuttle() {
+        byte[] batch = new byte[blocksize];
+        long[] takenTo = new long[lanes.length];
+        boolean[] taken = new boolean[lanes.length];
+        int next = 0;
+        while (true) {
+            int batchLength = 0;
+            boolean full = false;
+            for (int i = 0; i < lanes.length && !full; i++) {
+                int l = (next + i) % lanes.length;
+                Lane lane = lanes[l];
+                lane.lock.lock();
+                try {
+                    int n = (int) lane.pending();
+                    if (n == 0) continue;
+                    if (n > batch.length - batchLength) {  // whole lanes only, so no write is split
+                        full = true;
+                        next = l;                          // this lane goes first in the next batch
+                        continue;
+                    }
+                    lane.ring.get(lane.drainedIndex, batch, batchLength, n);
+                    batchLength += n;
+                    lane.drainedIndex = lane.writtenIndex;
+                    takenTo[l] = lane.writtenIndex;
+                    taken[l] = true;
+                    lane.spaceFreed.signalAll();
+                } finally {
+                    lane.lock.unlock();
+                }
+            }
+            if (!full) next = (next + 1) % lanes.length;
+
+            if (batchLength == 0) {
+                if (shuttleStopping) return;
+                shuttleParked = true;
+                if (!anyPending() && !shuttleStopping) LockSupport.park(this);
+                shuttleParked = false;
+                continue;
+            }
+
+            try {
+                underlyingStream.write(batch, 0, batchLength);
+                underlyingStream.flush();
+            } catch (IOException ex) {
+                lastError = ex;     // the batch is dropped; flush() and later writes report it
+            }
+            batchCount++;
+            persistLock.lock();
+            try {
+                for (int l = 0; l < lanes.length; l++) {
+                    if (taken[l]) {
+                        lanes[l].persistedIndex = takenTo[l];
+                        taken[l] = false;
+                    }
+                }
+                batchPersisted.signalAll();
+            } finally {
+                persistLock.unlock();
+            }
+        }
+    }
+
+    private boolean anyPending() {
+        for (Lane lane : lanes) {
+            if (lane.pending() != 0) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (streamClosed) throw new IOException("attempting to flush a closed stream");
+        flushInternal();
+    }
+
+    private void flushInternal() throws IOException {
+        long[] targets = new long[lanes.length];
+        for (int l = 0; l < lanes.length; l++) targets[l] = lanes[l].writtenIndex;
+        persistLock.lock();
+        try {
+            for (int l = 0; l < lanes.length; l++) {
+                while (lanes[l].persistedIndex < targets[l] && lastError == null) {
+                    wakeShuttle();
+                    batchPersisted.awaitUninterruptibly();
+                }
+            }
+        } finally {
+            persistLock.unlock();
+        }
+        if (lastError != null) throw lastError;  // throw any exceptions that happened in Shuttle
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (streamClosed) return;
+        streamClosed = true;
+        for (Lane lane : lanes) {   // any write that got in before the close has finished its copy after this
+            lane.lock.lock();
+            lane.lock.unlock();
+        }
+        IOException flushError = null;
+        try {
+            flushInternal();
+        } catch (IOException ex) {
+            flushError = ex;   // still shut the shuttle down, then report it
+        }
+        shuttleStopping = true;
+        Thread t = shuttleThread;
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        underlyingStream.close();
+        if (flushError != null) throw flushError;
+    }
+}
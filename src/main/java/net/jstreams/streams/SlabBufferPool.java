@@ -0,0 +1,226 @@
+package net.jstreams.streams;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+A pool of fixed-size slabs with a hard byte budget, shared by any number of streams. Every byte the pool hands out -
+slabs, and transient reservations for things like the shuttle's staging copy - is counted against the budget, so the
+budget is a ceiling on the memory of everything that borrows from the pool.
+
+Budget is a fair semaphore with one permit per slab. A borrower that has to wait for budget queues behind earlier
+waiters, so when the budget is exhausted the streams are served in arrival order and a stream asking for a lot
+cannot be starved by a stream asking for a little. Non-blocking tryAcquire/tryReserve also honor the queue.
+
+Free slabs are kept on lock-striped free lists, so borrowers on different threads rarely touch the same lock.
+Slabs are allocated lazily, and are never allocated beyond the budget.
+*/
+public class SlabBufferPool {
+
+    private static final int STRIPES = 16;
+
+    private final int slabSize;
+    private final int totalSlabs;
+    private final boolean direct;
+    private final Semaphore permits;
+    private final ArrayDeque<ByteBuffer>[] freeLists;
+
+    private final AtomicLong slabsInUse = new AtomicLong(0);
+    private final AtomicLong peakSlabsInUse = new AtomicLong(0);
+    private final AtomicLong slabsAllocated = new AtomicLong(0);
+    private final AtomicLong acquireCount = new AtomicLong(0);
+    private final AtomicLong waitCount = new AtomicLong(0);
+    private final AtomicLong waitNanos = new AtomicLong(0);
+    private final AtomicLong rejectCount = new AtomicLong(0);
+
+    public SlabBufferPool(int slabSize, long budgetBytes) {
+        this(slabSize, budgetBytes, false);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})   // no generic array creation
+    public SlabBufferPool(int slabSize, long budgetBytes, boolean direct) {
+        if (slabSize <= 0) throw new IllegalArgumentException("slab size must be positive");
+        if (budgetBytes < slabSize) throw new IllegalArgumentException("budget must hold at least one slab");
+        if (budgetBytes / slabSize > Integer.MAX_VALUE) throw new IllegalArgumentException("too many slabs in budget");
+        this.slabSize = slabSize;
+        this.totalSlabs = (int) (budgetBytes / slabSize);
+        this.direct = direct;
+        this.permits = new Semaphore(totalSlabs, true);
+        this.freeLists = new ArrayDeque[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            freeLists[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    // number of slabs needed to hold the given number of bytes
+    public int slabsFor(long bytes) {
+        long n = (bytes + slabSize - 1) / slabSize;
+        if (n > totalSlabs) throw new IllegalArgumentException("request larger than the pool budget: " + bytes);
+        return (int) n;
+    }
+
+    // blocks until the budget has room for count slabs
+    public ByteBuffer[] acquire(int count) {
+        acquirePermits(count);
+        return takeSlabs(count);
+    }
+
+    // returns null if the budget does not have room for count slabs right now
+    public ByteBuffer[] tryAcquire(int count) {
+        if (!tryAcquirePermits(count)) return null;
+        return takeSlabs(count);
+    }
+
+    public void release(ByteBuffer[] slabs) {
+        if (slabs == null || slabs.length == 0) return;
+        ArrayDeque<ByteBuffer> freeList = freeLists[stripe()];
+        synchronized (freeList) {
+            for (ByteBuffer slab : slabs) {
+                slab.clear();
+                freeList.push(slab);
+            }
+        }
+        slabsInUse.addAndGet(-slabs.length);
+        permits.release(slabs.length);
+    }
+
+    // accounts for memory that the borrower allocates itself (rounded up to whole slabs), without handing out slabs.
+    // returns false if the budget does not have room right now.
+    public boolean tryReserve(long bytes) {
+        return tryAcquirePermits(slabsFor(bytes));
+    }
+
+    public void reserve(long bytes) {
+        acquirePermits(slabsFor(bytes));
+    }
+
+    public void unreserve(long bytes) {
+        int n = slabsFor(bytes);
+        slabsInUse.addAndGet(-n);
+        permits.release(n);
+    }
+
+    private void acquirePermits(int count) {
+        if (count > totalSlabs) throw new IllegalArgumentException("request larger than the pool budget");
+        acquireCount.incrementAndGet();
+        if (!permitsAvailableNow(count)) {
+            long start = System.nanoTime();
+            waitCount.incrementAndGet();
+            permits.acquireUninterruptibly(count);
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+        addInUse(count);
+    }
+
+    private boolean tryAcquirePermits(int count) {
+        if (count > totalSlabs) throw new IllegalArgumentException("request larger than the pool budget");
+        acquireCount.incrementAndGet();
+        if (!permitsAvailableNow(count)) {
+            rejectCount.incrementAndGet();
+            return false;
+        }
+        addInUse(count);
+        return true;
+    }
+
+    private boolean permitsAvailableNow(int count) {
+        try {
+            // unlike tryAcquire(n), the timed form does not barge ahead of queued waiters
+            return permits.tryAcquire(count, 0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void addInUse(int count) {
+        long inUse = slabsInUse.addAndGet(count);
+        long peak;
+        while (inUse > (peak = peakSlabsInUse.get())) {
+            if (peakSlabsInUse.compareAndSet(peak, inUse)) break;
+        }
+    }
+
+    // caller already holds permits for count slabs
+    private ByteBuffer[] takeSlabs(int count) {
+        ByteBuffer[] slabs = new ByteBuffer[count];
+        int taken = 0;
+        int home = stripe();
+        for (int i = 0; i < STRIPES && taken < count; i++) {
+            ArrayDeque<ByteBuffer> freeList = freeLists[(home + i) % STRIPES];
+            synchronized (freeList) {
+                while (taken < count && !freeList.isEmpty()) {
+                    slabs[taken++] = freeList.pop();
+                }
+            }
+        }
+        while (taken < count) {  // permits guarantee this stays within budget
+            slabs[taken++] = direct ? ByteBuffer.allocateDirect(slabSize) : ByteBuffer.allocate(slabSize);
+            slabsAllocated.incrementAndGet();
+        }
+        return slabs;
+    }
+
+    private static int stripe() {
+        return (int) (Thread.currentThread().getId() % STRIPES);
+    }
+
+    public long getBudgetBytes() {
+        return (long) totalSlabs * slabSize;
+    }
+
+    public long getBytesInUse() {
+        return slabsInUse.get() * slabSize;
+    }
+
+    public long getPeakBytesInUse() {
+        return peakSlabsInUse.get() * slabSize;
+    }
+
+    // bytes of slabs actually allocated so far (in use or on the free lists)
+    public long getBytesAllocated() {
+        return slabsAllocated.get() * slabSize;
+    }
+
+    public long getAcquireCount() {
+        return acquireCount.get();
+    }
+
+    // number of blocking acquires that had to wait for budget, and the total time they waited
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    // number of non-blocking acquires/reserves turned down for lack of budget
+    public long getRejectCount() {
+        return rejectCount.get();
+    }
+
+    // threads currently queued for budget
+    public int getQueuedWaiters() {
+        return permits.getQueueLength();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SlabBufferPool[slab=%d, budget=%d, inUse=%d, peak=%d, allocated=%d, acquires=%d, " +
+                        "waits=%d, waitMs=%d, rejects=%d]",
+                slabSize, getBudgetBytes(), getBytesInUse(), getPeakBytesInUse(), getBytesAllocated(),
+                getAcquireCount(), getWaitCount(), TimeUnit.NANOSECONDS.toMillis(getWaitNanos()), getRejectCount());
+    }
+}
@@ -0,0 +1,52 @@
+package net.jstreams.streams;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+Local overflow file for CoalescingOutputStream: writes that find the ring full are appended here, and the shuttle
+reads them back once the ring is drained. Positional reads and writes only, so one writer and the shuttle can use it
+at the same time without a lock, on ranges that do not overlap. The file is a temp file in the spill directory,
+opened DELETE_ON_CLOSE: gone once closed, and on Unix unlinked as soon as it is opened, so a crash leaves nothing.
+*/
+final class SpillFile {
+
+    private final Path path;
+    private final FileChannel channel;
+
+    SpillFile(File directory) throws IOException {
+        this.path = Files.createTempFile(directory.toPath(), "coalescing-", ".spill");
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    void write(long position, byte[] b, int off, int len) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+        while (bb.hasRemaining()) {
+            position += channel.write(bb, position);
+        }
+    }
+
+    void read(long position, byte[] b, int off, int len) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+        while (bb.hasRemaining()) {
+            int n = channel.read(bb, position);
+            if (n < 0) throw new EOFException("spill file " + path + " ends before position " + (position + len));
+            position += n;
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+}
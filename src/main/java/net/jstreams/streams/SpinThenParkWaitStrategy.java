@@ -0,0 +1,64 @@
+package net.jstreams.streams;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Waits in phases, cheapest wake-up first: spinTries busy checks, then yieldTries checks with Thread.yield() between,
+then parkTries checks parking parkNanos between, and only then parks on the lock Condition. A hand-off that happens
+within the spin phase costs no wake-up at all; a long wait costs at most the phases' CPU time before parking.
+
+The defaults spin for some microseconds and park-poll for about half a millisecond. On a single CPU the spin
+phase is skipped.
+*/
+public class SpinThenParkWaitStrategy extends WaitStrategy {
+
+    public static final int DEFAULT_SPIN_TRIES = 10000;
+    public static final int DEFAULT_YIELD_TRIES = 100;
+    public static final int DEFAULT_PARK_TRIES = 10;
+    public static final long DEFAULT_PARK_NANOS = 50 * 1000;
+
+    private final int spinTries;
+    private final int yieldTries;
+    private final int parkTries;
+    private final long parkNanos;
+
+    public SpinThenParkWaitStrategy() {
+        this(DEFAULT_SPIN_TRIES, DEFAULT_YIELD_TRIES, DEFAULT_PARK_TRIES, DEFAULT_PARK_NANOS);
+    }
+
+    public SpinThenParkWaitStrategy(int spinTries, int yieldTries, int parkTries, long parkNanos) {
+        if (spinTries < 0 || yieldTries < 0 || parkTries < 0 || parkNanos < 0) {
+            throw new IllegalArgumentException("wait phases cannot be negative");
+        }
+        this.spinTries = spinTries;
+        this.yieldTries = yieldTries;
+        this.parkTries = parkTries;
+        this.parkNanos = parkNanos;
+    }
+
+    public boolean spins() {
+        return spinTries + yieldTries + parkTries > 0;
+    }
+
+    public boolean spin(Ready ready) {
+        int spins = MULTIPROCESSOR ? spinTries : 0;
+        for (int i = 0; i < spins; i++) {
+            if (ready.isReady()) return true;
+            onSpinWait();
+        }
+        for (int i = 0; i < yieldTries; i++) {
+            if (ready.isReady()) return true;
+            Thread.yield();
+        }
+        for (int i = 0; i < parkTries; i++) {
+            if (ready.isReady()) return true;
+            LockSupport.parkNanos(parkNanos);
+        }
+        return ready.isReady();
+    }
+
+    @Override
+    public String toString() {
+        return "spin(" + spinTries + "," + yieldTries + "," + parkTries + "x" + parkNanos + "ns)";
+    }
+}
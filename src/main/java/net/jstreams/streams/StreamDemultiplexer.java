@@ -0,0 +1,63 @@
+package net.jstreams.streams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+Reads the frames StreamMultiplexer wrote and hands each one to a FrameHandler: data(id, ...) for a frame's payload,
+in order within each logical stream, and end(id) when that stream was closed. The payload buffer is reused for the
+next frame, so a handler must copy out what it keeps.
+
+A physical stream that ends inside a frame is an EOFException; one that ends between frames is a normal end, even
+if some logical streams were never closed (the writer went away without closing the multiplexer).
+*/
+public class StreamDemultiplexer {
+
+    public interface FrameHandler {
+        void data(int id, byte[] b, int off, int len) throws IOException;
+
+        void end(int id) throws IOException;
+    }
+
+    private final InputStream in;
+    private byte[] payload = new byte[4096];
+    private long frameCount = 0;
+
+    public StreamDemultiplexer(InputStream in) {
+        this.in = in;
+    }
+
+    // reads one frame and passes it to the handler; returns false at the end of the physical stream
+    public boolean next(FrameHandler handler) throws IOException {
+        int id = Varint.read(in);
+        if (id < 0) return false;
+        int len = Varint.read(in);
+        if (len < 0) throw new EOFException("stream ended inside a frame header");
+        frameCount++;
+        if (len == 0) {
+            handler.end(id);
+            return true;
+        }
+        if (len > payload.length) payload = new byte[Math.max(len, 2 * payload.length)];
+        int n = 0;
+        while (n < len) {
+            int r = in.read(payload, n, len - n);
+            if (r < 0) throw new EOFException("stream ended inside a frame for stream " + id);
+            n += r;
+        }
+        handler.data(id, payload, 0, len);
+        return true;
+    }
+
+    // reads frames until the end of the physical stream; returns the number of frames read
+    public long run(FrameHandler handler) throws IOException {
+        long before = frameCount;
+        while (next(handler)) ;
+        return frameCount - before;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+}
@@ -0,0 +1,147 @@
+package net.jstreams.streams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Many logical output streams sharing one CoalescingOutputStream, and so one ring, one shuttle and one physical sink.
+Each write on a logical stream goes into the ring as a frame:
+
+    varint stream id, varint payload length, payload
+
+and a frame with length 0 marks the end of that logical stream. The shuttle writes frames from all the logical
+streams in the same batches, so the number of backend writes follows time (and the ring size), not the number of
+streams. StreamDemultiplexer splits the physical stream back out.
+
+flush() on a logical stream waits only until that stream's last frame is persisted - frames other streams wrote
+after it are not waited for (they are usually in the same batch anyway). A write larger than the ring's block size
+is split into several frames; frames from one logical stream are in order, but a stream written from several
+threads at once interleaves at frame boundaries, as with any OutputStream.
+
+Stream ids are non-negative ints; an id may be reused once its stream has been closed.
+*/
+public class StreamMultiplexer implements Closeable {
+
+    private final CoalescingOutputStream out;
+    private final int maxPayload;
+    private final Map<Integer, LogicalStream> open = new HashMap<Integer, LogicalStream>();
+    private boolean closed = false;
+
+    public StreamMultiplexer(OutputStream sink) {
+        this(sink, new CoalescingOptions());
+    }
+
+    public StreamMultiplexer(OutputStream sink, CoalescingOptions options) {
+        this.out = new CoalescingOutputStream(sink, options);
+        this.maxPayload = out.getMaxWriteSize() - 2 * Varint.MAX_INT_LENGTH;
+    }
+
+    public synchronized OutputStream openStream(int id) throws IOException {
+        if (closed) throw new IOException("attempting to open a stream on a closed multiplexer");
+        if (id < 0) throw new IllegalArgumentException("stream id cannot be negative");
+        if (open.containsKey(id)) throw new IllegalArgumentException("stream " + id + " is already open");
+        LogicalStream s = new LogicalStream(id);
+        open.put(id, s);
+        return s;
+    }
+
+    public synchronized int getOpenStreamCount() {
+        return open.size();
+    }
+
+    // the shared stream, for its statistics
+    public CoalescingOutputStream getCoalescingStream() {
+        return out;
+    }
+
+    // flushes everything written on any logical stream
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    // ends the logical streams still open, then flushes and closes the physical stream
+    public void close() throws IOException {
+        List<LogicalStream> remaining;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            remaining = new ArrayList<LogicalStream>(open.values());
+        }
+        try {
+            for (LogicalStream s : remaining) s.end();
+        } finally {
+            out.close();
+        }
+    }
+
+    private synchronized void closed(LogicalStream s) {
+        open.remove(s.id);
+    }
+
+    private final class LogicalStream extends OutputStream {
+        private final int id;
+        private final byte[] header = new byte[2 * Varint.MAX_INT_LENGTH];
+        private final int idLength;
+        private volatile long lastFrameEnd = 0;
+        private boolean streamClosed = false;
+
+        LogicalStream(int id) {
+            this.id = id;
+            this.idLength = Varint.put(header, 0, id);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b) throws IOException {
+            if (b == null) {
+                throw new NullPointerException("null byte array passed in to write() method");
+            }
+            write(b, 0, b.length);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (b == null) {
+                throw new NullPointerException("null byte array passed in to write() method");
+            }
+            if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+            if (streamClosed) throw new IOException("attempting to write to a closed stream");
+            while (len > 0) {       // a zero-length frame would read as the end of the stream, so none are written
+                int n = Math.min(len, maxPayload);
+                lastFrameEnd = out.writeFramed(header, idLength + Varint.put(header, idLength, n), b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (streamClosed) throw new IOException("attempting to flush a closed stream");
+            out.flushTo(lastFrameEnd);
+        }
+
+        // writes the end frame and waits for this stream's data to be persisted
+        @Override
+        public void close() throws IOException {
+            if (end()) out.flushTo(lastFrameEnd);
+        }
+
+        // returns false if the stream was already closed
+        synchronized boolean end() throws IOException {
+            if (streamClosed) return false;
+            streamClosed = true;
+            closed(this);
+            lastFrameEnd = out.writeFramed(header, idLength + Varint.put(header, idLength, 0), header, 0, 0);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package net.jstreams.streams;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/*
+Builds a stack of output stages as one stream, and fuses what it can instead of stacking a wrapper per stage. Stages
+are listed from the writer towards the sink:
+
+    PipelineOutputStream out = new StreamPipeline()
+            .compress(6)
+            .checksum(Checksums.newCrc32c())
+            .coalesce(new CoalescingOptions())
+            .throttle(64L * 1024 * 1024)
+            .build(sink);
+
+or from a spec, with the same stages separated by '|':  "compress:6|checksum:crc32c|coalesce|throttle:64M".
+
+What gets fused:
+1. Checksums right above a coalescing stage are not stages at all: they are computed by the shuttle, as a
+   BatchObserver, during its one pass over each batch - the same bytes, in the same order, with no per-write cost.
+2. Consecutive coalescing stages are one (the first one's options win).
+3. Locks: the stages themselves are unsynchronized. Everything below a coalescing stage runs on its shuttle thread
+   alone, so it needs no lock; writers reach the coalescing stage's own thread-safe write. Only if there are stages
+   above the top coalescing stage (or none at all) does the pipeline take one lock per write, at the top - one lock
+   for the whole stack, where a Crc32OutputStream over a SynchronizedOutputStream would take two.
+
+Compression is DEFLATE with sync-flush, so flush() pushes everything written so far through to the sink.
+getPlan() on the result shows what was built, e.g. "lock > compress(6) > coalesce[+CRC32C] > throttle(67108864/s)".
+*/
+public class StreamPipeline {
+
+    private static final int CHECKSUM = 0, COMPRESS = 1, COALESCE = 2, THROTTLE = 3;
+
+    private static final class Stage {
+        final int kind;
+        final Checksum checksum;
+        final int level;
+        final CoalescingOptions options;
+        final long bytesPerSecond;
+
+        Stage(int kind, Checksum checksum, int level, CoalescingOptions options, long bytesPerSecond) {
+            this.kind = kind;
+            this.checksum = checksum;
+            this.level = level;
+            this.options = options;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<Stage>();
+
+    public StreamPipeline checksum(Checksum checksum) {
+        if (checksum == null) throw new IllegalArgumentException("checksum cannot be null");
+        stages.add(new Stage(CHECKSUM, checksum, 0, null, 0));
+        return this;
+    }
+
+    // DEFLATE at the given level (0-9, or -1 for the default)
+    public StreamPipeline compress(int level) {
+        if (level < -1 || level > 9) throw new IllegalArgumentException("compression level must be -1 to 9");
+        stages.add(new Stage(COMPRESS, null, level, null, 0));
+        return this;
+    }
+
+    public StreamPipeline coalesce(CoalescingOptions options) {
+        if (options == null) throw new IllegalArgumentException("coalescing options cannot be null");
+        stages.add(new Stage(COALESCE, null, 0, options, 0));
+        return this;
+    }
+
+    public StreamPipeline throttle(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) throw new IllegalArgumentException("rate must be positive");
+        stages.add(new Stage(THROTTLE, null, 0, null, bytesPerSecond));
+        return this;
+    }
+
+    /*
+    Stages: checksum[:crc32|crc32c|adler32] (crc32c), compress[:level] (default level), coalesce[:maxBufferSize]
+    (default options), throttle:bytesPerSecond. Sizes and rates take K, M and G suffixes.
+    */
+    public static StreamPipeline parse(String spec) {
+        StreamPipeline p = new StreamPipeline();
+        for (String part : spec.split("\\|")) {
+            String s = part.trim();
+            if (s.isEmpty()) continue;
+            int colon = s.indexOf(':');
+            String name = (colon < 0) ? s : s.substring(0, colon).trim();
+            String arg = (colon < 0) ? null : s.substring(colon + 1).trim();
+            if (name.equals("checksum")) {
+                p.checksum(Checksums.newChecksum(arg == null ? "crc32c" : arg));
+            } else if (name.equals("compress")) {
+                p.compress(arg == null ? Deflater.DEFAULT_COMPRESSION : Integer.parseInt(arg));
+            } else if (name.equals("coalesce")) {
+                CoalescingOptions options = new CoalescingOptions();
+                if (arg != null) options.setMaxBufferSize((int) parseSize(arg));
+                p.coalesce(options);
+            } else if (name.equals("throttle")) {
+                if (arg == null) throw new IllegalArgumentException("throttle needs a rate: throttle:BYTES_PER_SEC");
+                p.throttle(parseSize(arg));
+            } else {
+                throw new IllegalArgumentException("unknown pipeline stage " + name);
+            }
+        }
+        return p;
+    }
+
+    private static long parseSize(String s) {
+        s = s.toUpperCase();
+        long multiplier = 1;
+        if (s.endsWith("K")) multiplier = 1024;
+        if (s.endsWith("M")) multiplier = 1024 * 1024;
+        if (s.endsWith("G")) multiplier = 1024 * 1024 * 1024;
+        if (multiplier > 1) s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) * multiplier;
+    }
+
+    public PipelineOutputStream build(OutputStream sink) {
+        // collapse consecutive coalescing stages
+        List<Stage> plan = new ArrayList<Stage>();
+        for (Stage st : stages) {
+            if (st.kind == COALESCE && !plan.isEmpty() && plan.get(plan.size() - 1).kind == COALESCE) continue;
+            plan.add(st);
+        }
+
+        // build from the sink up; checksums directly above a coalescing stage are held back and fused into it
+        OutputStream out = sink;
+        List<String> description = new ArrayList<String>();
+        List<Checksum> checksums = new ArrayList<Checksum>();
+        List<Deflater> deflaters = new ArrayList<Deflater>();
+        boolean threadSafeTop = false;
+        for (int i = plan.size() - 1; i >= 0; i--) {
+            Stage st = plan.get(i);
+            switch (st.kind) {
+                case COALESCE: {
+                    List<Checksum> fused = new ArrayList<Checksum>();
+                    while (i > 0 && plan.get(i - 1).kind == CHECKSUM) fused.add(0, plan.get(--i).checksum);
+                    StringBuilder d = new StringBuilder("coalesce");
+                    for (Checksum c : fused) d.append("[+").append(checksumName(c)).append(']');
+                    BatchObserver observer = fused.isEmpty() ? null : new ChecksumObserver(fused);
+                    out = new CoalescingOutputStream(out, st.options, observer);
+                    checksums.addAll(0, fused);
+                    description.add(0, d.toString());
+                    threadSafeTop = true;
+                    break;
+                }
+                case CHECKSUM:
+                    out = new ChecksumOutputStream(out, st.checksum);
+                    checksums.add(0, st.checksum);
+                    description.add(0, "checksum(" + checksumName(st.checksum) + ")");
+                    threadSafeTop = false;
+                    break;
+                case COMPRESS: {
+                    Deflater deflater = new Deflater(st.level);
+                    deflaters.add(deflater);
+                    out = new DeflaterOutputStream(out, deflater, 64 * 1024, true);
+                    description.add(0, "compress(" + st.level + ")");
+                    threadSafeTop = false;
+                    break;
+                }
+                case THROTTLE:
+                    out = new ThrottledOutputStream(out, st.bytesPerSecond);
+                    description.add(0, "throttle(" + st.bytesPerSecond + "/s)");
+                    threadSafeTop = false;
+                    break;
+            }
+        }
+        boolean locked = !threadSafeTop && !plan.isEmpty();
+        if (locked) description.add(0, "lock");
+        StringBuilder planString = new StringBuilder();
+        for (String d : description) planString.append(d).append(" > ");
+        planString.append("sink");
+        return new PipelineOutputStream(out, locked, checksums, deflaters, planString.toString());
+    }
+
+    private static String checksumName(Checksum c) {
+        String name = c.getClass().getSimpleName();
+        return name.equals("Crc32c") ? "CRC32C" : name.toUpperCase();
+    }
+
+    private static final class ChecksumObserver implements BatchObserver {
+        private final Checksum[] checksums;
+
+        ChecksumObserver(List<Checksum> checksums) {
+            this.checksums = checksums.toArray(new Checksum[checksums.size()]);
+        }
+
+        public void batch(byte[] b, int off, int len) {
+            for (Checksum c : checksums) c.update(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+Called by CoalescingOutputStream's shuttle before it resends a failed batch, to repair or replace the underlying
+stream. persistedBytes is how much of the stream is known to have been written and flushed; the failed write may have
+got some bytes beyond it through, so a backend that appends must reopen positioned (or truncated) at persistedBytes.
+The returned stream is used from then on, and is the one close() closes; it may be the same one. The failed stream is
+not closed by the caller. An IOException counts as another failed attempt.
+*/
+public interface StreamReopener {
+    OutputStream reopen(OutputStream failed, long persistedBytes, IOException cause) throws IOException;
+}
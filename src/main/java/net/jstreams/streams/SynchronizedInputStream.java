@@ -4,7 +4,12 @@ import java.io.IOException;
 import java.io.InputStream;
 
 
-public class SynchronizedInputStream extends InputStream {
+/*
+Serializes all access to a stream. If the stream is Seekable, it is also PositionedReadable: a positional read is
+seek, read and seek back, under the lock - so concurrent positional readers take turns. CoalescingRangeReader can
+merge their reads into fewer, larger ones.
+*/
+public class SynchronizedInputStream extends InputStream implements Seekable, PositionedReadable {
 
     private InputStream underlyingStream;
 
@@ -27,6 +32,32 @@ public class SynchronizedInputStream extends InputStream {
         return underlyingStream.read(b, off, len);
     }
 
+    public synchronized int read(long position, byte[] b, int off, int len) throws IOException {
+        Seekable seekable = asSeekable();
+        long pos = seekable.getPos();
+        seekable.seek(position);
+        try {
+            return underlyingStream.read(b, off, len);
+        } finally {
+            seekable.seek(pos);
+        }
+    }
+
+    public synchronized void seek(long n) throws IOException {
+        asSeekable().seek(n);
+    }
+
+    public synchronized long getPos() throws IOException {
+        return asSeekable().getPos();
+    }
+
+    private Seekable asSeekable() {
+        if (!(underlyingStream instanceof Seekable)) {
+            throw new UnsupportedOperationException("underlying stream is not seekable");
+        }
+        return (Seekable) underlyingStream;
+    }
+
     @Override
     public synchronized long skip(long n) throws IOException {
         return underlyingStream.skip(n);
@@ -0,0 +1,354 @@
+package net.jstreams.streams;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/*
+Generated test data that looks more like production data than RandomMemoryInputStream (incompressible) or
+NullInputStream (all zeros): a tunable compression ratio, a tunable fraction of repeated blocks for dedup, and text,
+log or record-structured content. See SyntheticDataOptions.
+
+The stream is a sequence of blocks, each a copy of one of a pool of blocks generated in the constructor - so reads
+are array copies, fast enough to drive multi-GB/s tests. Which pool block, and whether the block is a repeat, comes
+from a hash of the seed and the block number. A block that is not a repeat gets a few bytes overwritten with a hash
+of its number every 1K (a "stamp": eight hex digits in the text modes, raw bytes otherwise, the id field of a record
+in RECORDS mode), which makes it unique to a deduplicator while barely changing how it compresses. A repeat is the
+pool block unchanged, so every repeat of the same pool block is identical.
+
+Content depends only on the options and the position, so positional reads from many threads and seeks are cheap and
+agree with the sequential read.
+*/
+public class SyntheticDataInputStream extends InputStream implements Seekable, PositionedReadable {
+
+    private static final int STAMP_INTERVAL = 1024;
+    private static final int STAMP_LENGTH = 8;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final long streamLength;
+    private final long seed;
+    private final double dedupRatio;
+    private final int blockSize;
+    private final boolean hexStamps;
+    private final int[] stampOffsets;   // within a block, ascending
+    private final byte[][] pool;
+
+    private long cursor = 0;
+    private volatile boolean streamClosed = false;
+
+    public SyntheticDataInputStream(long streamLength) {
+        this(streamLength, new SyntheticDataOptions());
+    }
+
+    public SyntheticDataInputStream(long streamLength, SyntheticDataOptions options) {
+        if (streamLength < 0) throw new IllegalArgumentException("stream length cannot be negative");
+        this.streamLength = streamLength;
+        this.seed = options.getSeed();
+        this.dedupRatio = options.getDedupRatio();
+        SyntheticDataOptions.Mode mode = options.getMode();
+        int recordSize = options.getRecordSize();
+        if (mode == SyntheticDataOptions.Mode.RECORDS) {  // whole records per block, so records never straddle blocks
+            this.blockSize = Math.max(recordSize, options.getBlockSize() - options.getBlockSize() % recordSize);
+        } else {
+            this.blockSize = options.getBlockSize();
+        }
+        this.hexStamps = (mode == SyntheticDataOptions.Mode.TEXT || mode == SyntheticDataOptions.Mode.LOG);
+
+        int step = (mode == SyntheticDataOptions.Mode.RECORDS)
+                ? recordSize * Math.max(1, STAMP_INTERVAL / recordSize) : STAMP_INTERVAL;
+        int count = 0;
+        for (int s = 0; s + STAMP_LENGTH <= blockSize; s += step) count++;
+        this.stampOffsets = new int[count];
+        for (int i = 0; i < count; i++) stampOffsets[i] = i * step;
+
+        Generator g = new Generator(seed);
+        this.pool = new byte[options.getPoolSize()][];
+        for (int i = 0; i < pool.length; i++) {
+            byte[] block = new byte[blockSize];
+            switch (mode) {
+                case BINARY: g.binary(block, options.getCompressionRatio()); break;
+                case TEXT: g.text(block); break;
+                case LOG: g.log(block, i); break;
+                case RECORDS: g.records(block, recordSize, i); break;
+            }
+            pool[i] = block;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int i = read(b, 0, 1);
+        if (i < 0) return i;
+        else return (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to read() method");
+        }
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = read(cursor, b, off, len);
+        if (n > 0) cursor += n;
+        return n;
+    }
+
+    // same content as the sequential read would return at that position; safe to call from many threads at once
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        if (streamClosed) throw new IOException("attempting to read from a closed stream");
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to read() method");
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (position < 0) throw new EOFException("Cannot read before the beginning of file");
+        if (len == 0) return 0;
+        if (position >= streamLength) return -1;
+        if (len > streamLength - position) len = (int) (streamLength - position);
+
+        int total = 0;
+        while (total < len) {
+            long blockIndex = (position + total) / blockSize;
+            int inBlock = (int) ((position + total) % blockSize);
+            int n = Math.min(len - total, blockSize - inBlock);
+            fill(blockIndex, inBlock, b, off + total, n);
+            total += n;
+        }
+        return total;
+    }
+
+    private void fill(long blockIndex, int inBlock, byte[] b, int off, int len) {
+        long h = mix(seed ^ (blockIndex * 0x9E3779B97F4A7C15L));
+        byte[] source = pool[(int) ((h >>> 1) % pool.length)];
+        System.arraycopy(source, inBlock, b, off, len);
+        boolean repeat = ((h >>> 40) & 0xFFFFFF) < dedupRatio * (1 << 24);
+        if (repeat) return;
+
+        int end = inBlock + len;
+        for (int s : stampOffsets) {
+            if (s >= end) break;
+            if (s + STAMP_LENGTH <= inBlock) continue;
+            long v = mix(h + s);
+            for (int i = 0; i < STAMP_LENGTH; i++) {
+                int p = s + i;
+                if (p < inBlock || p >= end) continue;
+                byte x;
+                if (hexStamps) {
+                    int nibble = (int) (v >>> (4 * i)) & 0xF;
+                    x = (byte) ((nibble < 10) ? '0' + nibble : 'a' + nibble - 10);
+                } else {
+                    x = (byte) (v >>> (8 * i));
+                }
+                b[off + p - inBlock] = x;
+            }
+        }
+    }
+
+    public void seek(long n) throws IOException {
+        if (streamClosed) throw new IOException("attempting to seek into a closed stream;");
+        if (n < 0) throw new EOFException("Cannot seek to before the beginning of file");
+        if (n > streamLength) throw new EOFException("Cannot seek past end of file");
+        cursor = n;
+    }
+
+    public long getPos() throws IOException {
+        if (streamClosed) throw new IOException("attempting to call getPos() on a closed stream");
+        return cursor;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (streamClosed) throw new IOException("attempting to skip() on a closed stream");
+        long newPos = Math.max(0, Math.min(streamLength, cursor + n));
+        n = newPos - cursor;
+        cursor = newPos;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(streamLength - cursor, (long) Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        streamClosed = true;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        throw new UnsupportedOperationException("mark()/reset() not supported on this stream");
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new UnsupportedOperationException("mark()/reset() not supported on this stream");
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    // splitmix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // fills pool blocks; only runs in the constructor, so it favours simple over fast
+    private static final class Generator {
+        private static final String[] SYLLABLES = {
+                "a", "an", "ar", "be", "ca", "co", "de", "di", "e", "en", "er", "es", "fa", "ge", "ha", "i", "in",
+                "is", "ka", "la", "le", "li", "lo", "ma", "me", "mi", "mo", "na", "ne", "no", "o", "on", "or", "pa",
+                "pe", "po", "ra", "re", "ri", "ro", "sa", "se", "si", "so", "ta", "te", "ti", "to", "u", "un", "ve",
+                "wa"};
+        private static final String[] LEVELS = {"INFO ", "INFO ", "INFO ", "INFO ", "DEBUG", "DEBUG", "WARN ", "ERROR"};
+        private static final String[] LOGGERS = {"c.e.api.RequestHandler", "c.e.db.ConnectionPool",
+                "c.e.cache.BlockCache", "c.e.auth.TokenValidator", "c.e.jobs.Scheduler", "c.e.io.Uploader"};
+        private static final String[] TEMPLATES = {
+                "GET /api/v1/items/%d status=%d bytes=%d in %d ms",
+                "POST /api/v1/orders/%d status=%d bytes=%d in %d ms",
+                "acquired connection %d from pool (active=%d idle=%d) in %d ms",
+                "cache miss for block %d of file %d, loaded %d bytes in %d ms",
+                "token for user %d validated (scopes=%d, expires in %d s) in %d ms",
+                "job %d finished with status %d after %d retries in %d ms",
+                "uploaded part %d of %d (%d bytes) in %d ms"};
+
+        private long state;
+        private final String[] vocabulary = new String[2048];
+
+        Generator(long seed) {
+            this.state = seed;
+            for (int i = 0; i < vocabulary.length; i++) {
+                StringBuilder sb = new StringBuilder();
+                int syllables = 1 + nextInt(4);
+                for (int j = 0; j < syllables; j++) sb.append(SYLLABLES[nextInt(SYLLABLES.length)]);
+                vocabulary[i] = sb.toString();
+            }
+        }
+
+        long nextLong() {
+            state += 0x9E3779B97F4A7C15L;
+            return mix(state);
+        }
+
+        int nextInt(int bound) {
+            return (int) ((nextLong() >>> 33) % bound);
+        }
+
+        // skewed towards small values, roughly like word frequencies
+        int nextSkewed(int bound) {
+            double u = (nextLong() >>> 11) * 0x1.0p-53;
+            return (int) (bound * u * u * u);
+        }
+
+        void random(byte[] block, int off, int len) {
+            for (int i = 0; i < len; i++) block[off + i] = (byte) nextLong();
+        }
+
+        /*
+        Runs of random literals, each followed by a copy of earlier bytes from within the DEFLATE window. A literal
+        costs the compressor about a byte, and the copy, with the stamps, about 17 bytes per 1K (measured with
+        java.util.zip.Deflater at the default level), so the literal share sets the ratio. Longer segments reach
+        higher ratios; beyond about 50 the ratio falls short of the option (100 gives about 65).
+        */
+        void binary(byte[] block, double ratio) {
+            if (ratio <= 1.0) {
+                random(block, 0, block.length);
+                return;
+            }
+            final int segment = (ratio <= 16) ? 1024 : 4096;
+            final double overhead = 17.0 * segment / 1024;
+            int literals = (int) Math.max(1, Math.min(segment, Math.round(segment / ratio - overhead)));
+            int pos = 0;
+            while (pos < block.length) {
+                int lit = Math.min(literals, block.length - pos);
+                random(block, pos, lit);
+                pos += lit;
+                int copy = Math.min(segment - lit, block.length - pos);
+                if (copy <= 0) continue;
+                int distance = Math.min(pos, 1024 + nextInt(16 * 1024));
+                for (int i = 0; i < copy; i++) block[pos + i] = block[pos + i - distance];
+                pos += copy;
+            }
+        }
+
+        void text(byte[] block) {
+            StringBuilder sb = new StringBuilder(block.length + 256);
+            while (sb.length() < block.length) {
+                int words = 5 + nextInt(16);
+                for (int w = 0; w < words; w++) {
+                    String word = vocabulary[nextSkewed(vocabulary.length)];
+                    if (w == 0) {
+                        sb.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+                    } else {
+                        sb.append(' ').append(word);
+                        if (nextInt(12) == 0) sb.append(',');
+                    }
+                }
+                sb.append(nextInt(8) == 0 ? ".\n" : ". ");
+            }
+            copyAscii(sb, block);
+        }
+
+        void log(byte[] block, int poolIndex) {
+            StringBuilder sb = new StringBuilder(block.length + 256);
+            long millis = 1700000000000L + poolIndex * 3600000L;
+            while (sb.length() < block.length) {
+                millis += nextInt(50);
+                long seconds = millis / 1000;
+                sb.append(String.format("2024-01-%02d %02d:%02d:%02d.%03d ", 1 + (int) (seconds / 86400 % 28),
+                        seconds / 3600 % 24, seconds / 60 % 60, seconds % 60, millis % 1000));
+                sb.append(LEVELS[nextInt(LEVELS.length)]).append(" [worker-").append(nextInt(32)).append("] ");
+                sb.append(LOGGERS[nextSkewed(LOGGERS.length)]).append(" - ");
+                sb.append(String.format(TEMPLATES[nextSkewed(TEMPLATES.length)], nextInt(100000),
+                        nextInt(10) == 0 ? 500 : 200, nextInt(65536), nextSkewed(2000)));
+                sb.append('\n');
+            }
+            copyAscii(sb, block);
+        }
+
+        // id, timestamp, category, flags, name, then a random payload to the end of the record
+        void records(byte[] block, int recordSize, int poolIndex) {
+            long id = (long) poolIndex * (block.length / recordSize);
+            long millis = 1700000000000L + poolIndex * 3600000L;
+            for (int r = 0; r + recordSize <= block.length; r += recordSize) {
+                millis += nextInt(1000);
+                putLong(block, r, id++);
+                putLong(block, r + 8, millis);
+                block[r + 16] = 0;
+                block[r + 17] = (byte) nextSkewed(16);
+                block[r + 18] = (byte) (nextInt(4) == 0 ? 1 : 0);
+                byte[] name = vocabulary[nextSkewed(vocabulary.length)].getBytes(ASCII);
+                int nameLength = Math.min(13, name.length);
+                for (int i = 0; i < 13; i++) block[r + 19 + i] = (i < nameLength) ? name[i] : (byte) ' ';
+                random(block, r + 32, recordSize - 32);
+            }
+        }
+
+        private static void putLong(byte[] b, int off, long v) {
+            for (int i = 7; i >= 0; i--) {
+                b[off + i] = (byte) v;
+                v >>>= 8;
+            }
+        }
+
+        private static void copyAscii(StringBuilder sb, byte[] block) {
+            for (int i = 0; i < block.length; i++) block[i] = (byte) sb.charAt(i);
+        }
+    }
+}
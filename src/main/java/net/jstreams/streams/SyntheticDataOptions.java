@@ -0,0 +1,110 @@
+package net.jstreams.streams;
+
+/*
+What SyntheticDataInputStream generates. Setters return this, so options can be chained:
+
+    new SyntheticDataInputStream(1L << 30, new SyntheticDataOptions().setCompressionRatio(3).setDedupRatio(0.2));
+
+The options object is read once, when the stream is constructed.
+*/
+public class SyntheticDataOptions {
+
+    public enum Mode {
+        BINARY,     // random bytes with back-references, tuned to the compression ratio
+        TEXT,       // words and sentences from a generated vocabulary
+        LOG,        // timestamped log lines from a set of message templates
+        RECORDS     // fixed-length binary records: ids, timestamps, small categorical fields, names, a random payload
+    }
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    public static final int DEFAULT_POOL_SIZE = 64;
+    public static final int DEFAULT_RECORD_SIZE = 128;
+
+    private Mode mode = Mode.BINARY;
+    private double compressionRatio = 2.0;
+    private double dedupRatio = 0.0;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int poolSize = DEFAULT_POOL_SIZE;
+    private int recordSize = DEFAULT_RECORD_SIZE;
+    private long seed = 0x5eed;
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public SyntheticDataOptions setMode(Mode mode) {
+        if (mode == null) throw new IllegalArgumentException("mode cannot be null");
+        this.mode = mode;
+        return this;
+    }
+
+    public double getCompressionRatio() {
+        return compressionRatio;
+    }
+
+    // target DEFLATE ratio (uncompressed / compressed) in BINARY mode; 1 is incompressible. The other modes compress
+    // as their structure does, which is about what real text, logs and records do.
+    public SyntheticDataOptions setCompressionRatio(double compressionRatio) {
+        if (compressionRatio < 1) throw new IllegalArgumentException("compression ratio cannot be below 1");
+        this.compressionRatio = compressionRatio;
+        return this;
+    }
+
+    public double getDedupRatio() {
+        return dedupRatio;
+    }
+
+    // fraction of blocks that repeat an earlier block exactly; the rest are unique at any chunk size above ~1K.
+    // A content-defined chunker also loses the chunks that straddle a repeat and its neighbours, about two average
+    // chunks per repeated block - with 8K chunks, 0.5 saves ~0.42 at 256K blocks but only ~0.26 at 64K blocks.
+    public SyntheticDataOptions setDedupRatio(double dedupRatio) {
+        if (dedupRatio < 0 || dedupRatio > 1) throw new IllegalArgumentException("dedup ratio must be in [0, 1]");
+        this.dedupRatio = dedupRatio;
+        return this;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    // unit of repetition. Keep it above the dedup chunk size being tested, and above the 32K DEFLATE window so a
+    // compressor cannot see one block from the next.
+    public SyntheticDataOptions setBlockSize(int blockSize) {
+        if (blockSize < 4096) throw new IllegalArgumentException("block size must be at least 4K");
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    // number of distinct blocks generated up front; the stream is made of these. Also the number of distinct
+    // repeated blocks.
+    public SyntheticDataOptions setPoolSize(int poolSize) {
+        if (poolSize <= 0) throw new IllegalArgumentException("pool size must be positive");
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    // record length in RECORDS mode
+    public SyntheticDataOptions setRecordSize(int recordSize) {
+        if (recordSize < 32) throw new IllegalArgumentException("record size must be at least 32");
+        this.recordSize = recordSize;
+        return this;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    // same seed and options, same bytes
+    public SyntheticDataOptions setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+}
@@ -0,0 +1,93 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/*
+Caps the rate of bytes written to the underlying stream, with a token bucket that holds up to a tenth of a second of
+bytes: short bursts go through at once, longer runs are paced to bytesPerSecond. Writes are passed on in pieces of at
+most a bucket, so one big write is paced too.
+
+Not thread-safe: meant for one writer at a time, such as the shuttle of a CoalescingOutputStream above it.
+*/
+public class ThrottledOutputStream extends OutputStream {
+
+    private final OutputStream underlyingStream;
+    private final long bytesPerSecond;
+    private final long bucketSize;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public ThrottledOutputStream(OutputStream underlyingStream, long bytesPerSecond) {
+        if (bytesPerSecond <= 0) throw new IllegalArgumentException("rate must be positive");
+        this.underlyingStream = underlyingStream;
+        this.bytesPerSecond = bytesPerSecond;
+        this.bucketSize = Math.max(1, bytesPerSecond / 10);
+        this.tokens = bucketSize;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        acquire(1);
+        underlyingStream.write(b);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to write() method");
+        }
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException("null byte array passed in to write() method");
+        }
+        if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+        while (len > 0) {
+            int n = (int) Math.min(len, bucketSize);
+            acquire(n);
+            underlyingStream.write(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    // waits until the bucket has n tokens, then takes them
+    private void acquire(int n) throws IOException {
+        while (true) {
+            long now = System.nanoTime();
+            tokens = Math.min(bucketSize, tokens + (now - lastRefillNanos) * (bytesPerSecond / 1e9));
+            lastRefillNanos = now;
+            if (tokens >= n) {
+                tokens -= n;
+                return;
+            }
+            long waitNanos = (long) ((n - tokens) * 1e9 / bytesPerSecond);
+            try {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while throttled");
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        underlyingStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        underlyingStream.close();
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
@@ -0,0 +1,67 @@
+package net.jstreams.streams;
+
+/*
+TinyLFU admission in front of LRU eviction. Every lookup is counted in a count-min sketch (4 rows of 4-bit-capped
+counters, halved after 10 lookups per slot so old popularity fades). On a miss, the LRU victim is only replaced if
+the new block has been asked for more often than the victim: a scan of blocks read once cannot flush out the footers
+and indexes that are read again and again.
+*/
+public class TinyLfuEvictionPolicy extends LruEvictionPolicy {
+
+    private static final int MAX_COUNT = 15;
+
+    private byte[][] sketch;
+    private int mask;
+    private int[] slotKeyHash;
+    private int additions = 0;
+    private int sampleSize;
+
+    @Override
+    public void init(int slots) {
+        super.init(slots);
+        int width = Integer.highestOneBit(Math.max(64, slots * 4) - 1) << 1;
+        sketch = new byte[4][width];
+        mask = width - 1;
+        slotKeyHash = new int[slots];
+        sampleSize = 10 * slots;
+    }
+
+    @Override
+    public void recordAccess(int keyHash) {
+        for (int row = 0; row < sketch.length; row++) {
+            int i = index(keyHash, row);
+            if (sketch[row][i] < MAX_COUNT) sketch[row][i]++;
+        }
+        if (++additions >= sampleSize) age();
+    }
+
+    @Override
+    public void onInsert(int slot, int keyHash) {
+        super.onInsert(slot, keyHash);
+        slotKeyHash[slot] = keyHash;
+    }
+
+    @Override
+    public boolean admit(int candidateKeyHash, int victimSlot) {
+        return frequency(candidateKeyHash) > frequency(slotKeyHash[victimSlot]);
+    }
+
+    int frequency(int keyHash) {
+        int min = MAX_COUNT;
+        for (int row = 0; row < sketch.length; row++) min = Math.min(min, sketch[row][index(keyHash, row)]);
+        return min;
+    }
+
+    private int index(int keyHash, int row) {
+        int h = (keyHash + row) * (0x9E3779B9 + 2 * row);   // a different odd multiplier per row
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    private void age() {
+        for (byte[] row : sketch) {
+            for (int i = 0; i < row.length; i++) row[i] >>= 1;
+        }
+        additions = 0;
+    }
+}
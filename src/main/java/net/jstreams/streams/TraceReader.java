@@ -0,0 +1,80 @@
+package net.jstreams.streams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+Reads a trace written by TracingOutputStream, one event at a time:
+
+    TraceReader trace = new TraceReader(new BufferedInputStream(new FileInputStream(file)));
+    while (trace.next()) {
+        if (trace.getKind() == TraceReader.Kind.WRITE) ... trace.getThread(), trace.getTimeNanos(), trace.getSize()
+    }
+
+A trace cut short by a crash (the tracer had not written its last buffer) just ends early; a trace that ends inside
+an event, or is not a trace at all, is an IOException.
+*/
+public class TraceReader {
+
+    public enum Kind { WRITE, FLUSH, CLOSE }
+
+    private final InputStream in;
+    private Kind kind = null;
+    private int thread = 0;
+    private long timeNanos = 0;
+    private int size = 0;
+
+    public TraceReader(InputStream in) throws IOException {
+        this.in = in;
+        for (byte m : TracingOutputStream.MAGIC) {
+            int b = in.read();
+            if (b != m) throw new IOException("not a stream trace (bad magic)");
+        }
+        int version = in.read();
+        if (version != TracingOutputStream.VERSION) throw new IOException("unsupported trace version " + version);
+    }
+
+    // moves to the next event; false at the end of the trace
+    public boolean next() throws IOException {
+        int tag = Varint.read(in);
+        if (tag < 0) return false;
+        int k = tag & 3;
+        if (k > TracingOutputStream.CLOSE) throw new IOException("corrupt trace: unknown event kind " + k);
+        kind = Kind.values()[k];
+        thread = tag >>> 2;
+        long delta = Varint.readLong(in);
+        if (delta < 0) throw new EOFException("trace ends inside an event");
+        timeNanos += delta;
+        if (kind == Kind.WRITE) {
+            size = Varint.read(in);
+            if (size < 0) throw new EOFException("trace ends inside an event");
+        } else {
+            size = 0;
+        }
+        return true;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    // traced thread number, from 0
+    public int getThread() {
+        return thread;
+    }
+
+    // nanoseconds from the traced stream's creation to this event
+    public long getTimeNanos() {
+        return timeNanos;
+    }
+
+    // bytes written, for a WRITE; 0 otherwise
+    public int getSize() {
+        return size;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,147 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Passes everything through to the wrapped stream, and records the shape of the traffic - not its bytes - to a trace:
+for every write its size, for every write, flush and close the calling thread and the time since the previous
+call. TraceReader reads the trace back; net.jstreams.tools.LoadGenerator --trace replays it, with the same timing
+and threads, against any stream configuration.
+
+Wrap the stream the application writes to (above a CoalescingOutputStream, say), so the trace shows what the
+application asked for rather than what the stream made of it. The cost per call is a clock read, a few varints
+into a buffer and one short lock hold; every 64K of trace (several thousand calls), the call that fills the
+buffer also writes it to traceSink, so give it a buffered or fast sink. Times are taken inside the lock, so events
+are in the order they were recorded and their deltas are never negative.
+
+A failing traceSink stops the tracing (getTraceError() says why), never the stream. close() closes both streams.
+
+Trace format: "JSTR", a version byte (1), then events. Each event is a varint (thread << 2 | kind), kind 0 for
+write, 1 for flush, 2 for close; a varlong of nanoseconds since the previous event (or the stream's creation); and,
+for a write, a varint size. Threads are numbered 0, 1, 2... in the order they first show up.
+*/
+public class TracingOutputStream extends OutputStream {
+
+    static final byte[] MAGIC = {'J', 'S', 'T', 'R'};
+    static final int VERSION = 1;
+    static final int WRITE = 0, FLUSH = 1, CLOSE = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_EVENT_SIZE = Varint.MAX_INT_LENGTH * 2 + Varint.MAX_LONG_LENGTH;
+
+    private final OutputStream underlyingStream;
+    private final OutputStream traceSink;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final byte[] buffer = new byte[BUFFER_SIZE];  // under lock
+    private int buffered = 0;
+    private long lastEventNanos;
+    private long events = 0;
+    private volatile IOException traceError = null;
+
+    private final AtomicInteger nextThread = new AtomicInteger();
+    private final ThreadLocal<Integer> threadNumber = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return nextThread.getAndIncrement();
+        }
+    };
+
+    public TracingOutputStream(OutputStream underlyingStream, OutputStream traceSink) {
+        this.underlyingStream = underlyingStream;
+        this.traceSink = traceSink;
+        System.arraycopy(MAGIC, 0, buffer, 0, MAGIC.length);
+        buffer[MAGIC.length] = (byte) VERSION;
+        buffered = MAGIC.length + 1;
+        lastEventNanos = System.nanoTime();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        record(WRITE, 1);
+        underlyingStream.write(b);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        record(WRITE, b.length);
+        underlyingStream.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        record(WRITE, len);
+        underlyingStream.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        record(FLUSH, 0);
+        underlyingStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        record(CLOSE, 0);
+        lock.lock();
+        try {
+            writeTrace();
+            try {
+                traceSink.close();
+            } catch (IOException ex) {
+                if (traceError == null) traceError = ex;
+            }
+        } finally {
+            lock.unlock();
+        }
+        underlyingStream.close();
+    }
+
+    private void record(int kind, int size) {
+        if (traceError != null) return;
+        int thread = threadNumber.get();
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            int i = buffered;
+            i += Varint.put(buffer, i, (thread << 2) | kind);
+            i += Varint.putLong(buffer, i, now - lastEventNanos);
+            if (kind == WRITE) i += Varint.put(buffer, i, size);
+            buffered = i;
+            lastEventNanos = now;
+            events++;
+            if (buffered > BUFFER_SIZE - MAX_EVENT_SIZE) writeTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // caller holds lock
+    private void writeTrace() {
+        if (traceError != null || buffered == 0) return;
+        try {
+            traceSink.write(buffer, 0, buffered);
+            traceSink.flush();
+        } catch (IOException ex) {
+            traceError = ex;
+        }
+        buffered = 0;
+    }
+
+    // events recorded so far (including ones still in the buffer)
+    public long getEventCount() {
+        lock.lock();
+        try {
+            return events;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // why tracing stopped, or null if it is still going
+    public IOException getTraceError() {
+        return traceError;
+    }
+}
@@ -0,0 +1,76 @@
+package net.jstreams.streams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+Unsigned LEB128 varints for the framed formats in this package: 7 bits per byte, low bits first, high bit set on
+every byte but the last. Values below 128 take one byte; an int takes at most MAX_INT_LENGTH, a long
+MAX_LONG_LENGTH.
+*/
+final class Varint {
+
+    static final int MAX_INT_LENGTH = 5;
+    static final int MAX_LONG_LENGTH = 10;
+
+    private Varint() {}
+
+    // writes a non-negative int at buf[off]; returns the number of bytes written
+    static int put(byte[] buf, int off, int value) {
+        int i = off;
+        while ((value & ~0x7F) != 0) {
+            buf[i++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[i++] = (byte) value;
+        return i - off;
+    }
+
+    // reads a non-negative int; -1 if the stream ends before the first byte, EOFException if it ends inside
+    static int read(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) return -1;
+                throw new EOFException("stream ended inside a varint");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) break;
+                return value;
+            }
+        }
+        throw new IOException("corrupt stream: bad varint");
+    }
+
+    // writes a non-negative long at buf[off]; returns the number of bytes written
+    static int putLong(byte[] buf, int off, long value) {
+        int i = off;
+        while ((value & ~0x7FL) != 0) {
+            buf[i++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[i++] = (byte) value;
+        return i - off;
+    }
+
+    // reads a non-negative long, like read()
+    static long readLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) return -1;
+                throw new EOFException("stream ended inside a varint");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) break;
+                return value;
+            }
+        }
+        throw new IOException("corrupt stream: bad varint");
+    }
+}
@@ -0,0 +1,53 @@
+package net.jstreams.streams;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/*
+How CoalescingOutputStream's writers, shuttle and flushers wait for each other. Every wait is for a condition on the
+stream's volatile indexes; what differs is how long a waiter watches for it itself (spinning, without the lock)
+before it parks on the lock's Condition and relies on being signalled - a futex wake-up, tens of microseconds.
+
+  BlockingWaitStrategy       parks at once (the default; no CPU spent waiting)
+  SpinThenParkWaitStrategy   spins, then yields, then briefly parks with a timeout, then parks for good
+  BusySpinWaitStrategy       never parks; for threads that have a core to themselves
+
+Strategies hold no per-wait state, and one instance can be shared by any number of streams.
+*/
+public abstract class WaitStrategy {
+
+    public interface Ready {
+        boolean isReady();
+    }
+
+    // false if spin() would return at once; the stream then skips releasing its lock
+    public abstract boolean spins();
+
+    // waits, without any lock held, until ready or until the strategy gives up; returns true if it saw ready
+    public abstract boolean spin(Ready ready);
+
+    // spinning on a uniprocessor only delays the thread we are waiting for (the JDK's own spin loops skip it too)
+    protected static final boolean MULTIPROCESSOR = Runtime.getRuntime().availableProcessors() > 1;
+
+    private static final MethodHandle ON_SPIN_WAIT = findOnSpinWait();
+
+    private static MethodHandle findOnSpinWait() {
+        try {
+            return MethodHandles.lookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+        } catch (Exception ex) {
+            return null;  // before Java 9
+        }
+    }
+
+    // tells the CPU we are in a spin loop (PAUSE on x86), when the JDK has Thread.onSpinWait
+    protected static void onSpinWait() {
+        if (ON_SPIN_WAIT != null) {
+            try {
+                ON_SPIN_WAIT.invokeExact();
+            } catch (Throwable ex) {
+                // cannot happen: onSpinWait does nothing but hint
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package net.jstreams.tools;
+
+import java.util.Arrays;
+
+/*
+Log-linear histogram of nanosecond values, in the spirit of HdrHistogram: exact below 64, then 32 sub-buckets per
+power of two, so any recorded value is reported within about 3%. Fixed size (under 2000 buckets), no allocation
+when recording. Not thread-safe - give each thread its own and merge them at the end.
+*/
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;          // exact range, and buckets per power of two * 2
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    private static final int BUCKETS = SUB_COUNT + (64 - SUB_BITS) * HALF_COUNT;
+
+    private final long[] counts = new long[BUCKETS];
+    private long totalCount = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+    private double sum = 0;
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        if (other.totalCount > 0) {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long getCount() {
+        return totalCount;
+    }
+
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    // value at the given percentile (0-100); the upper bound of its bucket, capped at the recorded max
+    public long getPercentile(double percentile) {
+        if (totalCount == 0) return 0;
+        long rank = (long) Math.ceil(percentile / 100.0 * totalCount);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(highestValueAt(i), max);
+        }
+        return max;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - (SUB_BITS - 1);                  // value >> shift is in [HALF_COUNT, SUB_COUNT)
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) ((value >> shift) - HALF_COUNT);
+    }
+
+    static long highestValueAt(int index) {
+        if (index < SUB_COUNT) return index;
+        int k = index - SUB_COUNT;
+        int shift = k / HALF_COUNT + 1;
+        long m = k % HALF_COUNT + HALF_COUNT;
+        long highest = ((m + 1) << shift) - 1;
+        return (highest < 0) ? Long.MAX_VALUE : highest;  // top bucket overflows
+    }
+}
@@ -0,0 +1,104 @@
+package net.jstreams.tools;
+
+import java.util.Random;
+
+/*
+Latency of one backend call: a base delay drawn from a distribution, plus a transfer time at a fixed bandwidth.
+Parsed from strings like
+
+    none                no delay
+    fixed:2             always 2 ms
+    uniform:1-5         uniform between 1 and 5 ms
+    exp:3               exponential with a mean of 3 ms
+    lognormal:2,0.5     lognormal with a median of 2 ms and sigma 0.5 (long-tailed, like real storage)
+
+optionally followed by @<MB/s> for a bandwidth term, e.g. "fixed:1@200" is 1 ms plus 5 ms per MB.
+Times are fractional milliseconds.
+*/
+public class LatencyModel {
+
+    private enum Kind { NONE, FIXED, UNIFORM, EXPONENTIAL, LOGNORMAL }
+
+    private final Kind kind;
+    private final double a, b;                 // parameters of the distribution, in ms
+    private final double nanosPerByte;         // 0 means unlimited bandwidth
+    private final String spec;
+
+    private LatencyModel(Kind kind, double a, double b, double megabytesPerSecond, String spec) {
+        this.kind = kind;
+        this.a = a;
+        this.b = b;
+        this.nanosPerByte = (megabytesPerSecond > 0) ? 1e9 / (megabytesPerSecond * 1024 * 1024) : 0;
+        this.spec = spec;
+    }
+
+    public static LatencyModel none() {
+        return new LatencyModel(Kind.NONE, 0, 0, 0, "none");
+    }
+
+    public static LatencyModel parse(String spec) {
+        try {
+            String model = spec;
+            double bandwidth = 0;
+            int at = spec.indexOf('@');
+            if (at >= 0) {
+                model = spec.substring(0, at);
+                bandwidth = Double.parseDouble(spec.substring(at + 1));
+            }
+            if (model.equals("none") || model.isEmpty()) return new LatencyModel(Kind.NONE, 0, 0, bandwidth, spec);
+            int colon = model.indexOf(':');
+            if (colon < 0) throw new IllegalArgumentException("missing ':' in latency model " + spec);
+            String name = model.substring(0, colon);
+            String args = model.substring(colon + 1);
+            if (name.equals("fixed")) {
+                return new LatencyModel(Kind.FIXED, Double.parseDouble(args), 0, bandwidth, spec);
+            } else if (name.equals("uniform")) {
+                String[] range = args.split("-");
+                return new LatencyModel(Kind.UNIFORM, Double.parseDouble(range[0]), Double.parseDouble(range[1]),
+                        bandwidth, spec);
+            } else if (name.equals("exp")) {
+                return new LatencyModel(Kind.EXPONENTIAL, Double.parseDouble(args), 0, bandwidth, spec);
+            } else if (name.equals("lognormal")) {
+                String[] params = args.split(",");
+                return new LatencyModel(Kind.LOGNORMAL, Double.parseDouble(params[0]), Double.parseDouble(params[1]),
+                        bandwidth, spec);
+            }
+            throw new IllegalArgumentException("unknown latency model " + name);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("bad latency model " + spec, ex);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("bad latency model " + spec, ex);
+        }
+    }
+
+    public boolean isNone() {
+        return kind == Kind.NONE && nanosPerByte == 0;
+    }
+
+    // delay for a call transferring the given number of bytes
+    public long sampleNanos(Random random, long bytes) {
+        double millis;
+        switch (kind) {
+            case FIXED:
+                millis = a;
+                break;
+            case UNIFORM:
+                millis = a + (b - a) * random.nextDouble();
+                break;
+            case EXPONENTIAL:
+                millis = -a * Math.log(1 - random.nextDouble());
+                break;
+            case LOGNORMAL:
+                millis = a * Math.exp(b * random.nextGaussian());
+                break;
+            default:
+                millis = 0;
+        }
+        return (long) (millis * 1e6) + (long) (bytes * nanosPerByte);
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
@@ -0,0 +1,82 @@
+package net.jstreams.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+A stand-in backend: every write and flush is delayed according to a LatencyModel, then passed on to the underlying
+stream (if any). Like DelayOutputStream, but with distributions and a bandwidth term instead of fixed delays.
+*/
+public class LatencyModelOutputStream extends OutputStream {
+
+    private final OutputStream underlyingStream;
+    private final LatencyModel writeLatency;
+    private final LatencyModel flushLatency;
+    private final Random random = new Random();
+    private long bytesWritten = 0;
+    private long writeCalls = 0;
+    private long flushCalls = 0;
+
+    public LatencyModelOutputStream(OutputStream underlyingStream, LatencyModel writeLatency,
+                                    LatencyModel flushLatency) {
+        this.underlyingStream = underlyingStream;
+        this.writeLatency = writeLatency;
+        this.flushLatency = flushLatency;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        byte[] buf = new byte[1];
+        buf[0] = (byte) b;
+        write(buf, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        delay(writeLatency.sampleNanos(random, len));
+        if (underlyingStream != null) underlyingStream.write(b, off, len);
+        bytesWritten += len;
+        writeCalls++;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        delay(flushLatency.sampleNanos(random, 0));
+        if (underlyingStream != null) underlyingStream.flush();
+        flushCalls++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (underlyingStream != null) underlyingStream.close();
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public synchronized long getWriteCalls() {
+        return writeCalls;
+    }
+
+    public synchronized long getFlushCalls() {
+        return flushCalls;
+    }
+
+    private static void delay(long nanos) {
+        if (nanos <= 0) return;
+        long deadline = System.nanoTime() + nanos;
+        long remaining = nanos;
+        while (remaining > 0) {
+            if (remaining > TimeUnit.MICROSECONDS.toNanos(100)) {
+                LockSupport.parkNanos(remaining);
+            } else {
+                Thread.yield();   // parkNanos overshoots badly for very short delays
+            }
+            remaining = deadline - System.nanoTime();
+        }
+    }
+}
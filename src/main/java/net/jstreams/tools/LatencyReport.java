@@ -0,0 +1,112 @@
+package net.jstreams.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Collects named latency histograms plus a few run-level numbers, and prints them as a text table or appends them as
+CSV rows (one row per histogram, run parameters repeated on every row so files from many runs can be concatenated).
+*/
+public class LatencyReport {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private final Map<String, String> parameters = new LinkedHashMap<String, String>();
+    private final Map<String, String> results = new LinkedHashMap<String, String>();
+    private final List<String> names = new ArrayList<String>();
+    private final List<LatencyHistogram> histograms = new ArrayList<LatencyHistogram>();
+
+    public LatencyReport parameter(String name, Object value) {
+        parameters.put(name, String.valueOf(value));
+        return this;
+    }
+
+    public LatencyReport result(String name, Object value) {
+        results.put(name, String.valueOf(value));
+        return this;
+    }
+
+    public LatencyReport histogram(String name, LatencyHistogram histogram) {
+        names.add(name);
+        histograms.add(histogram);
+        return this;
+    }
+
+    // for tests: a result as reported, or null
+    String getResult(String name) {
+        return results.get(name);
+    }
+
+    // for tests: the named histogram, or null
+    LatencyHistogram getHistogram(String name) {
+        int i = names.indexOf(name);
+        return (i < 0) ? null : histograms.get(i);
+    }
+
+    public void printText(PrintStream out) {
+        StringBuilder line = new StringBuilder();
+        for (Map.Entry<String, String> e : parameters.entrySet()) {
+            line.append(e.getKey()).append('=').append(e.getValue()).append(' ');
+        }
+        out.println(line.toString().trim());
+        for (Map.Entry<String, String> e : results.entrySet()) {
+            out.format("  %-24s %s%n", e.getKey(), e.getValue());
+        }
+        out.format("  %-20s %10s %10s", "latency (us)", "count", "mean");
+        for (double p : PERCENTILES) out.format(" %10s", "p" + formatPercentile(p));
+        out.format(" %10s%n", "max");
+        for (int i = 0; i < names.size(); i++) {
+            LatencyHistogram h = histograms.get(i);
+            out.format("  %-20s %10d %10.1f", names.get(i), h.getCount(), h.getMean() / 1000.0);
+            for (double p : PERCENTILES) out.format(" %10.1f", h.getPercentile(p) / 1000.0);
+            out.format(" %10.1f%n", h.getMax() / 1000.0);
+        }
+    }
+
+    public void appendCsv(File file) throws IOException {
+        boolean newFile = !file.exists() || file.length() == 0;
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+        try {
+            if (newFile) {
+                StringBuilder header = new StringBuilder();
+                for (String key : parameters.keySet()) header.append(key).append(',');
+                for (String key : results.keySet()) header.append(key).append(',');
+                header.append("metric,count,mean_us");
+                for (double p : PERCENTILES) header.append(",p").append(formatPercentile(p)).append("_us");
+                header.append(",max_us");
+                out.println(header);
+            }
+            for (int i = 0; i < names.size(); i++) {
+                LatencyHistogram h = histograms.get(i);
+                StringBuilder row = new StringBuilder();
+                for (String value : parameters.values()) row.append(csvField(value)).append(',');
+                for (String value : results.values()) row.append(csvField(value)).append(',');
+                row.append(csvField(names.get(i))).append(',').append(h.getCount());
+                row.append(',').append(String.format("%.1f", h.getMean() / 1000.0));
+                for (double p : PERCENTILES) row.append(',').append(String.format("%.1f", h.getPercentile(p) / 1000.0));
+                row.append(',').append(String.format("%.1f", h.getMax() / 1000.0));
+                out.println(row);
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) throw new IOException("error writing " + file);
+    }
+
+    private static String formatPercentile(double p) {
+        return (p == Math.rint(p)) ? String.valueOf((long) p) : String.valueOf(p);
+    }
+
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,354 @@
+package net.jstreams.tools;
+
+import net.jstreams.streams.CoalescingOptions;
+import net.jstreams.streams.CoalescingOutputStream;
+import net.jstreams.streams.CombiningOutputStream;
+import net.jstreams.streams.BlockingWaitStrategy;
+import net.jstreams.streams.BusySpinWaitStrategy;
+import net.jstreams.streams.ShardedCoalescingOutputStream;
+import net.jstreams.streams.SpinThenParkWaitStrategy;
+import net.jstreams.streams.SynchronizedOutputStream;
+import net.jstreams.streams.WaitStrategy;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+Load generator for the output streams in this library, for sizing buffers on real hardware.
+
+    java -cp jStreams.jar net.jstreams.tools.LoadGenerator --threads=32 --rate=200000 --size=lognormal:256,1 \
+         --flush-every=100 --write-latency=lognormal:2,0.5@400 --flush-latency=fixed:5 --duration=30 --csv=out.csv
+
+Writer threads write payload bytes of sampled sizes to one shared stream, over a backend with a modeled latency.
+With --rate, the load is open-loop: every write has an intended start time on a fixed schedule, and latency is
+measured from that time, not from when the (possibly delayed) thread got around to it. That keeps a slow stream from
+hiding its own stalls (coordinated omission). Without --rate the threads write as fast as they can.
+
+With --trace, the writes come from a trace recorded by TracingOutputStream instead: its threads, write sizes and
+timing (scaled by --speed), replayed open-loop by TraceReplayer, with the whole trace measured. --threads, --rate,
+--size, --flush-every, --duration and --warmup are then ignored. This is how to try buffer and shuttle settings on
+real traffic:
+
+    java -cp jStreams.jar net.jstreams.tools.LoadGenerator --trace=prod.trace --stream=coalescing --max-buffer=1M \
+         --write-latency=lognormal:2,0.5@400
+
+Reports throughput, and write/flush latency percentiles as text, and optionally appends them to a CSV file.
+*/
+public class LoadGenerator {
+
+    private static final String USAGE =
+            "options (all --name=value):\n" +
+            "  --threads        writer threads (8)\n" +
+            "  --duration       measured seconds (10)\n" +
+            "  --warmup         seconds before measuring starts (2)\n" +
+            "  --rate           target writes/second across all threads; 0 = closed loop, as fast as possible (0)\n" +
+            "  --size           write size distribution: fixed:N, uniform:A-B, exp:MEAN, lognormal:MEDIAN,SIGMA\n" +
+            "                   (fixed:320)\n" +
+            "  --flush-every    each thread flushes after this many writes; 0 = never (0)\n" +
+            "  --write-latency  backend write latency: none, fixed:MS, uniform:A-B, exp:MEAN, lognormal:MEDIAN,SIGMA,\n" +
+            "                   optionally @MB/s for a bandwidth term (none)\n" +
+            "  --flush-latency  backend flush latency, same format (fixed:1)\n" +
+            "  --stream         coalescing, sharded (unordered, one ring per lane), combining (flat combining: the lock\n" +
+            "                   holder writes everyone's queued writes as one), synchronized (every write goes to\n" +
+            "                   the backend), or direct (the backend itself, which serializes calls) (coalescing)\n" +
+            "  --lanes          sharded stream lanes (number of processors)\n" +
+            "  --initial-buffer coalescing ring initial size, bytes; K/M suffixes allowed (64K)\n" +
+            "  --max-buffer     coalescing ring max size and sharded lane ring size; also the largest write (4M)\n" +
+            "  --max-ring       coalescing: let the ring grow past --max-buffer, up to this; K/M/G suffixes allowed\n" +
+            "  --wait           coalescing wait strategy: blocking, spin (spin-then-park, default phases),\n" +
+            "                   spin:SPINS,YIELDS,PARKS,PARK_NANOS, or busy; default blocking\n" +
+            "  --spill-dir      coalescing: spill writes that find the ring full to a file here (off)\n" +
+            "  --spill-limit    coalescing: most bytes one overflow spills; K/M/G suffixes allowed (1G)\n" +
+            "                   (--lanes and the coalescing-only options are rejected for other stream types)\n" +
+            "  --trace          replay this TracingOutputStream trace instead of generating load\n" +
+            "  --speed          trace replay speed factor; 2 = twice as fast as recorded (1)\n" +
+            "  --csv            append results to this CSV file\n" +
+            "  --label          free-form label for the CSV rows\n";
+
+    private final Map<String, String> options;
+    private final int threads;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final double rate;
+    private final SizeDistribution sizes;
+    private final int flushEvery;
+    private final LatencyModel writeLatency;
+    private final LatencyModel flushLatency;
+    private final String streamType;
+    private final int initialBuffer;
+    private final int maxBuffer;
+    private final long maxRing;   // 0: --max-buffer
+    private final WaitStrategy waitStrategy;
+    private final int lanes;
+    private final File spillDirectory;
+    private final long spillLimit;
+    private final File traceFile;
+    private final double speed;
+
+    public LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.threads = Integer.parseInt(get("threads", "8"));
+        this.durationNanos = TimeUnit.MILLISECONDS.toNanos((long) (Double.parseDouble(get("duration", "10")) * 1000));
+        this.warmupNanos = TimeUnit.MILLISECONDS.toNanos((long) (Double.parseDouble(get("warmup", "2")) * 1000));
+        this.rate = Double.parseDouble(get("rate", "0"));
+        this.sizes = SizeDistribution.parse(get("size", "fixed:320"));
+        this.flushEvery = Integer.parseInt(get("flush-every", "0"));
+        this.writeLatency = LatencyModel.parse(get("write-latency", "none"));
+        this.flushLatency = LatencyModel.parse(get("flush-latency", "fixed:1"));
+        this.streamType = get("stream", "coalescing");
+        this.initialBuffer = parseSize(get("initial-buffer", "64K"));
+        this.maxBuffer = parseSize(get("max-buffer", "4M"));
+        this.maxRing = parseLongSize(get("max-ring", "0"));
+        this.waitStrategy = parseWaitStrategy(get("wait", "blocking"));
+        this.lanes = Integer.parseInt(get("lanes", Integer.toString(Runtime.getRuntime().availableProcessors())));
+        this.spillDirectory = options.containsKey("spill-dir") ? new File(options.get("spill-dir")) : null;
+        this.spillLimit = parseLongSize(get("spill-limit", "1G"));
+        this.traceFile = options.containsKey("trace") ? new File(options.get("trace")) : null;
+        this.speed = Double.parseDouble(get("speed", "1"));
+        if (speed <= 0) throw new IllegalArgumentException("speed must be positive");
+        if (threads <= 0) throw new IllegalArgumentException("threads must be positive");
+        // options a stream type ignores would otherwise still be reported, as if they applied to its results
+        if (!streamType.equals("coalescing")) {
+            for (String name : new String[] {"initial-buffer", "max-ring", "wait", "spill-dir", "spill-limit"}) {
+                if (options.containsKey(name)) {
+                    throw new IllegalArgumentException("--" + name + " is only used by --stream=coalescing");
+                }
+            }
+        }
+        if (!streamType.equals("sharded") && options.containsKey("lanes")) {
+            throw new IllegalArgumentException("--lanes is only used by --stream=sharded");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options;
+        try {
+            options = parseArgs(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options.containsKey("help")) {
+            System.out.print(USAGE);
+            return;
+        }
+        LatencyReport report = new LoadGenerator(options).run();
+        report.printText(System.out);
+        if (options.containsKey("csv")) report.appendCsv(new File(options.get("csv")));
+    }
+
+    static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) throw new IllegalArgumentException("unexpected argument " + arg);
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                options.put(arg.substring(2), "");
+            } else {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        return options;
+    }
+
+    static int parseSize(String s) {
+        long size = parseLongSize(s);
+        if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("size too large: " + s);
+        return (int) size;
+    }
+
+    static long parseLongSize(String s) {
+        s = s.trim().toUpperCase();
+        long multiplier = 1;
+        if (s.endsWith("K")) multiplier = 1024;
+        if (s.endsWith("M")) multiplier = 1024 * 1024;
+        if (s.endsWith("G")) multiplier = 1024 * 1024 * 1024;
+        if (multiplier > 1) s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) * multiplier;
+    }
+
+    static WaitStrategy parseWaitStrategy(String s) {
+        if (s.equals("blocking")) return new BlockingWaitStrategy();
+        if (s.equals("busy")) return new BusySpinWaitStrategy();
+        if (s.equals("spin")) return new SpinThenParkWaitStrategy();
+        if (s.startsWith("spin:")) {
+            String[] phases = s.substring(5).split(",");
+            if (phases.length != 4) throw new IllegalArgumentException("expected spin:SPINS,YIELDS,PARKS,PARK_NANOS");
+            return new SpinThenParkWaitStrategy(Integer.parseInt(phases[0].trim()), Integer.parseInt(phases[1].trim()),
+                    Integer.parseInt(phases[2].trim()), Long.parseLong(phases[3].trim()));
+        }
+        throw new IllegalArgumentException("unknown wait strategy " + s);
+    }
+
+    private String get(String name, String defaultValue) {
+        String value = options.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+
+    public LatencyReport run() throws Exception {
+        TraceReplayer replayer = (traceFile != null) ? TraceReplayer.load(traceFile) : null;
+        LatencyModelOutputStream backend = new LatencyModelOutputStream(null, writeLatency, flushLatency);
+        OutputStream stream = openStream(backend);
+        byte[] payload = new byte[Math.max(maxBuffer, (replayer != null) ? replayer.getMaxWriteSize() : 0)];
+        new Random(42).nextBytes(payload);
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10); // give all threads time to start
+        LoadWriter[] writers;
+        long measuredNanos;
+        if (replayer != null) {
+            writers = replayer.writers(stream, payload, start, speed);
+            measuredNanos = Math.max(1, (long) (replayer.getDurationNanos() / speed));
+        } else {
+            long measureStart = start + warmupNanos;
+            long end = measureStart + durationNanos;
+            writers = new LoadWriter[threads];
+            for (int i = 0; i < threads; i++) writers[i] = new Writer(i, stream, payload, start, measureStart, end);
+            measuredNanos = durationNanos;
+        }
+        Thread[] workerThreads = new Thread[writers.length];
+        for (int i = 0; i < writers.length; i++) {
+            workerThreads[i] = new Thread(writers[i], "LoadWriter" + i);
+        }
+        for (Thread t : workerThreads) t.start();
+        for (Thread t : workerThreads) t.join();
+
+        long closeStart = System.nanoTime();
+        stream.close();
+        long closeNanos = System.nanoTime() - closeStart;
+
+        LatencyHistogram response = new LatencyHistogram();
+        LatencyHistogram service = new LatencyHistogram();
+        LatencyHistogram flushes = new LatencyHistogram();
+        long bytes = 0, writes = 0;
+        for (LoadWriter w : writers) {
+            if (w.error != null) throw w.error;
+            response.add(w.response);
+            service.add(w.service);
+            flushes.add(w.flushes);
+            bytes += w.bytes;
+            writes += w.writes;
+        }
+
+        double seconds = measuredNanos / 1e9;
+        LatencyReport report = new LatencyReport()
+                .parameter("label", get("label", ""))
+                .parameter("stream", streamType)
+                .parameter("threads", writers.length);
+        if (replayer != null) {
+            report.parameter("trace", traceFile.getName())
+                    .parameter("speed", speed);
+        } else {
+            report.parameter("rate", (long) rate)
+                    .parameter("size", sizes)
+                    .parameter("flushEvery", flushEvery);
+        }
+        report.parameter("writeLatency", writeLatency)
+                .parameter("flushLatency", flushLatency)
+                .parameter("maxBuffer", maxBuffer);
+        if (streamType.equals("coalescing")) {
+            report.parameter("maxRing", Math.max(maxRing, maxBuffer))
+                    .parameter("wait", waitStrategy);
+        } else if (streamType.equals("sharded")) {
+            report.parameter("lanes", lanes);
+        }
+        report.result("MBps", String.format("%.2f", bytes / seconds / (1024 * 1024)))
+                .result("writesPerSec", String.format("%.0f", writes / seconds))
+                .result("backendWrites", backend.getWriteCalls())
+                .result("backendFlushes", backend.getFlushCalls())
+                .result("avgBackendWriteBytes",
+                        backend.getWriteCalls() == 0 ? 0 : backend.getBytesWritten() / backend.getWriteCalls())
+                .result("closeMs", TimeUnit.NANOSECONDS.toMillis(closeNanos));
+        if (stream instanceof CoalescingOutputStream && spillDirectory != null) {
+            CoalescingOutputStream coalescing = (CoalescingOutputStream) stream;
+            report.result("spilledBytes", coalescing.getSpilledBytes())
+                    .result("spills", coalescing.getSpillCount())
+                    .result("maxSpillDrainMs", coalescing.getMaxSpillDrainMillis());
+        }
+        if (rate > 0 || replayer != null) report.histogram("write (from intended)", response);
+        report.histogram("write (service)", service);
+        if (flushes.getCount() > 0) report.histogram("flush", flushes);
+        return report;
+    }
+
+    private OutputStream openStream(OutputStream backend) {
+        if (streamType.equals("coalescing")) {
+            CoalescingOptions coalescingOptions = new CoalescingOptions()
+                    .setInitialBufferSize(initialBuffer)
+                    .setMaxBufferSize(maxBuffer)
+                    .setWaitStrategy(waitStrategy)
+                    .setSpillDirectory(spillDirectory)
+                    .setSpillLimit(spillLimit);
+            if (maxRing > 0) coalescingOptions.setMaxRingSize(maxRing);
+            return new CoalescingOutputStream(backend, coalescingOptions);
+        } else if (streamType.equals("sharded")) {
+            return new ShardedCoalescingOutputStream(backend, lanes, new CoalescingOptions().setMaxBufferSize(maxBuffer));
+        } else if (streamType.equals("combining")) {
+            return new CombiningOutputStream(backend);
+        } else if (streamType.equals("synchronized")) {
+            return new SynchronizedOutputStream(backend);
+        } else if (streamType.equals("direct")) {
+            return backend;
+        }
+        throw new IllegalArgumentException("unknown stream type " + streamType);
+    }
+
+    private class Writer extends LoadWriter {
+        final int index;
+        final OutputStream stream;
+        final byte[] payload;
+        final long start, measureStart, end;
+        final Random random;
+
+        Writer(int index, OutputStream stream, byte[] payload, long start, long measureStart, long end) {
+            this.index = index;
+            this.stream = stream;
+            this.payload = payload;
+            this.start = start;
+            this.measureStart = measureStart;
+            this.end = end;
+            this.random = new Random(index);
+        }
+
+        public void run() {
+            long interval = (rate > 0) ? (long) (threads * 1e9 / rate) : 0;
+            long intended = start + (interval * index) / threads;   // spread the threads over one interval
+            long count = 0;
+            try {
+                while (true) {
+                    if (interval > 0) {
+                        waitUntil(intended);
+                    } else {
+                        intended = System.nanoTime();
+                    }
+                    if (intended >= end) break;
+                    int size = sizes.sample(random, payload.length);
+                    int offset = random.nextInt(payload.length - size + 1);
+                    long writeStart = System.nanoTime();
+                    stream.write(payload, offset, size);
+                    long writeEnd = System.nanoTime();
+                    if (intended >= measureStart) {
+                        response.record(writeEnd - intended);
+                        service.record(writeEnd - writeStart);
+                        bytes += size;
+                        writes++;
+                    }
+                    count++;
+                    if (flushEvery > 0 && count % flushEvery == 0) {
+                        long flushStart = System.nanoTime();
+                        stream.flush();
+                        if (intended >= measureStart) flushes.record(System.nanoTime() - flushStart);
+                    }
+                    intended += interval;
+                }
+            } catch (Exception ex) {
+                error = ex;
+            }
+        }
+    }
+}
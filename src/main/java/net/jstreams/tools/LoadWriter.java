@@ -0,0 +1,27 @@
+package net.jstreams.tools;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+One writer thread of a load run - synthetic (LoadGenerator) or replayed from a trace (TraceReplayer) - and what it
+measured. LoadGenerator merges these into its report.
+*/
+abstract class LoadWriter implements Runnable {
+    final LatencyHistogram response = new LatencyHistogram();   // from the intended start of each write
+    final LatencyHistogram service = new LatencyHistogram();    // from the actual start
+    final LatencyHistogram flushes = new LatencyHistogram();
+    long bytes = 0, writes = 0;
+    Exception error = null;
+
+    static void waitUntil(long time) {
+        long remaining;
+        while ((remaining = time - System.nanoTime()) > 0) {
+            if (remaining > TimeUnit.MICROSECONDS.toNanos(100)) {
+                LockSupport.parkNanos(remaining - TimeUnit.MICROSECONDS.toNanos(50));
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package net.jstreams.tools;
+
+import java.util.Random;
+
+/*
+Distribution of write sizes, in bytes. Parsed from strings like
+
+    fixed:320
+    uniform:1-4096
+    exp:512             exponential with a mean of 512
+    lognormal:256,1.0   lognormal with a median of 256 and sigma 1.0 (mostly small, with occasional big writes)
+
+Samples are at least 1, and capped at the given max.
+*/
+public class SizeDistribution {
+
+    private enum Kind { FIXED, UNIFORM, EXPONENTIAL, LOGNORMAL }
+
+    private final Kind kind;
+    private final double a, b;
+    private final String spec;
+
+    private SizeDistribution(Kind kind, double a, double b, String spec) {
+        this.kind = kind;
+        this.a = a;
+        this.b = b;
+        this.spec = spec;
+    }
+
+    public static SizeDistribution parse(String spec) {
+        try {
+            int colon = spec.indexOf(':');
+            if (colon < 0) throw new IllegalArgumentException("missing ':' in size distribution " + spec);
+            String name = spec.substring(0, colon);
+            String args = spec.substring(colon + 1);
+            if (name.equals("fixed")) {
+                return new SizeDistribution(Kind.FIXED, Double.parseDouble(args), 0, spec);
+            } else if (name.equals("uniform")) {
+                String[] range = args.split("-");
+                return new SizeDistribution(Kind.UNIFORM, Double.parseDouble(range[0]), Double.parseDouble(range[1]),
+                        spec);
+            } else if (name.equals("exp")) {
+                return new SizeDistribution(Kind.EXPONENTIAL, Double.parseDouble(args), 0, spec);
+            } else if (name.equals("lognormal")) {
+                String[] params = args.split(",");
+                return new SizeDistribution(Kind.LOGNORMAL, Double.parseDouble(params[0]),
+                        Double.parseDouble(params[1]), spec);
+            }
+            throw new IllegalArgumentException("unknown size distribution " + name);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("bad size distribution " + spec, ex);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("bad size distribution " + spec, ex);
+        }
+    }
+
+    public int sample(Random random, int max) {
+        double size;
+        switch (kind) {
+            case FIXED:
+                size = a;
+                break;
+            case UNIFORM:
+                size = a + (b - a + 1) * random.nextDouble();
+                break;
+            case EXPONENTIAL:
+                size = -a * Math.log(1 - random.nextDouble());
+                break;
+            default:
+                size = a * Math.exp(b * random.nextGaussian());
+        }
+        if (size < 1) return 1;
+        if (size > max) return max;
+        return (int) size;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
@@ -0,0 +1,173 @@
+package net.jstreams.tools;
+
+import net.jstreams.streams.TraceReader;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+Replays a TracingOutputStream trace: one thread per traced thread, each making its writes (of the traced sizes,
+with payload bytes) and flushes at the traced times, scaled by a speed factor. Like LoadGenerator with --rate, the
+load is open-loop - a call that falls behind its schedule is measured from when it should have started - so a
+configuration that stalls shows it, instead of quietly replaying slower. The traced closes are not replayed; the
+caller closes the stream when the replay is done.
+
+The whole trace is loaded up front (12 bytes per event), so replay timing does not depend on reading it.
+*/
+public class TraceReplayer {
+
+    private static final int FLUSH = -1;
+
+    private final long[][] times;   // per thread: event times, nanoseconds from the start of the trace
+    private final int[][] sizes;    // per thread: write size, or FLUSH
+    private final long durationNanos;
+    private final long writeCount;
+    private final long byteCount;
+    private final int maxWriteSize;
+
+    private TraceReplayer(long[][] times, int[][] sizes, long durationNanos) {
+        this.times = times;
+        this.sizes = sizes;
+        this.durationNanos = durationNanos;
+        long w = 0, b = 0;
+        int max = 0;
+        for (int[] threadSizes : sizes) {
+            for (int s : threadSizes) {
+                if (s == FLUSH) continue;
+                w++;
+                b += s;
+                max = Math.max(max, s);
+            }
+        }
+        this.writeCount = w;
+        this.byteCount = b;
+        this.maxWriteSize = max;
+    }
+
+    public static TraceReplayer load(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        try {
+            return load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static TraceReplayer load(InputStream in) throws IOException {
+        TraceReader trace = new TraceReader(in);
+        List<long[]> times = new ArrayList<long[]>();
+        List<int[]> sizes = new ArrayList<int[]>();
+        List<Integer> counts = new ArrayList<Integer>();
+        long duration = 0;
+        while (trace.next()) {
+            duration = trace.getTimeNanos();
+            if (trace.getKind() == TraceReader.Kind.CLOSE) continue;
+            int t = trace.getThread();
+            while (times.size() <= t) {
+                times.add(new long[64]);
+                sizes.add(new int[64]);
+                counts.add(0);
+            }
+            int n = counts.get(t);
+            if (n == times.get(t).length) {
+                times.set(t, Arrays.copyOf(times.get(t), n * 2));
+                sizes.set(t, Arrays.copyOf(sizes.get(t), n * 2));
+            }
+            times.get(t)[n] = trace.getTimeNanos();
+            sizes.get(t)[n] = (trace.getKind() == TraceReader.Kind.WRITE) ? trace.getSize() : FLUSH;
+            counts.set(t, n + 1);
+        }
+        long[][] timeArrays = new long[times.size()][];
+        int[][] sizeArrays = new int[times.size()][];
+        for (int t = 0; t < times.size(); t++) {
+            timeArrays[t] = Arrays.copyOf(times.get(t), counts.get(t));
+            sizeArrays[t] = Arrays.copyOf(sizes.get(t), counts.get(t));
+        }
+        return new TraceReplayer(timeArrays, sizeArrays, duration);
+    }
+
+    public int getThreadCount() {
+        return times.length;
+    }
+
+    // from the traced stream's creation to its last event
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    public int getMaxWriteSize() {
+        return maxWriteSize;
+    }
+
+    /*
+    Writers for a replay into stream, starting at start (System.nanoTime()); speed 2 replays twice as fast. payload
+    must be at least getMaxWriteSize() long. Run each on a thread of its own.
+    */
+    LoadWriter[] writers(OutputStream stream, byte[] payload, long start, double speed) {
+        if (payload.length < maxWriteSize) throw new IllegalArgumentException("payload smaller than largest write");
+        if (speed <= 0) throw new IllegalArgumentException("speed must be positive");
+        LoadWriter[] writers = new LoadWriter[times.length];
+        for (int t = 0; t < times.length; t++) writers[t] = new ReplayWriter(t, stream, payload, start, speed);
+        return writers;
+    }
+
+    private final class ReplayWriter extends LoadWriter {
+        final int thread;
+        final OutputStream stream;
+        final byte[] payload;
+        final long start;
+        final double speed;
+
+        ReplayWriter(int thread, OutputStream stream, byte[] payload, long start, double speed) {
+            this.thread = thread;
+            this.stream = stream;
+            this.payload = payload;
+            this.start = start;
+            this.speed = speed;
+        }
+
+        public void run() {
+            long[] eventTimes = times[thread];
+            int[] eventSizes = sizes[thread];
+            // spread over the payload, so writes do not all copy the same (cached) bytes
+            int offset = (thread * 7919) % Math.max(1, payload.length - maxWriteSize + 1);
+            try {
+                for (int i = 0; i < eventTimes.length; i++) {
+                    long intended = start + (long) (eventTimes[i] / speed);
+                    waitUntil(intended);
+                    long callStart = System.nanoTime();
+                    if (eventSizes[i] == FLUSH) {
+                        stream.flush();
+                        flushes.record(System.nanoTime() - callStart);
+                    } else {
+                        int size = eventSizes[i];
+                        stream.write(payload, offset, size);
+                        long callEnd = System.nanoTime();
+                        response.record(callEnd - intended);
+                        service.record(callEnd - callStart);
+                        bytes += size;
+                        writes++;
+                        offset = (offset + 4099) % Math.max(1, payload.length - maxWriteSize + 1);
+                    }
+                }
+            } catch (Exception ex) {
+                error = ex;
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/*
+Flow.Subscriber front end for a CoalescingOutputStream it owns: buffers from upstream go into the ring, and the
+shuttle writes them to the sink as usual - but nobody blocks. Buffers are copied in with tryWrite(); one that does
+not fit waits in the subscriber until the shuttle reports a finished batch, and only then is more requested, so
+demand follows ring space. At most maxOutstanding buffers are requested or waiting at a time.
+
+getCompletion() completes with the number of bytes persisted, once upstream has completed and the shuttle has
+drained the ring and closed the sink. A sink error (the stream's lastError) cancels the subscription and completes
+it exceptionally; an upstream error completes it with that error, after closing the sink.
+
+Buffers are consumed (their position moves to the limit), and may be reused by upstream once consumed. The stream
+must not use a SlabBufferPool: without one, a write into an empty ring can always go ahead, which is what
+guarantees a shuttle batch - and so a retry - after every tryWrite() that did not fit. That holds with a RetryPolicy
+too, where a batch's space stays taken until it is persisted: the shuttle frees it before it calls afterBatch, so
+the retry from there sees it. A batch that is being retried does not call afterBatch; the one that finally persists
+it, or gives up, does.
+*/
+public class CoalescingSubscriber implements Flow.Subscriber<ByteBuffer> {
+
+    public static final int DEFAULT_MAX_OUTSTANDING = 16;
+
+    private final CoalescingOutputStream out;
+    private final int maxOutstanding;
+    private final CompletableFuture<Long> completion = new CompletableFuture<Long>();
+
+    // all guarded by this
+    private Flow.Subscription subscription = null;
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+    private int requested = 0;       // asked for and not yet received
+    private boolean upstreamDone = false;
+    private boolean finished = false;
+    private byte[] scratch = null;   // for direct buffers
+
+    public CoalescingSubscriber(OutputStream sink) {
+        this(sink, new CoalescingOptions(), DEFAULT_MAX_OUTSTANDING);
+    }
+
+    public CoalescingSubscriber(OutputStream sink, CoalescingOptions options, int maxOutstanding) {
+        if (options.getBufferPool() != null) {
+            throw new IllegalArgumentException("buffer pools are not supported by CoalescingSubscriber");
+        }
+        if (maxOutstanding <= 0) throw new IllegalArgumentException("max outstanding must be positive");
+        this.out = new CoalescingOutputStream(sink, options);
+        this.maxOutstanding = maxOutstanding;
+        out.setShuttleListener(new CoalescingOutputStream.ShuttleListener() {
+            public void afterBatch(long persistedIndex, IOException error) {
+                if (error != null) {
+                    fail(error);
+                } else {
+                    synchronized (CoalescingSubscriber.this) {
+                        drain();
+                    }
+                }
+            }
+
+            public void closed(IOException error) {
+                if (error == null) {
+                    completion.complete(out.getPersistedBytes());
+                } else {
+                    completion.completeExceptionally(error);
+                }
+            }
+        });
+    }
+
+    public CompletableFuture<Long> getCompletion() {
+        return completion;
+    }
+
+    // the stream behind the subscriber, for its statistics
+    public CoalescingOutputStream getStream() {
+        return out;
+    }
+
+    public synchronized void onSubscribe(Flow.Subscription s) {
+        if (subscription != null || finished) {   // only one subscription, ever
+            s.cancel();
+            return;
+        }
+        subscription = s;
+        drain();
+    }
+
+    public synchronized void onNext(ByteBuffer buffer) {
+        if (finished) return;
+        requested--;
+        pending.add(buffer);
+        drain();
+    }
+
+    public synchronized void onError(Throwable t) {
+        if (finished) return;
+        finished = true;
+        pending.clear();
+        completion.completeExceptionally(t);
+        out.closeAsync();
+    }
+
+    public synchronized void onComplete() {
+        if (finished) return;
+        upstreamDone = true;
+        drain();
+    }
+
+    // copies what fits into the ring; then either closes (upstream done) or asks for more. Caller holds this.
+    private void drain() {
+        if (finished || subscription == null) return;
+        try {
+            while (!pending.isEmpty()) {
+                ByteBuffer b = pending.peek();
+                while (b.hasRemaining()) {
+                    int n = Math.min(b.remaining(), out.getMaxWriteSize());
+                    byte[] array;
+                    int off;
+                    if (b.hasArray()) {
+                        array = b.array();
+                        off = b.arrayOffset() + b.position();
+                    } else {
+                        if (scratch == null || scratch.length < n) scratch = new byte[n];
+                        b.duplicate().get(scratch, 0, n);
+                        array = scratch;
+                        off = 0;
+                    }
+                    if (!out.tryWrite(array, off, n)) return;   // the shuttle's next afterBatch calls us again
+                    b.position(b.position() + n);
+                }
+                pending.poll();
+            }
+        } catch (IOException ex) {
+            failLocked(ex);
+            return;
+        }
+        if (upstreamDone) {
+            finished = true;
+            out.closeAsync();        // completion comes from the listener's closed()
+            return;
+        }
+        int n = maxOutstanding - requested - pending.size();
+        if (n > 0) {
+            requested += n;
+            subscription.request(n);
+        }
+    }
+
+    private synchronized void fail(IOException ex) {
+        failLocked(ex);
+    }
+
+    private void failLocked(IOException ex) {
+        if (finished) return;
+        finished = true;
+        pending.clear();
+        if (subscription != null) subscription.cancel();
+        completion.completeExceptionally(ex);
+        out.closeAsync();
+    }
+}
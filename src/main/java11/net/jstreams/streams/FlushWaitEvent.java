@@ -0,0 +1,25 @@
+package net.jstreams.streams;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+@Name("net.jstreams.FlushWait")
+@Label("Flush Wait")
+@Category({"jStreams", "Coalescing"})
+@Description("A flush() on a CoalescingOutputStream waiting for the shuttle to persist earlier writes")
+@Threshold("20 ms")
+class FlushWaitEvent extends Event {
+
+    @Label("Stream")
+    String stream;
+
+    @Label("Bytes Waited For")
+    @Description("Bytes written but not yet persisted when the flush started")
+    @DataAmount
+    long bytesWaitedFor;
+}
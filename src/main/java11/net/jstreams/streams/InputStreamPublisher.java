@@ -0,0 +1,180 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Flow.Publisher over an InputStream, for one subscriber. Reads run as tasks on the given executor, and only while
+there is demand: the first request starts them, and they keep at most readAhead chunks read and not yet delivered.
+With no demand and the read-ahead full, no thread is tied up - the next request() schedules the task again.
+
+Each onNext gets a fresh buffer of up to chunkSize bytes (one read() call's worth). The stream is closed when it ends,
+fails, or the subscription is cancelled. A read error is passed to onError.
+
+Signals to the subscriber are serialized through a work-in-progress counter, so request() from inside onNext just
+adds demand for the running task to pick up instead of recursing.
+*/
+public class InputStreamPublisher implements Flow.Publisher<ByteBuffer> {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int DEFAULT_READ_AHEAD = 4;
+
+    private final InputStream in;
+    private final Executor executor;
+    private final int chunkSize;
+    private final int readAhead;
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    public InputStreamPublisher(InputStream in, Executor executor) {
+        this(in, executor, DEFAULT_CHUNK_SIZE, DEFAULT_READ_AHEAD);
+    }
+
+    public InputStreamPublisher(InputStream in, Executor executor, int chunkSize, int readAhead) {
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunk size must be positive");
+        if (readAhead <= 0) throw new IllegalArgumentException("read-ahead must be at least one chunk");
+        this.in = in;
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+        this.readAhead = readAhead;
+    }
+
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (subscriber == null) throw new NullPointerException("null subscriber");
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {}
+
+                public void cancel() {}
+            });
+            subscriber.onError(new IllegalStateException("InputStreamPublisher allows only one subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new ReadSubscription(subscriber));
+    }
+
+    private final class ReadSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private volatile boolean started = false;
+        private volatile Throwable badRequest = null;
+
+        // task-only
+        private final ArrayDeque<ByteBuffer> ready = new ArrayDeque<ByteBuffer>();
+        private boolean eof = false;
+        private boolean done = false;
+
+        ReadSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("request(" + n + "): demand must be positive");
+            } else {
+                long current, next;
+                do {
+                    current = demand.get();
+                    next = current + n;
+                    if (next < 0) next = Long.MAX_VALUE;   // unbounded
+                } while (!demand.compareAndSet(current, next));
+                started = true;
+            }
+            schedule();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() != 0) return;   // the running task will see the new state
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                wip.set(0);
+                if (!cancelled) {
+                    cancelled = true;
+                    closeQuietly();
+                    subscriber.onError(ex);
+                }
+            }
+        }
+
+        public void run() {
+            int missed = 1;
+            while (true) {
+                loop();
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) return;
+            }
+        }
+
+        private void loop() {
+            while (!done) {
+                if (cancelled) {
+                    done = true;
+                    ready.clear();
+                    closeQuietly();
+                    return;
+                }
+                if (badRequest != null) {
+                    done = true;
+                    closeQuietly();
+                    subscriber.onError(badRequest);
+                    return;
+                }
+                if (!ready.isEmpty() && demand.get() > 0) {
+                    if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+                    subscriber.onNext(ready.poll());
+                    continue;
+                }
+                if (eof) {
+                    if (ready.isEmpty()) {
+                        done = true;
+                        closeQuietly();
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+                if (started && ready.size() < readAhead) {
+                    byte[] chunk = new byte[chunkSize];
+                    int n;
+                    try {
+                        n = in.read(chunk, 0, chunkSize);
+                    } catch (IOException ex) {
+                        done = true;
+                        closeQuietly();
+                        subscriber.onError(ex);
+                        return;
+                    }
+                    if (n < 0) {
+                        eof = true;
+                    } else if (n > 0) {
+                        ready.add(ByteBuffer.wrap(chunk, 0, n));
+                    }
+                    continue;
+                }
+                return;   // read-ahead is full and nobody wants a chunk: wait for request()
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                // nothing to tell anyone
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package net.jstreams.streams;
+
+import jdk.jfr.EventType;
+
+/*
+JDK Flight Recorder version of CoalescingEvents, loaded reflectively by the core library.
+Enabled checks go through the EventType, so a disabled event costs one flag read and no allocation.
+Thresholds (and stack traces) are the usual JFR settings: jdk.jfr defaults come from the annotations on the event
+classes, and can be overridden per recording, e.g. net.jstreams.FlushWait#threshold=5 ms
+*/
+class JfrCoalescingEvents extends CoalescingEvents {
+
+    private static final EventType BATCH = EventType.getEventType(ShuttleBatchEvent.class);
+    private static final EventType WRITER_BLOCKED = EventType.getEventType(WriterBlockedEvent.class);
+    private static final EventType FLUSH_WAIT = EventType.getEventType(FlushWaitEvent.class);
+
+    @Override
+    Object batchBegin() {
+        if (!BATCH.isEnabled()) return null;
+        ShuttleBatchEvent event = new ShuttleBatchEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void batchEnd(Object token, String stream, long bytes, long lockWaitNanos, long writeNanos, long flushNanos,
+                  boolean failed) {
+        if (token == null) return;
+        ShuttleBatchEvent event = (ShuttleBatchEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.stream = stream;
+            event.bytes = bytes;
+            event.lockWait = lockWaitNanos;
+            event.writeTime = writeNanos;
+            event.flushTime = flushNanos;
+            event.failed = failed;
+            event.commit();
+        }
+    }
+
+    @Override
+    Object writerBlockedBegin() {
+        if (!WRITER_BLOCKED.isEnabled()) return null;
+        WriterBlockedEvent event = new WriterBlockedEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void writerBlockedEnd(Object token, String stream, long bytesRequested, long bytesBuffered) {
+        if (token == null) return;
+        WriterBlockedEvent event = (WriterBlockedEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.stream = stream;
+            event.bytesRequested = bytesRequested;
+            event.bytesBuffered = bytesBuffered;
+            event.commit();
+        }
+    }
+
+    @Override
+    Object flushWaitBegin() {
+        if (!FLUSH_WAIT.isEnabled()) return null;
+        FlushWaitEvent event = new FlushWaitEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void flushWaitEnd(Object token, String stream, long bytesWaitedFor) {
+        if (token == null) return;
+        FlushWaitEvent event = (FlushWaitEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.stream = stream;
+            event.bytesWaitedFor = bytesWaitedFor;
+            event.commit();
+        }
+    }
+}
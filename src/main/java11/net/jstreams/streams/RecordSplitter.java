@@ -0,0 +1,337 @@
+package net.jstreams.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+Cuts input into large chunks that end on record boundaries, and hands the records out as a parallel Stream, so
+parsing can use every core while reading stays sequential (or, for a positioned source, is split too). Each record
+is a ByteBuffer slice of its chunk's array - no copy, and no decoding: parse the bytes, or decode only what you need.
+Chunks are freshly allocated and never reused, so a record may be kept after the stream has moved on.
+
+Record formats:
+1. Lines: records end at '\n', which is not part of the record (nor is a '\r' before it). A last line without a
+   '\n' is still a record.
+2. Frames: a 4-byte big-endian length (as DataOutputStream.writeInt writes it), then that many bytes; the record is
+   the payload. A stream that ends inside a frame is an error.
+
+Over an InputStream, the stream's spliterator reads one chunk per split: each split hands a chunk's worth of records
+to another thread, and the partial record at the end of a chunk is carried into the next. Over a PositionedReadable
+(lines only), the byte range itself is split in halves down to the chunk size, and each part finds its first line
+start on its own: a line belongs to the part it starts in, so parts read a little past their end to finish their
+last line. Frames cannot be split that way - a position in the middle of the data says nothing about where a frame
+starts.
+
+A record longer than chunkSize gets a chunk of its own, as big as it needs. Read errors are thrown as
+UncheckedIOException. Closing the returned Stream closes the InputStream.
+*/
+public final class RecordSplitter {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private RecordSplitter() {
+    }
+
+    public static Stream<ByteBuffer> lines(InputStream in) {
+        return lines(in, DEFAULT_CHUNK_SIZE);
+    }
+
+    public static Stream<ByteBuffer> lines(InputStream in, int chunkSize) {
+        return open(in, new ChunkSpliterator(in, chunkSize, false));
+    }
+
+    public static Stream<ByteBuffer> frames(InputStream in) {
+        return frames(in, DEFAULT_CHUNK_SIZE);
+    }
+
+    public static Stream<ByteBuffer> frames(InputStream in, int chunkSize) {
+        return open(in, new ChunkSpliterator(in, chunkSize, true));
+    }
+
+    // lines of the first length bytes of src
+    public static Stream<ByteBuffer> lines(PositionedReadable src, long length, int chunkSize) {
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunk size must be positive");
+        if (length < 0) throw new IllegalArgumentException("length cannot be negative");
+        return StreamSupport.stream(new RangeSpliterator(src, length, 0, length, chunkSize), true);
+    }
+
+    private static Stream<ByteBuffer> open(final InputStream in, Spliterator<ByteBuffer> spliterator) {
+        return StreamSupport.stream(spliterator, true).onClose(new Runnable() {
+            public void run() {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        });
+    }
+
+    // the line starting at off, ending at the '\n' at nl (or at the end of the data if there is none)
+    private static ByteBuffer line(byte[] b, int off, int nl) {
+        int end = (nl > off && b[nl - 1] == '\r') ? nl - 1 : nl;
+        return ByteBuffer.wrap(b, off, end - off).slice();
+    }
+
+    private static int indexOf(byte[] b, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == value) return i;
+        }
+        return -1;
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    /*
+    Reads the InputStream a chunk at a time. trySplit() returns the next chunk's records as a spliterator of their own
+    (a prefix, as an ORDERED spliterator must); tryAdvance() walks a chunk on this thread.
+    */
+    private static final class ChunkSpliterator implements Spliterator<ByteBuffer> {
+        private final InputStream in;
+        private final int chunkSize;
+        private final boolean frames;
+        private byte[] carry = new byte[0];   // partial record left over from the last chunk
+        private int carryLength = 0;
+        private boolean eof = false;
+        private ByteBuffer[] current = null;
+        private int currentIndex = 0;
+
+        ChunkSpliterator(InputStream in, int chunkSize, boolean frames) {
+            if (chunkSize <= 0) throw new IllegalArgumentException("chunk size must be positive");
+            this.in = in;
+            this.chunkSize = chunkSize;
+            this.frames = frames;
+        }
+
+        // the records of the next chunk, or null at the end of the input
+        private ByteBuffer[] nextChunk() {
+            List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+            int need = chunkSize;
+            while (records.isEmpty()) {
+                if (eof && carryLength == 0) return null;
+                byte[] b = new byte[Math.max(need, carryLength + 1)];
+                System.arraycopy(carry, 0, b, 0, carryLength);
+                int n = fill(b, carryLength);
+                int used = frames ? cutFrames(b, n, records) : cutLines(b, n, records);
+                if (records.isEmpty()) {
+                    // one record bigger than the buffer: read it into a bigger one
+                    need = frames ? frameLength(b, n) : b.length * 2;
+                }
+                // a copy: the records are slices of b, and must not be written over
+                carry = Arrays.copyOfRange(b, used, n);
+                carryLength = n - used;
+            }
+            return records.toArray(new ByteBuffer[records.size()]);
+        }
+
+        private int fill(byte[] b, int n) {
+            try {
+                while (n < b.length && !eof) {
+                    int r = in.read(b, n, b.length - n);
+                    if (r < 0) {
+                        eof = true;
+                    } else {
+                        n += r;
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return n;
+        }
+
+        // adds the complete lines in b[0, n) to records; returns the bytes used
+        private int cutLines(byte[] b, int n, List<ByteBuffer> records) {
+            int start = 0;
+            int nl;
+            while ((nl = indexOf(b, start, n, (byte) '\n')) >= 0) {
+                records.add(line(b, start, nl));
+                start = nl + 1;
+            }
+            if (eof && start < n) {
+                records.add(line(b, start, n));
+                start = n;
+            }
+            return start;
+        }
+
+        private int cutFrames(byte[] b, int n, List<ByteBuffer> records) {
+            int start = 0;
+            while (n - start >= 4) {
+                int len = readInt(b, start);
+                if (len < 0) throw new UncheckedIOException(new IOException("Invalid frame length " + len));
+                if (n - start - 4 < len) break;
+                records.add(ByteBuffer.wrap(b, start + 4, len).slice());
+                start += 4 + len;
+            }
+            if (eof && start < n) {
+                throw new UncheckedIOException(new IOException("Input ends inside a frame (" + (n - start) + " bytes)"));
+            }
+            return start;
+        }
+
+        // buffer size needed for the frame at the start of b, whose header may not be complete yet
+        private int frameLength(byte[] b, int n) {
+            if (n < 4) return b.length;
+            long len = 4L + readInt(b, 0);
+            if (len > Integer.MAX_VALUE - 8) throw new UncheckedIOException(new IOException("Frame too large: " + len));
+            return (int) len;
+        }
+
+        public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+            if (current == null || currentIndex == current.length) {
+                current = nextChunk();
+                currentIndex = 0;
+                if (current == null) return false;
+            }
+            action.accept(current[currentIndex++]);
+            return true;
+        }
+
+        public Spliterator<ByteBuffer> trySplit() {
+            ByteBuffer[] chunk;
+            if (current != null && currentIndex < current.length) {
+                // hand out what is left of the chunk being walked, which comes first
+                chunk = new ByteBuffer[current.length - currentIndex];
+                System.arraycopy(current, currentIndex, chunk, 0, chunk.length);
+                current = null;
+            } else {
+                chunk = nextChunk();
+                if (chunk == null) return null;
+            }
+            return Spliterators.spliterator(chunk, ORDERED | NONNULL);
+        }
+
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+
+    /*
+    The lines starting in [start, end) of a positioned source. Splits in halves until a part is no bigger than a
+    chunk; traversal reads chunk-sized windows.
+    */
+    private static final class RangeSpliterator implements Spliterator<ByteBuffer> {
+        private final PositionedReadable src;
+        private final long length;
+        private final int chunkSize;
+        private long start;     // before traversal: start of the range; during: the next line start
+        private final long end;
+        private boolean aligned = false;
+        private ByteBuffer[] current = null;
+        private int currentIndex = 0;
+
+        RangeSpliterator(PositionedReadable src, long length, long start, long end, int chunkSize) {
+            this.src = src;
+            this.length = length;
+            this.start = start;
+            this.end = end;
+            this.chunkSize = chunkSize;
+        }
+
+        private int read(long position, byte[] b, int n) {
+            int total = 0;
+            try {
+                while (total < n) {
+                    int r = src.read(position + total, b, total, n - total);
+                    if (r < 0) break;
+                    total += r;
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return total;
+        }
+
+        // moves start to the first line that starts at or after it
+        private void align() {
+            aligned = true;
+            if (start == 0) return;
+            long pos = start - 1;   // a line starts at start if the byte before it is a '\n'
+            byte[] b = new byte[Math.min(chunkSize, 64 * 1024)];
+            while (pos < length) {
+                int n = read(pos, b, (int) Math.min(b.length, length - pos));
+                if (n <= 0) break;
+                int nl = indexOf(b, 0, n, (byte) '\n');
+                if (nl >= 0) {
+                    start = pos + nl + 1;
+                    return;
+                }
+                pos += n;
+            }
+            start = length;
+        }
+
+        // the next window's lines, or null when no more lines start in the range
+        private ByteBuffer[] nextWindow() {
+            if (!aligned) align();
+            if (start >= end || start >= length) return null;
+            int size = chunkSize;
+            while (true) {
+                int want = (int) Math.min(size, length - start);
+                byte[] b = new byte[want];
+                int n = read(start, b, want);
+                boolean atEnd = start + n >= length;
+                List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+                int off = 0;
+                int nl;
+                while (start + off < end && (nl = indexOf(b, off, n, (byte) '\n')) >= 0) {
+                    records.add(line(b, off, nl));
+                    off = nl + 1;
+                }
+                if (atEnd && start + off < end && off < n) {
+                    records.add(line(b, off, n));
+                    off = n;
+                }
+                if (!records.isEmpty() || atEnd) {
+                    start += off;
+                    if (records.isEmpty()) return null;
+                    return records.toArray(new ByteBuffer[records.size()]);
+                }
+                size = (int) Math.min((long) size * 2, Integer.MAX_VALUE - 8);   // a line longer than the window
+            }
+        }
+
+        public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+            if (current == null || currentIndex == current.length) {
+                current = nextWindow();
+                currentIndex = 0;
+                if (current == null) return false;
+            }
+            action.accept(current[currentIndex++]);
+            return true;
+        }
+
+        public Spliterator<ByteBuffer> trySplit() {
+            if (aligned || end - start <= chunkSize) return null;   // too small, or already being walked
+            long mid = start + (end - start) / 2;
+            Spliterator<ByteBuffer> prefix = new RangeSpliterator(src, length, start, mid, chunkSize);
+            start = mid;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return Math.max(0, end - start);   // bytes, not lines
+        }
+
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package net.jstreams.streams;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("net.jstreams.ShuttleBatch")
+@Label("Shuttle Batch")
+@Category({"jStreams", "Coalescing"})
+@Description("One batch written and flushed to the underlying stream by a CoalescingOutputStream shuttle")
+@StackTrace(false) // always the shuttle thread
+class ShuttleBatchEvent extends Event {
+
+    @Label("Stream")
+    String stream;
+
+    @Label("Batch Size")
+    @DataAmount
+    long bytes;
+
+    @Label("Lock Wait")
+    @Description("Time the shuttle waited for the lock shared with writers before taking the batch")
+    @Timespan
+    long lockWait;
+
+    @Label("Write Time")
+    @Timespan
+    long writeTime;
+
+    @Label("Flush Time")
+    @Timespan
+    long flushTime;
+
+    @Label("Failed")
+    boolean failed;
+}
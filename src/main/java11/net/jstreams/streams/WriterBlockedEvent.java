@@ -0,0 +1,29 @@
+package net.jstreams.streams;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+@Name("net.jstreams.WriterBlocked")
+@Label("Writer Blocked")
+@Category({"jStreams", "Coalescing"})
+@Description("A write to a CoalescingOutputStream waiting because the ring is full")
+@Threshold("1 ms")
+class WriterBlockedEvent extends Event {
+
+    @Label("Stream")
+    String stream;
+
+    @Label("Bytes Requested")
+    @DataAmount
+    long bytesRequested;
+
+    @Label("Bytes Buffered")
+    @Description("Bytes in the ring, not yet taken by the shuttle, when the writer started waiting")
+    @DataAmount
+    long bytesBuffered;
+}
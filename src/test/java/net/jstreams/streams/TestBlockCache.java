@@ -0,0 +1,247 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestBlockCache {
+
+    private static class CountingBackend implements PositionedReadable {
+        final PositionedReadable data;
+        final AtomicInteger reads = new AtomicInteger();
+        final long delayMillis;
+
+        CountingBackend(PositionedReadable data, long delayMillis) {
+            this.data = data;
+            this.delayMillis = delayMillis;
+        }
+
+        public int read(long position, byte[] b, int off, int len) throws IOException {
+            reads.incrementAndGet();
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+            return data.read(position, b, off, len);
+        }
+    }
+
+    private static void checkRandomReads(EvictionPolicy policy, boolean direct) throws IOException {
+        long length = 3 * 1000 * 1000 + 17;
+        RandomMemoryInputStream data = new RandomMemoryInputStream(length);
+        BlockCache cache = new BlockCache(64 * 1024, 8, policy, direct);
+        CachingInputStream in = new CachingInputStream(data, cache);
+        Random r = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            long pos = (i % 3 == 0) ? length - r.nextInt(200 * 1024) : (long) r.nextInt((int) length);
+            int len = r.nextInt(200 * 1024);
+            byte[] expected = new byte[len];
+            byte[] got = new byte[len];
+            int m = data.read(pos, expected, 0, len);
+            int n = in.read(pos, got, 0, len);
+            assertEquals(m, n);
+            assertArrayEquals(expected, got);
+        }
+        in.seek(length - 10);
+        byte[] tail = new byte[100];
+        assertEquals(10, in.read(tail));
+        assertEquals(-1, in.read(tail));
+        assertTrue(cache.getEvictionCount() > 0);
+        assertTrue(cache.getHitCount() > 0);
+    }
+
+    @Test
+    public void readsMatchBackendForEveryPolicy() throws IOException {
+        checkRandomReads(new LruEvictionPolicy(), false);
+        checkRandomReads(new ClockEvictionPolicy(), false);
+        checkRandomReads(new TinyLfuEvictionPolicy(), false);
+        checkRandomReads(new LruEvictionPolicy(), true);
+    }
+
+    @Test
+    public void concurrentMissesLoadOnce() throws Exception {
+        final CountingBackend backend = new CountingBackend(new RandomMemoryInputStream(1 << 20), 50);
+        final BlockCache cache = new BlockCache(64 * 1024, 4);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[16];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        CachingInputStream in = new CachingInputStream(backend, cache, "file");
+                        byte[] b = new byte[100];
+                        start.await();
+                        assertEquals(100, in.read(1000, b, 0, 100));
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread t : threads) t.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        assertEquals(1, backend.reads.get());
+        assertEquals(1, cache.getLoadCount());
+        assertEquals(16, cache.getHitCount() + cache.getMissCount());
+    }
+
+    @Test
+    public void evictionCounts() throws IOException {
+        CountingBackend backend = new CountingBackend(new RandomMemoryInputStream(1 << 20), 0);
+        BlockCache cache = new BlockCache(1024, 4);
+        CachingInputStream in = new CachingInputStream(backend, cache);
+        byte[] b = new byte[10];
+        for (int block = 0; block < 10; block++) in.read(block * 1024L, b, 0, 10);
+        assertEquals(10, cache.getMissCount());
+        assertEquals(6, cache.getEvictionCount());
+        assertEquals(4, cache.getCachedBlockCount());
+        for (int block = 6; block < 10; block++) in.read(block * 1024L + 100, b, 0, 10);
+        assertEquals(4, cache.getHitCount());
+        assertEquals(10, backend.reads.get());
+
+        cache.invalidate(backend);
+        assertEquals(0, cache.getCachedBlockCount());
+    }
+
+    // every byte of the file is the current version; the test bumps it to "change the file"
+    private static class VersionedBackend implements PositionedReadable {
+        volatile byte version = 1;
+        volatile CountDownLatch readStarted = null;   // if set, reads signal it, then wait for proceed
+        volatile CountDownLatch proceed = null;
+
+        public int read(long position, byte[] b, int off, int len) throws IOException {
+            byte v = version;
+            CountDownLatch started = readStarted;
+            if (started != null) {
+                started.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+            if (position >= 4096) return -1;
+            int n = (int) Math.min(len, 4096 - position);
+            java.util.Arrays.fill(b, off, off + n, v);
+            return n;
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void invalidateDropsBlocksThatAreBeingRead() throws Exception {
+        final VersionedBackend backend = new VersionedBackend();
+        final BlockCache cache = new BlockCache(4096, 4);
+        final java.util.concurrent.atomic.AtomicBoolean stop = new java.util.concurrent.atomic.AtomicBoolean();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                public void run() {
+                    byte[] b = new byte[4096];
+                    try {
+                        while (!stop.get()) cache.read(backend, backend, 0, b, 0, b.length);   // keeps it pinned
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        try {
+            byte[] b = new byte[4096];
+            for (int round = 0; round < 500; round++) {
+                backend.version++;
+                cache.invalidate(backend);
+                assertEquals(4096, cache.read(backend, backend, 0, b, 0, b.length));
+                assertEquals("stale block after invalidate, round " + round, backend.version, b[0]);
+                assertEquals(backend.version, b[4095]);
+            }
+        } finally {
+            stop.set(true);
+            for (Thread t : readers) t.join();
+        }
+        // every slot came back: four other blocks still fit without evicting anything
+        long evictions = cache.getEvictionCount();
+        cache.invalidate(backend);
+        for (int i = 0; i < 4; i++) cache.read("other" + i, backend, 0, new byte[10], 0, 10);
+        assertEquals(evictions, cache.getEvictionCount());
+    }
+
+    @Test(timeout = 60000)
+    public void invalidateDuringALoadDoesNotCacheTheOldContents() throws Exception {
+        final VersionedBackend backend = new VersionedBackend();
+        final BlockCache cache = new BlockCache(4096, 4);
+        backend.readStarted = new CountDownLatch(1);
+        backend.proceed = new CountDownLatch(1);
+        final byte[] first = new byte[10];
+        Thread loader = new Thread() {
+            public void run() {
+                try {
+                    cache.read(backend, backend, 0, first, 0, first.length);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        loader.start();
+        backend.readStarted.await();      // the load has read version 1 and is in flight
+        backend.readStarted = null;
+        backend.version = 2;
+        cache.invalidate(backend);
+        backend.proceed.countDown();
+        loader.join();
+        assertEquals(1, first[0]);        // it started before the invalidate
+
+        byte[] b = new byte[10];
+        cache.read(backend, backend, 0, b, 0, b.length);
+        assertEquals(2, b[0]);
+    }
+
+    // footer and index blocks read over and over, interleaved with a long scan of blocks read once
+    private static int footerMissesDuringScan(EvictionPolicy policy) throws IOException {
+        BlockCache cache = new BlockCache(1024, 16, policy, false);
+        // a fixed file key: the default, the backend itself, hashes differently every run, and so would the sketch
+        CachingInputStream in = new CachingInputStream(new RandomMemoryInputStream(1 << 24), cache, "file-1");
+        byte[] b = new byte[10];
+        long footer = (1 << 24) - 8 * 1024;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 8; i++) in.read(footer + i * 1024L, b, 0, 10);
+        }
+        long missesBefore = cache.getMissCount();
+        int footerMisses = 0;
+        for (int scan = 0; scan < 2000; scan++) {
+            in.read(scan * 1024L, b, 0, 10);
+            if (scan % 100 == 0) {
+                for (int i = 0; i < 8; i++) {
+                    long m = cache.getMissCount();
+                    in.read(footer + i * 1024L, b, 0, 10);
+                    if (cache.getMissCount() > m) footerMisses++;
+                }
+            }
+        }
+        assertTrue(cache.getMissCount() > missesBefore);
+        return footerMisses;
+    }
+
+    @Test
+    public void tinyLfuResistsScans() throws IOException {
+        int lru = footerMissesDuringScan(new LruEvictionPolicy());
+        int tinyLfu = footerMissesDuringScan(new TinyLfuEvictionPolicy());
+        assertTrue("LRU footer misses " + lru, lru > 140);   // the scan flushes the footer out between visits
+        assertTrue("TinyLFU footer misses " + tinyLfu, tinyLfu < lru / 4);
+    }
+}
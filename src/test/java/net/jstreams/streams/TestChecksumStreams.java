@@ -0,0 +1,158 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestChecksumStreams {
+
+    @Test
+    public void crc32cKnownValue() throws Exception {
+        byte[] check = "123456789".getBytes("US-ASCII");
+        Checksum portable = new Crc32c();
+        portable.update(check, 0, check.length);
+        assertEquals(0xE3069283L, portable.getValue());
+
+        Checksum jdk = Checksums.newCrc32c();
+        jdk.update(check, 0, check.length);
+        assertEquals(0xE3069283L, jdk.getValue());
+    }
+
+    @Test
+    public void crc32cMatchesAtAllLengthsAndOffsets() {
+        byte[] data = TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(1000);
+        for (int off = 0; off < 9; off++) {
+            for (int len = 0; len < 100; len++) {
+                Checksum bytewise = new Crc32c();
+                for (int i = off; i < off + len; i++) bytewise.update(data[i]);
+                Checksum sliced = new Crc32c();
+                sliced.update(data, off, len);
+                assertEquals(bytewise.getValue(), sliced.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void wholeStreamVerification() throws Exception {
+        byte[] data = TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(1000 * 1000);
+        long expected = checksumOf(Checksums.newCrc32c(), data);
+
+        readAll(new ChecksumInputStream(new ByteArrayInputStream(data), Checksums.newCrc32c(), expected));
+        AsyncDigester digester = new AsyncDigester(Checksums.newCrc32c());
+        readAll(new ChecksumInputStream(new ByteArrayInputStream(data), digester, expected));
+        digester.close();
+
+        byte[] corrupt = data.clone();
+        corrupt[123456] ^= 1;
+        expectMismatch(new ChecksumInputStream(new ByteArrayInputStream(corrupt), Checksums.newCrc32c(), expected));
+        digester = new AsyncDigester(Checksums.newCrc32c());
+        expectMismatch(new ChecksumInputStream(new ByteArrayInputStream(corrupt), digester, expected));
+        digester.close();
+    }
+
+    @Test
+    public void perBlockVerification() throws Exception {
+        int blockSize = 64 * 1024;
+        byte[] data = TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(10 * blockSize + 777);
+
+        ChecksumOutputStream out = new ChecksumOutputStream(new ByteArrayOutputStream(), Checksums.newCrc32c(),
+                blockSize);
+        out.write(data);
+        out.close();
+        long[] blocks = out.getBlockChecksums();
+        assertEquals(11, blocks.length);
+
+        AsyncDigester outDigester = new AsyncDigester(Checksums.newCrc32c());
+        ChecksumOutputStream asyncOut = new ChecksumOutputStream(new ByteArrayOutputStream(), outDigester, blockSize);
+        for (int off = 0; off < data.length; off += 1000) {
+            asyncOut.write(data, off, Math.min(1000, data.length - off));
+        }
+        asyncOut.close();
+        assertArrayEquals(blocks, asyncOut.getBlockChecksums());
+        outDigester.close();
+
+        readAll(new ChecksumInputStream(new ByteArrayInputStream(data), Checksums.newCrc32c(), blockSize, blocks));
+        AsyncDigester digester = new AsyncDigester(Checksums.newCrc32c());
+        readAll(new ChecksumInputStream(new ByteArrayInputStream(data), digester, blockSize, blocks));
+        digester.close();
+
+        byte[] corrupt = data.clone();
+        corrupt[5 * blockSize + 10] ^= 1;
+        expectMismatch(new ChecksumInputStream(new ByteArrayInputStream(corrupt), Checksums.newCrc32c(), blockSize,
+                blocks));
+        digester = new AsyncDigester(Checksums.newCrc32c());
+        expectMismatch(new ChecksumInputStream(new ByteArrayInputStream(corrupt), digester, blockSize, blocks));
+        digester.close();
+
+        byte[] truncated = Arrays.copyOf(data, 9 * blockSize);
+        expectMismatch(new ChecksumInputStream(new ByteArrayInputStream(truncated), Checksums.newCrc32c(), blockSize,
+                blocks));
+    }
+
+    @Test
+    public void severalDigestsInOnePass() throws Exception {
+        byte[] data = TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(3 * 1000 * 1000);
+        AsyncDigester digester = new AsyncDigester(64 * 1024, 4,
+                new Checksum[] {Checksums.newCrc32c(), new CRC32()},
+                new MessageDigest[] {MessageDigest.getInstance("SHA-256")});
+        long expected = checksumOf(Checksums.newCrc32c(), data);
+        readAll(new ChecksumInputStream(new ByteArrayInputStream(data), digester, expected));
+        digester.drain();
+
+        assertEquals(checksumOf(new CRC32(), data), digester.getChecksum(1).getValue());
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), digester.getDigest(0).digest());
+        digester.close();
+    }
+
+    @Test
+    public void asyncCrc32OutputStream() throws Exception {
+        byte[] data = TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(1000 * 1000);
+        Crc32OutputStream inline = new Crc32OutputStream(new NullOutputStream());
+        Crc32OutputStream async = new Crc32OutputStream(new NullOutputStream(), true);
+        for (int off = 0; off < data.length; off += 333) {
+            inline.write(data, off, Math.min(333, data.length - off));
+            async.write(data, off, Math.min(333, data.length - off));
+        }
+        async.write(7);
+        inline.write(7);
+        assertEquals(inline.getCrc32(), async.getCrc32());
+        async.close();
+        assertEquals(inline.getCrc32(), async.getCrc32());
+    }
+
+    private static long checksumOf(Checksum c, byte[] data) {
+        c.update(data, 0, data.length);
+        return c.getValue();
+    }
+
+    private static void readAll(InputStream in) throws IOException {
+        byte[] buf = new byte[7919];
+        while (in.read(buf) >= 0) {
+            // keep reading
+        }
+        in.close();
+    }
+
+    private static void expectMismatch(InputStream in) {
+        try {
+            readAll(in);
+            fail("corruption not detected");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("checksum mismatch")
+                    || ex.getMessage().contains("ended early"));
+        }
+    }
+}
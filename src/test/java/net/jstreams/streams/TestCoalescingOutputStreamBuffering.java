@@ -0,0 +1,153 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCoalescingOutputStreamBuffering {
+
+    @Test
+    public void noBufferBeforeFirstWrite() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(16384);
+        CoalescingOutputStream cos = new CoalescingOutputStream(bos);
+
+        assertEquals(0, cos.getBufferCapacity());
+        cos.write(100);
+        assertEquals(CoalescingOptions.DEFAULT_INITIAL_BUFFER_SIZE, cos.getBufferCapacity());
+        cos.close();
+        assertEquals(0, cos.getBufferCapacity());
+    }
+
+    @Test
+    public void bufferGrowsUnderBacklogUpToMax() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(16384);
+        DelayOutputStream dos = new DelayOutputStream(bos, 0, 50, 0); // slow flushes build up a backlog
+        CoalescingOptions options = new CoalescingOptions()
+                .setInitialBufferSize(1024)
+                .setMaxBufferSize(16 * 1024);
+        CoalescingOutputStream cos = new CoalescingOutputStream(dos, options);
+
+        byte[] contents = TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(256 * 1024);
+        long maxCapacity = 0;
+        for (int off = 0; off < contents.length; off += 512) {
+            cos.write(contents, off, 512);
+            maxCapacity = Math.max(maxCapacity, cos.getBufferCapacity());
+        }
+        cos.close();
+
+        assertTrue("buffer did not grow", maxCapacity > 1024);
+        assertTrue("buffer grew beyond max", maxCapacity <= 16 * 1024);
+        assertTrue("arrays dont match", Arrays.equals(bos.toByteArray(), contents));
+    }
+
+    @Test
+    public void bigWriteSplitAtMaxBufferSize() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(16384);
+        CoalescingOptions options = new CoalescingOptions()
+                .setInitialBufferSize(4 * 1024)
+                .setMaxBufferSize(64 * 1024);
+        CoalescingOutputStream cos = new CoalescingOutputStream(bos, options);
+
+        byte[] contents = TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(1000 * 1000);
+        cos.write(contents);
+        assertEquals(64 * 1024, cos.getBufferCapacity());
+        cos.close();
+
+        assertTrue("arrays dont match", Arrays.equals(bos.toByteArray(), contents));
+    }
+
+    @Test(timeout = 60000)
+    public void ringGrowsPastMaxBufferSizeWhenAllowed() throws Exception {
+        final java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        final java.util.concurrent.CountDownLatch firstBatch = new java.util.concurrent.CountDownLatch(1);
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final int[] largestWrite = {0};
+        CoalescingOptions options = new CoalescingOptions()
+                .setInitialBufferSize(4096)
+                .setMaxBufferSize(16 * 1024)
+                .setMaxRingSize(1024 * 1024);
+        CoalescingOutputStream cos = new CoalescingOutputStream(new java.io.OutputStream() {
+            public void write(int b) {
+                bos.write(b);
+            }
+
+            public void write(byte[] b, int off, int len) {
+                largestWrite[0] = Math.max(largestWrite[0], len);
+                bos.write(b, off, len);
+                firstBatch.countDown();
+            }
+
+            public void flush() throws IOException {
+                try {
+                    release.await();       // the backend hangs until released
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+        }, options);
+
+        byte[] contents = TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(1000 * 1000);
+        cos.write(contents, 0, 1000);
+        firstBatch.await();
+        for (int off = 1000; off < contents.length; off += 1000) cos.write(contents, off, 1000);
+        // the first batch is stuck in the backend, and the rest is in the ring, well past the max buffer size
+        assertEquals(1024 * 1024, cos.getBufferCapacity());
+        release.countDown();
+        cos.close();
+
+        assertTrue("backlog was not written from the ring", largestWrite[0] > 16 * 1024);
+        assertTrue("arrays dont match", Arrays.equals(bos.toByteArray(), contents));
+    }
+
+    @Test
+    public void idleBufferIsReleased() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(16384);
+        CoalescingOptions options = new CoalescingOptions().setIdleReleaseMillis(50);
+        CoalescingOutputStream cos = new CoalescingOutputStream(bos, options);
+
+        byte[] contents = TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(10000);
+        cos.write(contents, 0, 5000);
+        cos.flush();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cos.getBufferCapacity() != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, cos.getBufferCapacity());
+
+        cos.write(contents, 5000, 5000);  // ring comes back on the next write
+        assertTrue(cos.getBufferCapacity() > 0);
+        cos.close();
+
+        assertTrue("arrays dont match", Arrays.equals(bos.toByteArray(), contents));
+    }
+
+    @Test(timeout = 60000)
+    public void tryWriteGivesUpInsteadOfWaiting() throws Exception {
+        final java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        CoalescingOutputStream cos = new CoalescingOutputStream(new DelayOutputStream(bos, 0) {
+            @Override
+            public void flush() throws IOException {
+                try {
+                    release.await();       // the backend hangs until released
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+        }, new CoalescingOptions().setInitialBufferSize(4096).setMaxBufferSize(16 * 1024));
+        byte[] b = new byte[1000];
+        int accepted = 0;
+        while (cos.tryWrite(b, 0, b.length)) accepted++;
+        // the ring is full, and the first batch is stuck in the backend
+        assertTrue(accepted >= 16 && accepted <= 32);
+        release.countDown();
+        cos.close();
+        assertEquals(accepted * 1000, bos.size());
+    }
+}
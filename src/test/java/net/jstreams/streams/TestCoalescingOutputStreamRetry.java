@@ -0,0 +1,158 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestCoalescingOutputStreamRetry {
+
+    // fails every failEvery-th write, after letting half of it through
+    private static class FlakyOutputStream extends OutputStream {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final int failEvery;
+        final boolean partial;
+        int writes = 0;
+
+        FlakyOutputStream(int failEvery, boolean partial) {
+            this.failEvery = failEvery;
+            this.partial = partial;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (failEvery > 0 && ++writes % failEvery == 0) {
+                if (partial) data.write(b, off, len / 2);
+                throw new IOException("backend blip");
+            }
+            data.write(b, off, len);
+        }
+
+        synchronized void truncate(long length) {
+            byte[] kept = Arrays.copyOf(data.toByteArray(), (int) length);
+            data.reset();
+            data.write(kept, 0, kept.length);
+        }
+    }
+
+    private static byte[] writeInPieces(OutputStream out, int total) throws IOException {
+        byte[] content = TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(total);
+        for (int off = 0; off < total; off += 1000) {
+            out.write(content, off, Math.min(1000, total - off));
+            if (off % 100000 == 0) out.flush();
+        }
+        out.close();
+        return content;
+    }
+
+    @Test(timeout = 60000)
+    public void transientFailuresAreResent() throws IOException {
+        FlakyOutputStream backend = new FlakyOutputStream(7, false);
+        CoalescingOutputStream out = new CoalescingOutputStream(backend, new CoalescingOptions()
+                .setMaxBufferSize(64 * 1024).setRetryPolicy(new RetryPolicy(3, 0, 0)));
+        byte[] content = writeInPieces(out, 2 * 1000 * 1000);
+        assertTrue(out.getRetryCount() > 0);
+        assertArrayEquals(content, backend.data.toByteArray());
+    }
+
+    @Test(timeout = 60000)
+    public void batchObserverSeesResentBytesOnce() throws IOException {
+        FlakyOutputStream backend = new FlakyOutputStream(7, false);
+        final java.util.zip.CRC32 observed = new java.util.zip.CRC32();
+        CoalescingOutputStream out = new CoalescingOutputStream(backend, new CoalescingOptions()
+                .setMaxBufferSize(64 * 1024).setRetryPolicy(new RetryPolicy(3, 0, 0))
+                .setBatchObserver(new BatchObserver() {
+                    public void batch(byte[] b, int off, int len) {
+                        observed.update(b, off, len);
+                    }
+                }));
+        byte[] content = writeInPieces(out, 2 * 1000 * 1000);
+        assertTrue(out.getRetryCount() > 0);
+        java.util.zip.CRC32 expected = new java.util.zip.CRC32();
+        expected.update(content, 0, content.length);
+        assertEquals(expected.getValue(), observed.getValue());
+    }
+
+    @Test(timeout = 60000)
+    public void failedFlushIsRetriedWithoutResendingTheBatch() throws IOException {
+        // writes always get through, every 4th flush fails; there is no reopener to repair duplicates
+        FlakyOutputStream backend = new FlakyOutputStream(0, false) {
+            int flushes = 0;
+
+            @Override
+            public synchronized void flush() throws IOException {
+                if (++flushes % 4 == 0) throw new IOException("flush blip");
+            }
+        };
+        CoalescingOutputStream out = new CoalescingOutputStream(backend, new CoalescingOptions()
+                .setMaxBufferSize(64 * 1024).setRetryPolicy(new RetryPolicy(3, 0, 0)));
+        byte[] content = writeInPieces(out, 2 * 1000 * 1000);
+        assertTrue(out.getRetryCount() > 0);
+        assertArrayEquals(content, backend.data.toByteArray());
+    }
+
+    @Test(timeout = 60000)
+    public void reopenerRepairsPartialWrites() throws IOException {
+        final FlakyOutputStream backend = new FlakyOutputStream(5, true);
+        StreamReopener truncating = new StreamReopener() {
+            public OutputStream reopen(OutputStream failed, long persistedBytes, IOException cause) {
+                backend.truncate(persistedBytes);
+                return failed;
+            }
+        };
+        CoalescingOutputStream out = new CoalescingOutputStream(backend, new CoalescingOptions()
+                .setMaxBufferSize(64 * 1024).setRetryPolicy(new RetryPolicy(3, 0, 1)).setReopener(truncating));
+        byte[] content = writeInPieces(out, 2 * 1000 * 1000);
+        assertTrue(out.getRetryCount() > 0);
+        assertArrayEquals(content, backend.data.toByteArray());
+    }
+
+    @Test(timeout = 60000)
+    public void budgetRunsOut() throws IOException {
+        FlakyOutputStream backend = new FlakyOutputStream(1, false);  // always fails
+        RetryPolicy policy = new RetryPolicy(10, 0, 0).setRetryBudget(3);
+        CoalescingOutputStream out = new CoalescingOutputStream(backend, new CoalescingOptions()
+                .setRetryPolicy(policy));
+        out.write(new byte[1000]);
+        try {
+            out.flush();
+            fail("flush should have failed");
+        } catch (IOException ex) {
+            assertEquals("backend blip", ex.getMessage());
+        }
+        assertEquals(3, out.getRetryCount());
+        assertEquals(0, policy.getRemainingBudget());
+    }
+
+    @Test(timeout = 60000)
+    public void flushDoesNotHangWithoutRetries() throws IOException {
+        FlakyOutputStream backend = new FlakyOutputStream(1, false);
+        CoalescingOutputStream out = new CoalescingOutputStream(backend);
+        out.write(new byte[1000]);
+        try {
+            out.flush();
+            fail("flush should have failed");
+        } catch (IOException ex) {
+            assertEquals("backend blip", ex.getMessage());
+        }
+        try {
+            out.close();
+            fail("close should have failed");
+        } catch (IOException ex) {
+            assertEquals("backend blip", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package net.jstreams.streams;
+
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestCoalescingOutputStreamSpill {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // a backend in a brownout: every flush waits until the gate opens
+    private static class StalledOutputStream extends ByteArrayOutputStream {
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        @Override
+        public void flush() {
+            try {
+                gate.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static byte[] writeInPieces(CoalescingOutputStream out, byte[] content) throws IOException {
+        for (int off = 0; off < content.length; off += 1000) {
+            out.write(content, off, Math.min(1000, content.length - off));
+        }
+        return content;
+    }
+
+    @Test(timeout = 60000)
+    public void writersDoNotBlockWhileTheBackendStalls() throws IOException {
+        File dir = folder.newFolder();
+        StalledOutputStream backend = new StalledOutputStream();
+        CoalescingOutputStream out = new CoalescingOutputStream(backend, new CoalescingOptions()
+                .setInitialBufferSize(16 * 1024).setMaxBufferSize(64 * 1024).setSpillDirectory(dir));
+        byte[] content = TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(2 * 1000 * 1000);
+        writeInPieces(out, content);   // would block on the full ring without spilling
+        assertTrue(out.isSpilling());
+        assertTrue(out.getSpilledBytes() > 1000 * 1000);
+
+        backend.gate.countDown();
+        out.flush();
+        assertArrayEquals(content, backend.toByteArray());
+        assertFalse(out.isSpilling());
+        assertEquals(1, out.getSpillCount());
+        assertTrue(out.getMaxSpillDrainMillis() <= out.getSpillDrainMillis());
+
+        // back to the ring once the spill has drained
+        long spilled = out.getSpilledBytes();
+        out.write(new byte[100]);
+        out.flush();
+        assertEquals(spilled, out.getSpilledBytes());
+        out.close();
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test(timeout = 60000)
+    public void writersBlockAtTheSpillLimit() throws Exception {
+        StalledOutputStream backend = new StalledOutputStream();
+        final CoalescingOutputStream out = new CoalescingOutputStream(backend, new CoalescingOptions()
+                .setMaxBufferSize(64 * 1024).setSpillDirectory(folder.newFolder()).setSpillLimit(256 * 1024));
+        final byte[] content = TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(1000 * 1000);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch written = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    writeInPieces(out, content);
+                    written.countDown();
+                } catch (Throwable ex) {
+                    failure.set(ex);
+                }
+            }
+        };
+        writer.start();
+        assertFalse("writer should be held at the spill limit", written.await(500, TimeUnit.MILLISECONDS));
+        assertTrue(out.getSpilledBytes() <= 256 * 1024);
+
+        backend.gate.countDown();
+        writer.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        out.close();
+        assertArrayEquals(content, backend.toByteArray());
+        assertTrue(out.getSpillCount() >= 1);
+    }
+
+    @Test(timeout = 60000)
+    public void spillDrainsWithoutStagingBudget() throws IOException {
+        // the ring takes the whole pool budget, so the shuttle reads spilled batches back a piece at a time
+        SlabBufferPool pool = new SlabBufferPool(16 * 1024, 64 * 1024, true);
+        StalledOutputStream backend = new StalledOutputStream();
+        final java.util.zip.CRC32 observed = new java.util.zip.CRC32();
+        CoalescingOutputStream out = new CoalescingOutputStream(backend, new CoalescingOptions()
+                .setMaxBufferSize(64 * 1024).setBufferPool(pool).setSpillDirectory(folder.newFolder())
+                .setBatchObserver(new BatchObserver() {
+                    public void batch(byte[] b, int off, int len) {
+                        observed.update(b, off, len);
+                    }
+                }));
+        byte[] content = writeInPieces(out, TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(1000 * 1000));
+        assertTrue(out.getSpilledBytes() > 0);
+        backend.gate.countDown();
+        out.close();
+        assertArrayEquals(content, backend.toByteArray());
+        java.util.zip.CRC32 expected = new java.util.zip.CRC32();
+        expected.update(content, 0, content.length);
+        assertEquals(expected.getValue(), observed.getValue());
+    }
+
+    @Test(timeout = 60000)
+    public void spilledBatchesAreResent() throws IOException {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        // stalls until the gate opens, then fails every third batch once
+        java.io.OutputStream backend = new java.io.OutputStream() {
+            int batches = 0;
+
+            public void write(int b) {
+                throw new UnsupportedOperationException();
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    gate.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                if (++batches % 3 == 0) throw new IOException("backend blip");
+                data.write(b, off, len);
+            }
+        };
+        CoalescingOutputStream out = new CoalescingOutputStream(backend, new CoalescingOptions()
+                .setMaxBufferSize(64 * 1024).setSpillDirectory(folder.newFolder())
+                .setRetryPolicy(new RetryPolicy(3, 0, 0)));
+        byte[] content = writeInPieces(out, TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(1000 * 1000));
+        assertTrue(out.getSpilledBytes() > 0);
+        gate.countDown();
+        out.close();
+        assertTrue(out.getRetryCount() > 0);
+        assertArrayEquals(content, data.toByteArray());
+    }
+}
@@ -0,0 +1,109 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCoalescingRangeReader {
+
+    // a remote store: every read costs a round trip
+    private static class SlowBackend implements PositionedReadable {
+        final PositionedReadable data;
+        final AtomicInteger reads = new AtomicInteger();
+
+        SlowBackend(PositionedReadable data) {
+            this.data = data;
+        }
+
+        public int read(long position, byte[] b, int off, int len) throws IOException {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            return data.read(position, b, off, len);
+        }
+    }
+
+    @Test
+    public void concurrentSmallReadsAreMerged() throws Exception {
+        final long length = 4 * 1024 * 1024;
+        final RandomMemoryInputStream data = new RandomMemoryInputStream(length);
+        final SlowBackend backend = new SlowBackend(data);
+        final CoalescingRangeReader reader = new CoalescingRangeReader(backend);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread[] threads = new Thread[16];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        Random r = new Random(seed);
+                        for (int i = 0; i < 100; i++) {
+                            // column chunks: the readers go through the row groups together, each making small
+                            // reads near the start of the current one
+                            long pos = (i / 25) * (length / 4) + r.nextInt(32 * 1024);
+                            int len = 100 + r.nextInt(2000);
+                            byte[] got = new byte[len];
+                            byte[] expected = new byte[len];
+                            int n = reader.read(pos, got, 0, len);
+                            int m = data.read(pos, expected, 0, len);
+                            assertEquals(m, n);
+                            assertArrayEquals(expected, got);
+                        }
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) t.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+
+        assertEquals(1600, reader.getRequestCount());
+        assertEquals(backend.reads.get(), reader.getBackendReadCount());
+        assertTrue("backend reads " + backend.reads.get(), backend.reads.get() < 800);
+    }
+
+    @Test
+    public void readsAtTheEnd() throws IOException {
+        RandomMemoryInputStream data = new RandomMemoryInputStream(1000);
+        CoalescingRangeReader reader = new CoalescingRangeReader(data);
+        byte[] b = new byte[100];
+        assertEquals(50, reader.read(950, b, 0, 100));
+        assertEquals(-1, reader.read(1000, b, 0, 100));
+        assertEquals(-1, reader.read(5000, b, 0, 100));
+        assertEquals(0, reader.read(5000, b, 0, 0));
+    }
+
+    @Test
+    public void synchronizedStreamReadsAtPosition() throws IOException {
+        RandomMemoryInputStream data = new RandomMemoryInputStream(1 << 20);
+        SynchronizedInputStream in = new SynchronizedInputStream(data);
+        in.seek(10);
+        byte[] expected = new byte[500];
+        byte[] got = new byte[500];
+        assertEquals(500, data.read(123456, expected, 0, 500));
+        assertEquals(500, in.read(123456, got, 0, 500));
+        assertArrayEquals(expected, got);
+        assertEquals(10, in.getPos());
+
+        NullInputStream zeros = new NullInputStream(100);
+        Arrays.fill(got, (byte) 1);
+        assertEquals(100, zeros.read(0, got, 0, 500));
+        assertEquals(0, got[99]);
+        assertEquals(1, got[100]);
+    }
+}
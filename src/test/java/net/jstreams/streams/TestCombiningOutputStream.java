@@ -0,0 +1,173 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestCombiningOutputStream {
+
+    // a sink slow enough per call that writers pile up behind the combiner
+    private static class SlowSink extends ByteArrayOutputStream {
+        int calls = 0;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            calls++;
+            try {
+                Thread.sleep(0, 200000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            super.write(b, off, len);
+        }
+    }
+
+    // records: thread id, sequence number, then filler of a length that varies per record
+    private static byte[] record(int thread, int seq) {
+        int fill = (seq * 7 + thread) % 50;
+        ByteBuffer bb = ByteBuffer.allocate(12 + fill);
+        bb.putInt(thread).putInt(seq).putInt(fill);
+        for (int i = 0; i < fill; i++) bb.put((byte) thread);
+        return bb.array();
+    }
+
+    @Test
+    public void writesStayWholeAndInOrderPerThread() throws Exception {
+        final int threads = 8;
+        final int perThread = 2000;
+        SlowSink sink = new SlowSink();
+        final CombiningOutputStream out = new CombiningOutputStream(sink, 4096);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            t[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int seq = 0; seq < perThread; seq++) out.write(record(id, seq));
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            };
+            t[i].start();
+        }
+        for (Thread th : t) th.join();
+        out.close();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+
+        ByteBuffer bb = ByteBuffer.wrap(sink.toByteArray());
+        int[] next = new int[threads];
+        int records = 0;
+        while (bb.hasRemaining()) {
+            int thread = bb.getInt();
+            int seq = bb.getInt();
+            int fill = bb.getInt();
+            assertEquals("record out of order for thread " + thread, next[thread]++, seq);
+            assertEquals((seq * 7 + thread) % 50, fill);
+            for (int i = 0; i < fill; i++) assertEquals((byte) thread, bb.get());
+            records++;
+        }
+        assertEquals(threads * perThread, records);
+        assertEquals(threads * perThread, out.getRequestCount());
+        assertEquals(sink.calls, out.getUnderlyingWriteCount());
+        assertTrue("expected writes to be combined, sink saw " + sink.calls + " calls",
+                sink.calls < threads * perThread / 2);
+    }
+
+    @Test
+    public void uncontendedWritesGoStraightThrough() throws IOException {
+        SlowSink sink = new SlowSink();
+        CombiningOutputStream out = new CombiningOutputStream(sink, 16);
+        byte[] big = new byte[100];
+        out.write(1);
+        out.write(new byte[]{2, 3});
+        out.write(big, 10, 50);     // bigger than the combining buffer
+        out.flush();
+        assertEquals(3, sink.calls);
+        assertEquals(53, sink.size());
+    }
+
+    @Test
+    public void failedBatchFailsOnlyItsWriters() throws Exception {
+        final AtomicInteger failuresLeft = new AtomicInteger(1);
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputStream sink = new OutputStream() {
+            public void write(int b) {
+                throw new UnsupportedOperationException();
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (failuresLeft.getAndDecrement() > 0) throw new IOException("backend down");
+                written.write(b, off, len);
+            }
+        };
+        CombiningOutputStream out = new CombiningOutputStream(sink);
+        try {
+            out.write(new byte[]{1});
+            fail("expected the write to see the sink's failure");
+        } catch (IOException ex) {
+            assertEquals("backend down", ex.getMessage());
+        }
+        out.write(new byte[]{2});
+        assertEquals(1, written.size());
+        assertEquals(2, written.toByteArray()[0]);
+    }
+
+    @Test(timeout = 60000)
+    public void uncheckedSinkFailureReachesEveryWriterOfTheBatch() throws Exception {
+        final int threads = 8;
+        final int perThread = 500;
+        final AtomicInteger sinkCalls = new AtomicInteger();
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputStream sink = new OutputStream() {
+            public void write(int b) {
+                throw new UnsupportedOperationException();
+            }
+
+            public synchronized void write(byte[] b, int off, int len) {
+                if (sinkCalls.incrementAndGet() % 3 == 0) throw new IllegalStateException("backend bug");
+                written.write(b, off, len);
+            }
+        };
+        final CombiningOutputStream out = new CombiningOutputStream(sink, 4096);
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicReference<Throwable> unexpected = new AtomicReference<Throwable>();
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            t[i] = new Thread() {
+                public void run() {
+                    for (int n = 0; n < perThread; n++) {
+                        try {
+                            out.write(new byte[10]);
+                            succeeded.incrementAndGet();
+                        } catch (IOException ex) {
+                            if (!(ex.getCause() instanceof IllegalStateException)) unexpected.compareAndSet(null, ex);
+                            failed.incrementAndGet();
+                        } catch (Throwable ex) {
+                            unexpected.compareAndSet(null, ex);
+                        }
+                    }
+                }
+            };
+            t[i].start();
+        }
+        for (Thread th : t) th.join();   // a writer left parked on an abandoned batch would hang here
+        if (unexpected.get() != null) throw new AssertionError(unexpected.get());
+        assertEquals(threads * perThread, succeeded.get() + failed.get());
+        assertTrue(failed.get() > 0);
+        // exactly the bytes of the writes that returned normally reached the sink
+        assertEquals(succeeded.get() * 10, written.size());
+    }
+}
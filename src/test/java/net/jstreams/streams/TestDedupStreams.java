@@ -0,0 +1,144 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestDedupStreams {
+
+    // a 1MB random "file", backed up five times with small edits in between
+    private static byte[] snapshots() {
+        Random r = new Random(42);
+        byte[] file = new byte[1024 * 1024];
+        r.nextBytes(file);
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (int i = 0; i < 5; i++) {
+            all.write(file, 0, file.length);
+            byte[] edited = new byte[file.length + 100];
+            int at = r.nextInt(file.length);
+            System.arraycopy(file, 0, edited, 0, at);
+            for (int j = 0; j < 100; j++) edited[at + j] = (byte) r.nextInt();   // insert 100 bytes
+            System.arraycopy(file, at, edited, at + 100, file.length - at);
+            file = edited;
+        }
+        return all.toByteArray();
+    }
+
+    @Test
+    public void repeatedSnapshotsShrink() throws IOException {
+        byte[] data = snapshots();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DedupOutputStream out = new DedupOutputStream(bos);
+        for (int off = 0; off < data.length; off += 4000) out.write(data, off, Math.min(4000, data.length - off));
+        out.close();
+
+        // everything after the first copy should be references, except the chunks around each edit
+        assertTrue("deduplicated size " + bos.size(), bos.size() < data.length / 4);
+        assertEquals(bos.size(), out.getBytesOut());
+        assertTrue(out.getDuplicateChunkCount() > out.getChunkCount() / 2);
+        assertArrayEquals(data, readAll(new DedupInputStream(new ByteArrayInputStream(bos.toByteArray()))));
+    }
+
+    @Test
+    public void pipelinedMatchesInline() throws IOException {
+        byte[] data = snapshots();
+        ByteArrayOutputStream inline = new ByteArrayOutputStream();
+        DedupOutputStream out = new DedupOutputStream(inline, new LruFingerprintIndex(1L << 30), null);
+        out.write(data);
+        out.close();
+
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+        out = new DedupOutputStream(pipelined, new LruFingerprintIndex(1L << 30), pool);
+        Random r = new Random(7);
+        for (int off = 0; off < data.length; ) {
+            int n = Math.min(r.nextInt(20000), data.length - off);
+            out.write(data, off, n);
+            off += n;
+        }
+        out.close();
+        pool.shutdown();
+
+        // chunking is content-defined, so write sizes do not change the output
+        assertArrayEquals(inline.toByteArray(), pipelined.toByteArray());
+    }
+
+    @Test
+    public void smallLruStaysInStepWithReader() throws IOException {
+        byte[] data = snapshots();
+        long capacity = 300 * 1024;   // much less than one copy: most repeats get evicted before they recur
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DedupOutputStream out = new DedupOutputStream(bos, new LruFingerprintIndex(capacity), null, 512, 10, 8192);
+        out.write(data);
+        byte[] repeat = new byte[200 * 1024];
+        System.arraycopy(data, 0, repeat, 0, repeat.length);
+        out.write(repeat);
+        out.write(repeat);           // recent enough to be in the index
+        out.close();
+        assertTrue(out.getDuplicateChunkCount() > 0);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(data);
+        expected.write(repeat);
+        expected.write(repeat);
+        byte[] restored = readAll(new DedupInputStream(new ByteArrayInputStream(bos.toByteArray()),
+                new LruChunkStore(capacity)));
+        assertArrayEquals(expected.toByteArray(), restored);
+    }
+
+    @Test
+    public void flushAndEmptyStreams() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DedupOutputStream out = new DedupOutputStream(bos, new LruFingerprintIndex(1 << 20), null);
+        out.close();
+        assertEquals(0, readAll(new DedupInputStream(new ByteArrayInputStream(bos.toByteArray()))).length);
+
+        bos = new ByteArrayOutputStream();
+        out = new DedupOutputStream(bos, new LruFingerprintIndex(1 << 20), null);
+        out.write("hello".getBytes("US-ASCII"));
+        out.flush();
+        int flushed = bos.size();
+        assertTrue(flushed > 5);
+        out.write(" world".getBytes("US-ASCII"));
+        out.close();
+        assertEquals("hello world",
+                new String(readAll(new DedupInputStream(new ByteArrayInputStream(bos.toByteArray()))), "US-ASCII"));
+    }
+
+    @Test
+    public void unknownReferenceIsAnError() throws IOException {
+        byte[] data = snapshots();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DedupOutputStream out = new DedupOutputStream(bos, new LruFingerprintIndex(1L << 30), null);
+        out.write(data);
+        out.close();
+        try {
+            // a reader that remembers far less than the writer assumed
+            readAll(new DedupInputStream(new ByteArrayInputStream(bos.toByteArray()), new LruChunkStore(1024)));
+            fail("expected an unresolvable reference");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("unresolvable chunk reference"));
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[7919];
+        int n;
+        while ((n = in.read(buf)) >= 0) bos.write(buf, 0, n);
+        in.close();
+        return bos.toByteArray();
+    }
+}
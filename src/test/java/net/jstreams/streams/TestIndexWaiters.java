@@ -0,0 +1,139 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestIndexWaiters {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final IndexWaiters waiters = new IndexWaiters(lock);
+    private volatile long index = 0;
+
+    private Thread waitFor(final long target, final AtomicInteger done, final AtomicReference<Throwable> failure) {
+        Thread t = new Thread() {
+            public void run() {
+                lock.lock();
+                try {
+                    IndexWaiters.Waiter w = waiters.newWaiter(target);
+                    while (index < target) waiters.await(w);
+                    waiters.remove(w);
+                    done.incrementAndGet();
+                } catch (Throwable ex) {
+                    failure.compareAndSet(null, ex);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    private void awaitQueued(int n) throws InterruptedException {
+        while (true) {
+            lock.lock();
+            try {
+                if (waiters.size() == n) return;
+            } finally {
+                lock.unlock();
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void advanceTo(long newIndex) {
+        lock.lock();
+        try {
+            index = newIndex;
+            waiters.wakeUpTo(newIndex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void wakesOnlyTheWaitersThatAreSatisfied() throws Exception {
+        AtomicInteger done = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[50];
+        for (int i = 0; i < threads.length; i++) threads[i] = waitFor((i + 1) * 10, done, failure);
+        awaitQueued(50);
+
+        advanceTo(105);          // targets 10..100
+        awaitQueued(40);
+        while (done.get() < 10) Thread.sleep(1);
+        assertEquals(10, waiters.getWakeupCount());
+
+        advanceTo(109);          // nobody's target
+        assertEquals(10, waiters.getWakeupCount());
+
+        advanceTo(500);
+        for (Thread t : threads) t.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        assertEquals(50, done.get());
+        assertEquals(50, waiters.getWakeupCount());  // each waiter woken exactly once
+        assertEquals(0, waiters.size());
+    }
+
+    @Test(timeout = 30000)
+    public void wakeAllIgnoresTargets() throws Exception {
+        final CountDownLatch woken = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            final long target = 1000 * (i + 1);
+            new Thread() {
+                public void run() {
+                    lock.lock();
+                    try {
+                        waiters.await(waiters.newWaiter(target));
+                    } finally {
+                        lock.unlock();
+                    }
+                    woken.countDown();
+                }
+            }.start();
+        }
+        awaitQueued(3);
+        lock.lock();
+        try {
+            assertEquals(3, waiters.wakeAll());
+        } finally {
+            lock.unlock();
+        }
+        woken.await();
+    }
+
+    // many threads flushing a stream at once, each needing a different index
+    @Test(timeout = 60000)
+    public void concurrentFlushesAllComplete() throws Exception {
+        final CoalescingOutputStream out = new CoalescingOutputStream(new DelayOutputStream(new ByteArrayOutputStream(),
+                1));
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[64];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20; i++) {
+                            out.write(new byte[100]);
+                            out.flush();
+                        }
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) t.join();
+        out.close();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+    }
+}
@@ -0,0 +1,123 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestParallelRangeCopier {
+
+    // high-latency storage: each read waits, and returns at most 64K
+    private static class RemoteSource implements PositionedReadable {
+        final PositionedReadable data;
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        volatile long failAt = -1;
+
+        RemoteSource(PositionedReadable data) {
+            this.data = data;
+        }
+
+        public int read(long position, byte[] b, int off, int len) throws IOException {
+            int now = concurrent.incrementAndGet();
+            while (true) {
+                int max = maxConcurrent.get();
+                if (now <= max || maxConcurrent.compareAndSet(max, now)) break;
+            }
+            try {
+                Thread.sleep(2);
+                if (failAt >= position && failAt < position + len) throw new IOException("connection reset");
+                return data.read(position, b, off, Math.min(len, 64 * 1024));
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+    }
+
+    private static byte[] expected(PositionedReadable data, long offset, int length) throws IOException {
+        byte[] b = new byte[length];
+        int n = 0;
+        while (n < length) {
+            int r = data.read(offset + n, b, n, length - n);
+            if (r < 0) break;
+            n += r;
+        }
+        return (n == length) ? b : java.util.Arrays.copyOf(b, n);
+    }
+
+    @Test
+    public void copiesInOrderWithBoundedInFlight() throws IOException {
+        int length = 6 * 1000 * 1000 + 123;
+        RandomMemoryInputStream data = new RandomMemoryInputStream(length);
+        RemoteSource source = new RemoteSource(data);
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        ParallelRangeCopier copier = new ParallelRangeCopier(pool, 256 * 1024, 2 * 1024 * 1024);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        CoalescingOutputStream sink = new CoalescingOutputStream(bos);
+        CRC32 crc = new CRC32();
+        final long[] lastProgress = {0};
+        long copied = copier.copy(source, 0, -1, sink, crc, new ParallelRangeCopier.ProgressListener() {
+            public void progress(long bytesCopied, long totalBytes) {
+                assertEquals(-1, totalBytes);
+                assertTrue(bytesCopied > lastProgress[0]);
+                lastProgress[0] = bytesCopied;
+            }
+        });
+        sink.close();
+        pool.shutdown();
+
+        assertEquals(length, copied);
+        assertEquals(length, lastProgress[0]);
+        byte[] content = expected(data, 0, length);
+        assertArrayEquals(content, bos.toByteArray());
+        CRC32 direct = new CRC32();
+        direct.update(content, 0, content.length);
+        assertEquals(direct.getValue(), crc.getValue());
+        assertTrue(source.maxConcurrent.get() > 1);
+        assertTrue(source.maxConcurrent.get() <= 8);   // 2MB in flight / 256K ranges
+    }
+
+    @Test
+    public void copiesAPartialRange() throws IOException {
+        RandomMemoryInputStream data = new RandomMemoryInputStream(1 << 20);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        ParallelRangeCopier copier = new ParallelRangeCopier(pool, 10000, 40000);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        assertEquals(123456, copier.copy(data, 1000, 123456, bos, null, null));
+        assertArrayEquals(expected(data, 1000, 123456), bos.toByteArray());
+
+        bos.reset();   // asking for more than there is
+        assertEquals((1 << 20) - 5000, copier.copy(data, 5000, 1 << 20, bos, null, null));
+        pool.shutdown();
+    }
+
+    @Test
+    public void readFailureFailsTheCopy() throws IOException {
+        RemoteSource source = new RemoteSource(new RandomMemoryInputStream(4 << 20));
+        source.failAt = 3 << 20;
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        ParallelRangeCopier copier = new ParallelRangeCopier(pool, 256 * 1024, 1 << 20);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            copier.copy(source, bos);
+            fail("copy should have failed");
+        } catch (IOException ex) {
+            assertEquals("connection reset", ex.getCause().getMessage());
+        }
+        assertEquals(3 << 20, bos.size());   // everything before the failed range made it, in order
+        pool.shutdown();
+    }
+}
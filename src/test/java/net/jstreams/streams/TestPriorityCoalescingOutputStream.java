@@ -0,0 +1,113 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestPriorityCoalescingOutputStream {
+
+    // every flush takes a while, like a backend round trip
+    private static class SlowFlushOutputStream extends ByteArrayOutputStream {
+        @Override
+        public void flush() {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final int BULK_RECORD = 1000;
+    private static final int PRIORITY_RECORD = 16;
+
+    private static byte[] record(byte tag, int seq, int size) {
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        bb.put(tag).putInt(seq);
+        return bb.array();
+    }
+
+    @Test(timeout = 60000)
+    public void priorityRecordsDoNotWaitForBulk() throws Exception {
+        SlowFlushOutputStream backend = new SlowFlushOutputStream();
+        final PriorityCoalescingOutputStream out = new PriorityCoalescingOutputStream(backend,
+                new CoalescingOptions().setMaxBufferSize(256 * 1024),
+                new CoalescingOptions().setMaxBufferSize(4096));
+        final int bulkRecords = 20000;   // ~20MB at 20ms a batch: seconds of backlog
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread bulkWriter = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < bulkRecords; i++) out.write(record((byte) 'B', i, BULK_RECORD));
+                } catch (Throwable ex) {
+                    failure.set(ex);
+                }
+            }
+        };
+        bulkWriter.start();
+        Thread.sleep(200);   // let the bulk ring fill up
+
+        int priorityRecords = 20;
+        long worstNanos = 0;
+        for (int i = 0; i < priorityRecords; i++) {
+            long start = System.nanoTime();
+            byte[] r = record((byte) 'P', i, PRIORITY_RECORD);
+            out.write(PriorityCoalescingOutputStream.Lane.PRIORITY, r, 0, r.length);
+            out.flush(PriorityCoalescingOutputStream.Lane.PRIORITY);
+            worstNanos = Math.max(worstNanos, System.nanoTime() - start);
+        }
+        assertTrue("bulk should still be backed up", bulkWriter.isAlive());
+        // a priority flush waits for at most the bulk batch in flight, then its own: two 20ms flushes, plus slack
+        assertTrue("priority flush took " + TimeUnit.NANOSECONDS.toMillis(worstNanos) + "ms",
+                worstNanos < TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(out.getBulkYieldCount() > 0);
+
+        bulkWriter.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        out.close();
+
+        // every record whole, and each lane in its own order
+        ByteBuffer bb = ByteBuffer.wrap(backend.toByteArray());
+        int nextBulk = 0, nextPriority = 0;
+        while (bb.hasRemaining()) {
+            int start = bb.position();
+            byte tag = bb.get();
+            int seq = bb.getInt();
+            if (tag == 'B') {
+                assertEquals(nextBulk++, seq);
+                bb.position(start + BULK_RECORD);
+            } else {
+                assertEquals('P', tag);
+                assertEquals(nextPriority++, seq);
+                bb.position(start + PRIORITY_RECORD);
+            }
+        }
+        assertEquals(bulkRecords, nextBulk);
+        assertEquals(priorityRecords, nextPriority);
+        assertEquals(priorityRecords, out.getPriorityBatchCount());
+    }
+
+    @Test
+    public void underlyingStreamClosedWithTheLastLane() throws IOException {
+        final boolean[] closed = new boolean[1];
+        PriorityCoalescingOutputStream out = new PriorityCoalescingOutputStream(new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        });
+        out.write(new byte[10]);
+        out.lane(PriorityCoalescingOutputStream.Lane.PRIORITY).close();
+        assertTrue(!closed[0]);
+        out.close();
+        assertTrue(closed[0]);
+    }
+}
@@ -0,0 +1,168 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestRingBuffer {
+
+    // positions past the int range, where an int cast anywhere on the way to the slot would go wrong
+    private static final long[] FAR_POSITIONS = {
+            0, (1L << 31) - 100, 1L << 31, (1L << 32) - 7, 1L << 32, (1L << 40) + 12345, Long.MAX_VALUE - (1L << 20)
+    };
+
+    private static void roundTrip(RingBuffer ring, long position, int length, Random random) throws IOException {
+        byte[] content = new byte[length];
+        random.nextBytes(content);
+        ring.put(position, content, 0, length);
+
+        byte[] read = new byte[length];
+        ring.get(position, read, 0, length);
+        assertArrayEquals("get at " + position, content, read);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ring.writeTo(out, position, length, new byte[1000]);
+        assertArrayEquals("writeTo at " + position, content, out.toByteArray());
+    }
+
+    @Test
+    public void farPositionsMapLikeNearOnes() throws IOException {
+        Random random = new Random(1);
+        RingBuffer[] rings = {
+                new RingBuffer(64 * 1024),                            // power of two: masks
+                new RingBuffer(100 * 1000),                           // not: divisions
+                new RingBuffer(new ByteBuffer[] {ByteBuffer.allocateDirect(4096), ByteBuffer.allocateDirect(4096),
+                        ByteBuffer.allocateDirect(4096)})             // off-heap, three segments
+        };
+        for (RingBuffer ring : rings) {
+            for (long position : FAR_POSITIONS) {
+                roundTrip(ring, position, 5000, random);             // crosses segments, and wraps on the smaller rings
+                roundTrip(ring, position + ring.capacity() - 10, 20, random);
+            }
+        }
+    }
+
+    @Test
+    public void samePhysicalSlotAtAnyLap() {
+        RingBuffer ring = new RingBuffer(100 * 1000);
+        byte[] content = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+        long position = 100000L * 90000 + 99996;   // 90000 laps in, wrapping the ring
+        ring.put(position, content, 0, content.length);
+        byte[] read = new byte[content.length];
+        ring.get(99996, read, 0, read.length);
+        assertArrayEquals(content, read);
+    }
+
+    @Test
+    public void ringBiggerThanAnArray() throws IOException {
+        // an 8GB ring, made of one 1MB buffer aliased as every segment: any run up to a segment still round trips
+        ByteBuffer shared = ByteBuffer.allocate(1 << 20);
+        ByteBuffer[] segments = new ByteBuffer[8192];
+        Arrays.fill(segments, shared);
+        RingBuffer ring = new RingBuffer(segments);
+        assertEquals(8L << 30, ring.capacity());
+
+        Random random = new Random(2);
+        for (long position : FAR_POSITIONS) {
+            roundTrip(ring, position, 300 * 1000, random);
+        }
+        roundTrip(ring, ring.capacity() - 1000, 2000, random);        // across the end of the ring
+        roundTrip(ring, (5L << 30) - 500, 1000, random);              // across a segment past 4G
+    }
+
+    @Test
+    public void farPositionsLandInTheRightSegment() {
+        // an 8GB ring of 64K segments, cycling through 257 distinct buffers: an aliased ring would round trip even
+        // with a wrong segment index, this one puts the bytes in a different buffer unless the index is right
+        int segmentSize = 64 * 1024;
+        ByteBuffer[] distinct = new ByteBuffer[257];
+        for (int i = 0; i < distinct.length; i++) distinct[i] = ByteBuffer.allocate(segmentSize);
+        ByteBuffer[] segments = new ByteBuffer[1 << 17];
+        for (int i = 0; i < segments.length; i++) segments[i] = distinct[i % distinct.length];
+        RingBuffer ring = new RingBuffer(segments);
+        assertEquals(8L << 30, ring.capacity());
+
+        Random random = new Random(4);
+        for (long position : FAR_POSITIONS) {
+            position -= position % 16;   // keep the marker within one segment
+            byte[] marker = new byte[16];
+            random.nextBytes(marker);
+            ring.put(position, marker, 0, marker.length);
+
+            long physical = position % ring.capacity();
+            ByteBuffer expected = ring.segments()[(int) (physical / segmentSize)];
+            byte[] found = new byte[marker.length];
+            System.arraycopy(expected.array(), (int) (physical % segmentSize), found, 0, found.length);
+            assertArrayEquals("segment for " + position, marker, found);
+        }
+    }
+
+    @Test
+    public void allocateSizesTheRing() {
+        RingBuffer ring = RingBuffer.allocate(3000, false);
+        assertEquals(1, ring.segments().length);
+        assertEquals(3000, ring.capacity());
+        try {
+            RingBuffer.allocate(0, false);
+        } catch (IllegalArgumentException ex) {
+            return;
+        }
+        throw new AssertionError("expected a bad capacity error");
+    }
+
+    /*
+    Pushes more than 2^31 bytes through a small ring that may grow past the max buffer size, checking the bytes with
+    a CRC. Set jstreams.stress.bytes to push more, e.g. -Djstreams.stress.bytes=1099511627776 for a terabyte.
+    */
+    @Test(timeout = 30 * 60 * 1000)
+    public void streamPastTwoGigabytes() throws IOException {
+        long total = Long.getLong("jstreams.stress.bytes", (1L << 31) + (1 << 20));
+        byte[] pattern = new byte[64 * 1024 + 4093];
+        new Random(3).nextBytes(pattern);
+
+        final CRC32 received = new CRC32();
+        final long[] receivedBytes = {0};
+        OutputStream sink = new OutputStream() {
+            public void write(int b) {
+                received.update(b);
+                receivedBytes[0]++;
+            }
+
+            public void write(byte[] b, int off, int len) {
+                received.update(b, off, len);
+                receivedBytes[0] += len;
+            }
+        };
+        CoalescingOptions options = new CoalescingOptions()
+                .setInitialBufferSize(64 * 1024)
+                .setMaxBufferSize(64 * 1024)
+                .setMaxRingSize(1 << 20);
+        CoalescingOutputStream cos = new CoalescingOutputStream(sink, options);
+
+        CRC32 sent = new CRC32();
+        long written = 0;
+        int offset = 0;
+        while (written < total) {
+            int len = (int) Math.min(total - written, 1 + (written % (60 * 1024)));
+            if (offset + len > pattern.length) offset = 0;
+            cos.write(pattern, offset, len);
+            sent.update(pattern, offset, len);
+            written += len;
+            offset += 4093;
+        }
+        cos.close();
+
+        assertEquals(total, receivedBytes[0]);
+        assertEquals(sent.getValue(), received.getValue());
+    }
+}
@@ -0,0 +1,144 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestShardedCoalescingOutputStream {
+
+    private static final int RECORD = 64;
+
+    // record: writer id, sequence number, then the writer id repeated as filler
+    private static byte[] record(int writer, int seq) {
+        ByteBuffer bb = ByteBuffer.allocate(RECORD);
+        bb.putInt(writer).putInt(seq);
+        while (bb.hasRemaining()) bb.put((byte) writer);
+        return bb.array();
+    }
+
+    private static void writeAndCheck(int lanes, final int threads, int bufferSize) throws Exception {
+        final int records = 5000;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final ShardedCoalescingOutputStream out = new ShardedCoalescingOutputStream(bos, lanes,
+                new CoalescingOptions().setMaxBufferSize(bufferSize));
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int writer = t;
+            writers[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < records; i++) {
+                            out.write(record(writer, i));
+                            if (i % 500 == 0) out.flush();
+                        }
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        for (Thread t : writers) t.join();
+        out.close();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+
+        // every record whole, and each writer's records in the order it wrote them
+        ByteBuffer data = ByteBuffer.wrap(bos.toByteArray());
+        assertEquals(threads * records * RECORD, data.remaining());
+        int[] nextSeq = new int[threads];
+        while (data.hasRemaining()) {
+            int writer = data.getInt();
+            int seq = data.getInt();
+            assertEquals(nextSeq[writer]++, seq);
+            for (int i = 8; i < RECORD; i++) assertEquals((byte) writer, data.get());
+        }
+        for (int n : nextSeq) assertEquals(records, n);
+        assertTrue(out.getBatchCount() > 0);
+    }
+
+    @Test(timeout = 120000)
+    public void recordsStayWholeAndInOrderPerThread() throws Exception {
+        writeAndCheck(4, 8, 64 * 1024);     // threads share lanes
+        writeAndCheck(16, 3, 64 * 1024);    // lanes to spare
+        writeAndCheck(4, 4, 1000);          // lanes smaller than a batch of records: writers wait for space
+    }
+
+    @Test(timeout = 60000)
+    public void flushCoversAllLanes() throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final ShardedCoalescingOutputStream out = new ShardedCoalescingOutputStream(bos, 4, new CoalescingOptions());
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int writer = t;
+            writers[t] = new Thread() {
+                public void run() {
+                    try {
+                        out.write(record(writer, 0));
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            };
+            writers[t].start();
+            writers[t].join();
+        }
+        out.flush();         // from a thread that wrote nothing itself
+        synchronized (bos) {
+            assertEquals(4 * RECORD, bos.size());
+        }
+        out.close();
+    }
+
+    @Test(timeout = 60000)
+    public void largeWritesAreSplitAtTheBufferSize() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ShardedCoalescingOutputStream out = new ShardedCoalescingOutputStream(bos, 2,
+                new CoalescingOptions().setMaxBufferSize(4096));
+        byte[] big = new byte[100 * 1000];
+        for (int i = 0; i < big.length; i++) big[i] = (byte) i;
+        out.write(big);
+        out.close();
+        assertEquals(big.length, bos.size());
+        byte[] got = bos.toByteArray();
+        for (int i = 0; i < big.length; i++) assertEquals(big[i], got[i]);
+    }
+
+    @Test(timeout = 60000)
+    public void backendErrorIsReported() throws IOException {
+        ShardedCoalescingOutputStream out = new ShardedCoalescingOutputStream(new NullOutputStream() {
+            @Override
+            public void flush() throws IOException {
+                throw new IOException("disk gone");
+            }
+        }, 2, new CoalescingOptions());
+        try {
+            out.write(new byte[10]);   // may already see the error, if the shuttle fails the batch before it returns
+            out.flush();
+            fail("write or flush should have failed");
+        } catch (IOException ex) {
+            assertEquals("disk gone", ex.getMessage());
+        }
+        try {
+            out.close();
+            fail("close should have failed");
+        } catch (IOException ex) {
+            assertEquals("disk gone", ex.getMessage());
+        }
+        out.close();     // second close is a no-op
+        try {
+            out.write(1);
+            fail("write after close should fail");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestSlabBufferPool {
+
+    @Test
+    public void budgetIsEnforced() throws Exception {
+        final SlabBufferPool pool = new SlabBufferPool(1024, 4 * 1024);
+
+        ByteBuffer[] first = pool.acquire(3);
+        assertEquals(3 * 1024, pool.getBytesInUse());
+        assertNull(pool.tryAcquire(2));
+        assertTrue(pool.tryReserve(1000));  // rounds up to the one remaining slab
+        assertEquals(4 * 1024, pool.getBytesInUse());
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                ByteBuffer[] slabs = pool.acquire(2);
+                acquired.countDown();
+                pool.release(slabs);
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);
+        assertEquals("waiter should be blocked on the budget", 1, acquired.getCount());
+        assertEquals(1, pool.getQueuedWaiters());
+
+        pool.release(first);
+        waiter.join(5000);
+        assertEquals(0, acquired.getCount());
+        pool.unreserve(1000);
+
+        assertEquals(0, pool.getBytesInUse());
+        assertEquals(4 * 1024, pool.getPeakBytesInUse());
+        assertTrue(pool.getBytesAllocated() <= pool.getBudgetBytes());
+        assertEquals(1, pool.getWaitCount());
+        assertEquals(1, pool.getRejectCount());
+    }
+
+    @Test
+    public void tryAcquireDoesNotJumpTheQueue() throws Exception {
+        final SlabBufferPool pool = new SlabBufferPool(1024, 4 * 1024);
+        ByteBuffer[] held = pool.acquire(3);
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                pool.release(pool.acquire(2));
+            }
+        });
+        waiter.start();
+        while (pool.getQueuedWaiters() == 0) Thread.sleep(5);
+
+        assertNull("one slab is free, but a waiter is queued ahead", pool.tryAcquire(1));
+        pool.release(held);
+        waiter.join(5000);
+        assertNotNull(pool.tryAcquire(1));
+    }
+
+    @Test
+    public void manyStreamsShareHeapPool() throws Exception {
+        runStreamsOnPool(new SlabBufferPool(16 * 1024, 256 * 1024), 24);
+    }
+
+    @Test
+    public void manyStreamsShareDirectPool() throws Exception {
+        runStreamsOnPool(new SlabBufferPool(16 * 1024, 256 * 1024, true), 8);
+    }
+
+    private void runStreamsOnPool(final SlabBufferPool pool, int numStreams) throws Exception {
+        final int dataSize = 300 * 1000;
+        final byte[][] contents = new byte[numStreams][];
+        final ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[numStreams];
+        final Exception[] errors = new Exception[numStreams];
+        Thread[] threads = new Thread[numStreams];
+
+        for (int i = 0; i < numStreams; i++) {
+            final int n = i;
+            contents[n] = TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(dataSize);
+            outputs[n] = new ByteArrayOutputStream(dataSize);
+            threads[n] = new Thread(new Runnable() {
+                public void run() {
+                    CoalescingOptions options = new CoalescingOptions()
+                            .setBufferPool(pool)
+                            .setInitialBufferSize(16 * 1024)
+                            .setMaxBufferSize(64 * 1024)
+                            .setIdleReleaseMillis(10);
+                    try {
+                        CoalescingOutputStream cos = new CoalescingOutputStream(
+                                new DelayOutputStream(outputs[n], 0, 1, 0), options);
+                        for (int off = 0; off < dataSize; ) {
+                            int len = Math.min(dataSize - off, 1 + (off % 9000));
+                            cos.write(contents[n], off, len);
+                            off += len;
+                        }
+                        cos.close();
+                    } catch (Exception ex) {
+                        errors[n] = ex;
+                    }
+                }
+            }, "PoolWriter" + n);
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+
+        for (int i = 0; i < numStreams; i++) {
+            if (errors[i] != null) throw errors[i];
+            assertTrue("arrays dont match for stream " + i, Arrays.equals(outputs[i].toByteArray(), contents[i]));
+        }
+        assertEquals(0, pool.getBytesInUse());
+        assertTrue(pool.getPeakBytesInUse() <= pool.getBudgetBytes());
+        assertTrue(pool.getBytesAllocated() <= pool.getBudgetBytes());
+    }
+}
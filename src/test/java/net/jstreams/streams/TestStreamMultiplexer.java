@@ -0,0 +1,213 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestStreamMultiplexer {
+
+    // collects everything, counting the backend writes; each write takes a while, like a remote store
+    private static class SlowSink extends OutputStream {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final AtomicInteger writes = new AtomicInteger();
+        final long delayMillis;
+
+        SlowSink(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            writes.incrementAndGet();
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            synchronized (bos) {
+                bos.write(b, off, len);
+            }
+        }
+    }
+
+    private static class Collector implements StreamDemultiplexer.FrameHandler {
+        final Map<Integer, ByteArrayOutputStream> streams = new HashMap<Integer, ByteArrayOutputStream>();
+        final Set<Integer> ended = new HashSet<Integer>();
+
+        public void data(int id, byte[] b, int off, int len) throws IOException {
+            assertFalse(ended.contains(id));
+            ByteArrayOutputStream s = streams.get(id);
+            if (s == null) streams.put(id, s = new ByteArrayOutputStream());
+            s.write(b, off, len);
+        }
+
+        public void end(int id) {
+            assertTrue(ended.add(id));
+        }
+    }
+
+    @Test(timeout = 120000)
+    public void manyStreamsRoundTripInFewBackendWrites() throws Exception {
+        final int streams = 300;
+        final int threads = 6;
+        final int recordsPerStream = 20;
+        SlowSink sink = new SlowSink(2);
+        final StreamMultiplexer mux = new StreamMultiplexer(sink);
+        final byte[][] expected = new byte[streams][];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            writers[t] = new Thread() {
+                public void run() {
+                    try {
+                        Random r = new Random(first);
+                        Map<Integer, OutputStream> handles = new HashMap<Integer, OutputStream>();
+                        Map<Integer, ByteArrayOutputStream> copies = new HashMap<Integer, ByteArrayOutputStream>();
+                        for (int id = first; id < streams; id += threads) {
+                            handles.put(id, mux.openStream(id));
+                            copies.put(id, new ByteArrayOutputStream());
+                        }
+                        for (int i = 0; i < recordsPerStream; i++) {
+                            for (int id = first; id < streams; id += threads) {
+                                byte[] record = new byte[r.nextInt(200)];   // small, chatty records
+                                r.nextBytes(record);
+                                handles.get(id).write(record);
+                                copies.get(id).write(record);
+                            }
+                        }
+                        for (int id = first; id < streams; id += threads) {
+                            if (id % 2 == 0) handles.get(id).close();   // the odd ones are ended by mux.close()
+                            expected[id] = copies.get(id).toByteArray();
+                        }
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        for (Thread t : writers) t.join();
+        mux.close();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+
+        Collector c = new Collector();
+        StreamDemultiplexer demux = new StreamDemultiplexer(new ByteArrayInputStream(sink.bos.toByteArray()));
+        demux.run(c);
+        assertEquals(streams, c.ended.size());
+        for (int id = 0; id < streams; id++) {
+            ByteArrayOutputStream s = c.streams.get(id);
+            assertArrayEquals(expected[id], (s == null) ? new byte[0] : s.toByteArray());
+        }
+        // thousands of logical writes and hundreds of closes, but the writes to the sink follow its latency
+        assertTrue("backend writes " + sink.writes.get(), sink.writes.get() < streams * recordsPerStream / 10);
+        assertEquals(0, mux.getOpenStreamCount());
+    }
+
+    @Test(timeout = 60000)
+    public void largeWritesAreSplitIntoFrames() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        StreamMultiplexer mux = new StreamMultiplexer(bos, new CoalescingOptions()
+                .setInitialBufferSize(4096).setMaxBufferSize(8192));
+        byte[] big = new byte[100 * 1000];
+        new Random(7).nextBytes(big);
+        OutputStream a = mux.openStream(1);
+        OutputStream b = mux.openStream(2);
+        a.write(big);
+        b.write(big, 0, 10);
+        a.close();
+        mux.close();
+
+        Collector c = new Collector();
+        StreamDemultiplexer demux = new StreamDemultiplexer(new ByteArrayInputStream(bos.toByteArray()));
+        assertTrue(demux.run(c) > 100 * 1000 / 8192);
+        assertArrayEquals(big, c.streams.get(1).toByteArray());
+        assertEquals(10, c.streams.get(2).size());
+        assertEquals(2, c.ended.size());
+    }
+
+    @Test(timeout = 60000)
+    public void flushWaitsOnlyForItsOwnStream() throws Exception {
+        final CountDownLatch inSecondWrite = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        OutputStream gate = new NullOutputStream() {
+            int flushes = 0;
+
+            @Override
+            public void flush() throws IOException {
+                if (++flushes == 2) {
+                    inSecondWrite.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        throw new IOException(ex);
+                    }
+                }
+            }
+        };
+        StreamMultiplexer mux = new StreamMultiplexer(gate);
+        OutputStream a = mux.openStream(1);
+        OutputStream b = mux.openStream(2);
+        a.write(new byte[100]);
+        a.flush();                       // first batch
+        b.write(new byte[100]);          // second batch, which hangs until released
+        inSecondWrite.await();
+        a.flush();                       // must not wait for stream 2's frame
+        release.countDown();
+        b.flush();
+        mux.close();
+    }
+
+    @Test
+    public void idsAreExclusiveWhileOpen() throws IOException {
+        StreamMultiplexer mux = new StreamMultiplexer(new NullOutputStream());
+        OutputStream a = mux.openStream(5);
+        try {
+            mux.openStream(5);
+            fail("id 5 is in use");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        a.close();
+        mux.openStream(5).close();
+        mux.close();
+        try {
+            mux.openStream(6);
+            fail("multiplexer is closed");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test(expected = java.io.EOFException.class)
+    public void truncatedFrameIsAnError() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        StreamMultiplexer mux = new StreamMultiplexer(bos);
+        mux.openStream(1).write(new byte[50]);
+        mux.close();
+        byte[] data = bos.toByteArray();
+        byte[] truncated = java.util.Arrays.copyOf(data, 30);
+        new StreamDemultiplexer(new ByteArrayInputStream(truncated)).run(new Collector());
+    }
+}
@@ -0,0 +1,129 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestStreamPipeline {
+
+    private static long crc32(byte[] b) {
+        CRC32 c = new CRC32();
+        c.update(b, 0, b.length);
+        return c.getValue();
+    }
+
+    @Test(timeout = 60000)
+    public void checksumIsFusedIntoTheShuttle() throws Exception {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final PipelineOutputStream out = StreamPipeline.parse("checksum:crc32|coalesce:8K").build(sink);
+        assertEquals("coalesce[+CRC32] > sink", out.getPlan());    // no lock, no wrapper
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int seed = t;
+            writers[t] = new Thread() {
+                public void run() {
+                    try {
+                        Random r = new Random(seed);
+                        for (int i = 0; i < 2000; i++) {
+                            byte[] b = new byte[r.nextInt(300)];
+                            r.nextBytes(b);
+                            out.write(b);
+                        }
+                        out.flush();
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        for (Thread t : writers) t.join();
+        out.flush();
+        assertEquals(crc32(sink.toByteArray()), out.getChecksums().get(0).getValue());  // up to date after flush
+        out.close();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        assertEquals(crc32(sink.toByteArray()), out.getChecksums().get(0).getValue());
+    }
+
+    @Test(timeout = 60000)
+    public void fullPipelineRoundTrips() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        Checksum plain = new CRC32();
+        Checksum compressed = new CRC32();
+        PipelineOutputStream out = new StreamPipeline()
+                .checksum(plain)
+                .compress(6)
+                .checksum(compressed)
+                .coalesce(new CoalescingOptions())
+                .coalesce(new CoalescingOptions())
+                .throttle(512L * 1024 * 1024)
+                .build(sink);
+        assertEquals("lock > checksum(CRC32) > compress(6) > coalesce[+CRC32] > throttle(536870912/s) > sink",
+                out.getPlan());
+
+        byte[] data = new byte[1 << 20];
+        new SyntheticDataInputStream(data.length, new SyntheticDataOptions()
+                .setMode(SyntheticDataOptions.Mode.LOG)).read(0, data, 0, data.length);
+        for (int off = 0; off < data.length; off += 1000) out.write(data, off, Math.min(1000, data.length - off));
+        out.close();
+
+        byte[] stored = sink.toByteArray();
+        assertTrue(stored.length < data.length / 2);
+        assertEquals(crc32(data), plain.getValue());
+        assertEquals(crc32(stored), compressed.getValue());
+        InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(stored));
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) inflated.write(buf, 0, n);
+        assertArrayEquals(data, inflated.toByteArray());
+    }
+
+    @Test(timeout = 60000)
+    public void flushReachesTheSinkThroughCompression() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        PipelineOutputStream out = StreamPipeline.parse("compress|coalesce").build(sink);
+        out.write(new byte[1000]);
+        out.flush();
+        assertTrue(sink.size() > 0);
+        out.close();
+    }
+
+    @Test(timeout = 60000)
+    public void throttleHoldsTheRate() throws IOException {
+        ThrottledOutputStream out = new ThrottledOutputStream(new NullOutputStream(), 4L * 1024 * 1024);
+        long start = System.nanoTime();
+        out.write(new byte[2 * 1024 * 1024]);    // a tenth of a second goes at once, the rest is paced
+        long millis = (System.nanoTime() - start) / 1000000;
+        assertTrue("took " + millis + " ms", millis >= 350);
+        out.close();
+    }
+
+    @Test
+    public void badSpecs() {
+        for (String spec : new String[]{"gzip", "throttle", "compress:12", "checksum:md5"}) {
+            try {
+                StreamPipeline.parse(spec);
+                fail(spec + " should not parse");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+        assertEquals("sink", StreamPipeline.parse("").build(new NullOutputStream()).getPlan());
+    }
+}
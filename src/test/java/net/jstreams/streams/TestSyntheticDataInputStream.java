@@ -0,0 +1,118 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSyntheticDataInputStream {
+
+    private static byte[] readAll(SyntheticDataInputStream in, int length) throws IOException {
+        byte[] buf = new byte[length];
+        int n = 0;
+        while (n < length) {
+            int r = in.read(buf, n, Math.min(70000, length - n));   // reads that straddle blocks
+            if (r < 0) break;
+            n += r;
+        }
+        assertEquals(length, n);
+        assertEquals(-1, in.read());
+        return buf;
+    }
+
+    private static double deflateRatio(byte[] data) {
+        Deflater d = new Deflater();
+        d.setInput(data);
+        d.finish();
+        byte[] out = new byte[64 * 1024];
+        long compressed = 0;
+        while (!d.finished()) compressed += d.deflate(out);
+        d.end();
+        return (double) data.length / compressed;
+    }
+
+    @Test
+    public void binaryModeHitsTheCompressionRatio() throws IOException {
+        for (double target : new double[]{1, 1.5, 2, 4, 8, 20}) {
+            byte[] data = readAll(new SyntheticDataInputStream(4 << 20,
+                    new SyntheticDataOptions().setCompressionRatio(target)), 4 << 20);
+            double ratio = deflateRatio(data);
+            assertTrue("target " + target + " got " + ratio, Math.abs(ratio - target) / target < 0.1);
+        }
+    }
+
+    @Test
+    public void structuredModes() throws IOException {
+        byte[] text = readAll(new SyntheticDataInputStream(1 << 20,
+                new SyntheticDataOptions().setMode(SyntheticDataOptions.Mode.TEXT)), 1 << 20);
+        byte[] log = readAll(new SyntheticDataInputStream(1 << 20,
+                new SyntheticDataOptions().setMode(SyntheticDataOptions.Mode.LOG)), 1 << 20);
+        for (byte[] data : new byte[][]{text, log}) {
+            for (byte b : data) assertTrue(b == '\n' || (b >= 32 && b < 127));   // printable ASCII lines
+            assertTrue(deflateRatio(data) > 2);
+        }
+        assertTrue(new String(log, 0, 200, "US-ASCII").contains(" [worker-"));
+
+        // records are whole in every block, and a repeat block carries its pool block's ids
+        SyntheticDataOptions options = new SyntheticDataOptions().setMode(SyntheticDataOptions.Mode.RECORDS)
+                .setRecordSize(100).setDedupRatio(1.0);
+        SyntheticDataInputStream in = new SyntheticDataInputStream(1 << 20, options);
+        assertEquals(0, in.getBlockSize() % 100);
+        byte[] records = readAll(in, 1 << 20);
+        for (int r = 100; r + 100 <= in.getBlockSize(); r += 100) {
+            assertEquals(id(records, r - 100) + 1, id(records, r));
+        }
+    }
+
+    private static long id(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) v = (v << 8) | (b[off + i] & 0xFF);
+        return v;
+    }
+
+    @Test
+    public void positionalReadsMatchTheSequentialRead() throws IOException {
+        SyntheticDataOptions options = new SyntheticDataOptions().setMode(SyntheticDataOptions.Mode.LOG)
+                .setDedupRatio(0.3).setSeed(42);
+        int length = 3 * 1000 * 1000 + 7;
+        byte[] all = readAll(new SyntheticDataInputStream(length, options), length);
+        SyntheticDataInputStream in = new SyntheticDataInputStream(length, options);
+        Random r = new Random(3);
+        for (int i = 0; i < 500; i++) {
+            int pos = r.nextInt(length);
+            byte[] got = new byte[r.nextInt(150 * 1000)];
+            int n = in.read(pos, got, 0, got.length);
+            assertEquals(Math.min(got.length, length - pos), Math.max(n, 0));
+            assertArrayEquals(Arrays.copyOfRange(all, pos, pos + Math.max(n, 0)), Arrays.copyOf(got, Math.max(n, 0)));
+        }
+        in.seek(length - 5);
+        assertEquals(5, in.read(new byte[10]));
+    }
+
+    private static double dedupSavings(double dedupRatio) throws IOException {
+        SyntheticDataInputStream in = new SyntheticDataInputStream(32 << 20, new SyntheticDataOptions()
+                .setDedupRatio(dedupRatio).setBlockSize(256 * 1024).setPoolSize(8));
+        DedupOutputStream out = new DedupOutputStream(new NullOutputStream());
+        byte[] buf = new byte[1 << 20];
+        int n;
+        while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+        out.close();
+        return 1 - (double) out.getBytesOut() / out.getBytesIn();
+    }
+
+    @Test(timeout = 120000)
+    public void repeatedBlocksDeduplicate() throws IOException {
+        assertTrue(dedupSavings(0) < 0.01);          // stamped blocks are unique even though they share a pool
+        double half = dedupSavings(0.5);             // less the chunks that straddle a repeat and a unique block
+        assertTrue("saved " + half, half > 0.35 && half < 0.5);
+        double all = dedupSavings(1.0);
+        assertTrue("saved " + all, all > 0.85);
+    }
+}
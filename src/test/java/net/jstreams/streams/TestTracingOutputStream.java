@@ -0,0 +1,122 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestTracingOutputStream {
+
+    @Test
+    public void traceRecordsEveryCallButNoBytes() throws Exception {
+        final int threads = 4;
+        final int perThread = 5000;   // enough to go through the trace buffer several times
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteArrayOutputStream traceBytes = new ByteArrayOutputStream();
+        final TracingOutputStream out = new TracingOutputStream(new SynchronizedOutputStream(data), traceBytes);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            t[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int n = 0; n < perThread; n++) {
+                            out.write(new byte[id * 100 + n % 10]);
+                            if (n % 100 == 99) out.flush();
+                        }
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            };
+            t[i].start();
+        }
+        for (Thread th : t) th.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        out.close();
+
+        TraceReader trace = new TraceReader(new ByteArrayInputStream(traceBytes.toByteArray()));
+        long[] writes = new long[threads];
+        long[] flushes = new long[threads];
+        long[] bytes = new long[threads];
+        int closes = 0;
+        long lastTime = 0;
+        while (trace.next()) {
+            assertTrue(trace.getTimeNanos() >= lastTime);
+            lastTime = trace.getTimeNanos();
+            if (trace.getKind() == TraceReader.Kind.CLOSE) {
+                closes++;
+                continue;
+            }
+            int thread = trace.getThread();
+            assertTrue(thread < threads);   // only the writers write and flush; the closing thread comes after them
+            if (trace.getKind() == TraceReader.Kind.WRITE) {
+                writes[thread]++;
+                bytes[thread] += trace.getSize();
+            } else {
+                flushes[thread]++;
+            }
+        }
+        assertEquals(1, closes);
+        long totalBytes = 0;
+        for (int i = 0; i < threads; i++) {
+            assertEquals(perThread, writes[i]);
+            assertEquals(perThread / 100, flushes[i]);
+            totalBytes += bytes[i];
+        }
+        assertEquals(data.size(), totalBytes);
+        assertEquals(threads * (perThread + perThread / 100) + 1, out.getEventCount());
+        // the trace is a few bytes per call, not the data
+        assertTrue(traceBytes.size() < threads * perThread * 8);
+    }
+
+    @Test
+    public void failingTraceSinkDoesNotFailTheStream() throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        OutputStream brokenSink = new OutputStream() {
+            public void write(int b) throws IOException {
+                throw new IOException("trace disk full");
+            }
+        };
+        TracingOutputStream out = new TracingOutputStream(data, brokenSink);
+        byte[] b = {1, 2, 3};
+        for (int i = 0; i < 100000; i++) out.write(b);
+        out.close();
+        assertEquals(300000, data.size());
+        assertNotNull(out.getTraceError());
+    }
+
+    @Test
+    public void rejectsWhatIsNotATrace() {
+        try {
+            new TraceReader(new ByteArrayInputStream("hello".getBytes()));
+            fail("expected a bad magic error");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void varlongsRoundTrip() throws IOException {
+        long[] values = {0, 1, 127, 128, 1L << 35, Long.MAX_VALUE};
+        byte[] buf = new byte[values.length * Varint.MAX_LONG_LENGTH];
+        int n = 0;
+        for (long v : values) n += Varint.putLong(buf, n, v);
+        ByteArrayInputStream in = new ByteArrayInputStream(buf, 0, n);
+        long[] read = new long[values.length];
+        for (int i = 0; i < values.length; i++) read[i] = Varint.readLong(in);
+        assertArrayEquals(values, read);
+        assertEquals(-1, Varint.readLong(in));
+    }
+}
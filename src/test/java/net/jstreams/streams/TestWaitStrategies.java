@@ -0,0 +1,106 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestWaitStrategies {
+
+    // several writers with frequent flushes, through a small ring so writers also wait for space
+    private static void writeFlushAndCheck(WaitStrategy waitStrategy) throws Exception {
+        final int threads = 4;
+        final int writes = 2000;
+        final int size = 500;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final CoalescingOutputStream out = new CoalescingOutputStream(bos, new CoalescingOptions()
+                .setInitialBufferSize(4096).setMaxBufferSize(8192).setWaitStrategy(waitStrategy));
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final byte value = (byte) t;
+            writers[t] = new Thread() {
+                public void run() {
+                    try {
+                        byte[] b = new byte[size];
+                        java.util.Arrays.fill(b, value);
+                        for (int i = 0; i < writes; i++) {
+                            out.write(b);
+                            if (i % 10 == 0) out.flush();
+                        }
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        for (Thread t : writers) t.join();
+        out.close();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+
+        // every write arrives whole, and each writer's bytes are all there
+        byte[] data = bos.toByteArray();
+        assertEquals(threads * writes * size, data.length);
+        int[] counts = new int[threads];
+        for (int off = 0; off < data.length; off += size) {
+            byte v = data[off];
+            for (int i = 1; i < size; i++) assertEquals(v, data[off + i]);
+            counts[v]++;
+        }
+        for (int c : counts) assertEquals(writes, c);
+    }
+
+    @Test(timeout = 60000)
+    public void blocking() throws Exception {
+        writeFlushAndCheck(new BlockingWaitStrategy());
+    }
+
+    @Test(timeout = 60000)
+    public void spinThenPark() throws Exception {
+        writeFlushAndCheck(new SpinThenParkWaitStrategy());
+        writeFlushAndCheck(new SpinThenParkWaitStrategy(0, 0, 3, 1000));  // park-polling only
+    }
+
+    @Test(timeout = 60000)
+    public void busySpin() throws Exception {
+        if (Runtime.getRuntime().availableProcessors() < 2) return;  // needs a core for the shuttle
+        writeFlushAndCheck(new BusySpinWaitStrategy());
+    }
+
+    @Test(timeout = 60000)
+    public void flushReturnsOnBackendErrorWhileSpinning() throws IOException {
+        // the backend fails only once write() has returned, so it is flush() that sees the error
+        final java.util.concurrent.CountDownLatch written = new java.util.concurrent.CountDownLatch(1);
+        CoalescingOutputStream out = new CoalescingOutputStream(new NullOutputStream() {
+            @Override
+            public void flush() throws IOException {
+                try {
+                    written.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+                throw new IOException("disk gone");
+            }
+        }, new CoalescingOptions().setWaitStrategy(new BusySpinWaitStrategy()));
+        out.write(new byte[10]);
+        written.countDown();
+        try {
+            out.flush();
+            fail("flush should have failed");
+        } catch (IOException ex) {
+            assertEquals("disk gone", ex.getMessage());
+        }
+        try {
+            out.close();
+            fail("close should have failed");
+        } catch (IOException ex) {
+            assertEquals("disk gone", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package net.jstreams.tools;
+
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestLatencyHistogram {
+
+    @Test
+    public void bucketsCoverValuesWithinThreePercent() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long value = (long) Math.exp(random.nextDouble() * 40);
+            int index = LatencyHistogram.indexOf(value);
+            long highest = LatencyHistogram.highestValueAt(index);
+            assertTrue(highest >= value);
+            assertTrue("bucket too wide for " + value, highest - value <= Math.max(1, value / 32));
+            if (index > 0) assertTrue(LatencyHistogram.highestValueAt(index - 1) < value);
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) h.record(i * 1000L);
+        assertEquals(10000, h.getCount());
+        assertEquals(1000, h.getMin());
+        assertEquals(10000000, h.getMax());
+        assertEquals(5000500.0, h.getMean(), 0.1);
+        assertEquals(5000000, h.getPercentile(50), 5000000 / 32);
+        assertEquals(9900000, h.getPercentile(99), 9900000 / 32);
+        assertEquals(10000000, h.getPercentile(100));
+
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(20000000);
+        h.add(other);
+        assertEquals(10001, h.getCount());
+        assertEquals(20000000, h.getMax());
+    }
+}
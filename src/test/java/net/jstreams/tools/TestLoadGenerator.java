@@ -0,0 +1,58 @@
+package net.jstreams.tools;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestLoadGenerator {
+
+    @Test
+    public void smokeRun() throws Exception {
+        // run() rethrows the first writer error, so getting a report back means no writer failed
+        LatencyReport report = new LoadGenerator(LoadGenerator.parseArgs(new String[] {
+                "--threads=2", "--duration=0.3", "--warmup=0.1", "--rate=2000", "--size=uniform:1-1000",
+                "--flush-every=50", "--write-latency=fixed:0.1", "--max-buffer=64K"})).run();
+
+        assertTrue(Long.parseLong(report.getResult("backendWrites")) > 0);
+        LatencyHistogram service = report.getHistogram("write (service)");
+        assertTrue(service.getCount() > 0);
+        assertTrue(service.getPercentile(99) >= service.getPercentile(50));
+        LatencyHistogram response = report.getHistogram("write (from intended)");
+        assertEquals(service.getCount(), response.getCount());
+        assertTrue(response.getPercentile(99) >= response.getPercentile(50));
+        assertTrue(report.getHistogram("flush").getCount() > 0);
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        report.printText(new PrintStream(text, true, "UTF-8"));
+        String printed = text.toString("UTF-8");
+        assertTrue(printed.contains("stream=coalescing"));
+        assertTrue(printed.contains("write (service)"));
+    }
+
+    @Test
+    public void shardedReportsOnlyTheOptionsItUses() throws Exception {
+        try {
+            new LoadGenerator(LoadGenerator.parseArgs(new String[] {"--stream=sharded", "--wait=spin"}));
+            fail("--wait should be rejected for the sharded stream");
+        } catch (IllegalArgumentException ex) {
+            assertEquals("--wait is only used by --stream=coalescing", ex.getMessage());
+        }
+
+        LatencyReport report = new LoadGenerator(LoadGenerator.parseArgs(new String[] {
+                "--stream=sharded", "--lanes=2", "--threads=2", "--duration=0.2", "--warmup=0",
+                "--max-buffer=64K"})).run();
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        report.printText(new PrintStream(text, true, "UTF-8"));
+        String printed = text.toString("UTF-8");
+        assertTrue(printed.contains("lanes=2"));
+        assertFalse(printed.contains("wait="));
+        assertFalse(printed.contains("maxRing="));
+    }
+}
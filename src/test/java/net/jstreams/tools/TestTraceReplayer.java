@@ -0,0 +1,102 @@
+package net.jstreams.tools;
+
+
+import net.jstreams.streams.NullOutputStream;
+import net.jstreams.streams.TracingOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTraceReplayer {
+
+    // two threads: one writing 100 bytes every 2ms, one writing 1000 bytes and flushing every 10ms
+    private static byte[] recordTrace() throws Exception {
+        ByteArrayOutputStream traceBytes = new ByteArrayOutputStream();
+        final TracingOutputStream out = new TracingOutputStream(new NullOutputStream(), traceBytes);
+        Thread a = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        out.write(new byte[100]);
+                        Thread.sleep(2);
+                    }
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        Thread b = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 10; i++) {
+                        out.write(new byte[1000]);
+                        out.flush();
+                        Thread.sleep(10);
+                    }
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        a.start();
+        b.start();
+        a.join();
+        b.join();
+        out.close();
+        return traceBytes.toByteArray();
+    }
+
+    @Test(timeout = 60000)
+    public void replaysTracedWritesWithTracedTiming() throws Exception {
+        TraceReplayer replayer = TraceReplayer.load(new ByteArrayInputStream(recordTrace()));
+        assertEquals(2, replayer.getThreadCount());
+        assertEquals(60, replayer.getWriteCount());
+        assertEquals(50 * 100 + 10 * 1000, replayer.getByteCount());
+        assertEquals(1000, replayer.getMaxWriteSize());
+        assertTrue(replayer.getDurationNanos() >= TimeUnit.MILLISECONDS.toNanos(100));
+
+        final AtomicLong written = new AtomicLong();
+        final AtomicLong flushed = new AtomicLong();
+        OutputStream sink = new OutputStream() {
+            public void write(int b) {
+                written.incrementAndGet();
+            }
+
+            public void write(byte[] b, int off, int len) {
+                written.addAndGet(len);
+            }
+
+            public void flush() {
+                flushed.incrementAndGet();
+            }
+        };
+        long start = System.nanoTime();
+        LoadWriter[] writers = replayer.writers(sink, new byte[4096], start, 2.0);
+        Thread[] threads = new Thread[writers.length];
+        for (int i = 0; i < writers.length; i++) {
+            threads[i] = new Thread(writers[i]);
+            threads[i].start();
+        }
+        for (Thread t : threads) t.join();
+        long elapsed = System.nanoTime() - start;
+
+        long writes = 0;
+        for (LoadWriter w : writers) {
+            if (w.error != null) throw w.error;
+            writes += w.writes;
+        }
+        assertEquals(60, writes);
+        assertEquals(replayer.getByteCount(), written.get());
+        assertEquals(10, flushed.get());
+        // at twice the speed: about half the traced time, and never ahead of the schedule
+        long lastEvent = (long) (replayer.getDurationNanos() / 2.0);
+        assertTrue(elapsed >= lastEvent - TimeUnit.MILLISECONDS.toNanos(15));
+    }
+}
@@ -0,0 +1,74 @@
+package net.jstreams.streams;
+
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCoalescingEvents {
+
+    @Test
+    public void jfrEventsAreUsed() {
+        assertEquals(JfrCoalescingEvents.class, CoalescingEvents.INSTANCE.getClass());
+    }
+
+    @Test
+    public void recordsBatchesStallsAndFlushWaits() throws Exception {
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("net.jstreams.ShuttleBatch");
+            recording.enable("net.jstreams.WriterBlocked").withThreshold(Duration.ZERO).withStackTrace();
+            recording.enable("net.jstreams.FlushWait").withThreshold(Duration.ofMillis(5)).withStackTrace();
+            recording.start();
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(16384);
+            DelayOutputStream dos = new DelayOutputStream(bos, 0, 20, 0);
+            CoalescingOptions options = new CoalescingOptions().setInitialBufferSize(1024).setMaxBufferSize(1024);
+            CoalescingOutputStream cos = new CoalescingOutputStream(dos, options);
+            byte[] contents = TestCoalescingOutputStreamSingleThreaded.getRandomBuffer(8 * 1024);
+            for (int off = 0; off < contents.length; off += 512) {
+                cos.write(contents, off, 512);   // ring holds two writes, so writers block on the slow shuttle
+            }
+            cos.flush();
+            cos.close();
+
+            recording.stop();
+            Path file = Files.createTempFile("coalescing", ".jfr");
+            try {
+                recording.dump(file);
+                events = RecordingFile.readAllEvents(file);
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        long batchBytes = 0;
+        int blocked = 0, flushWaits = 0;
+        for (RecordedEvent event : events) {
+            String name = event.getEventType().getName();
+            if (name.equals("net.jstreams.ShuttleBatch")) {
+                batchBytes += event.getLong("bytes");
+                assertTrue(event.getDuration().toMillis() >= 15);  // 20ms flush delay, with timer slack
+            } else if (name.equals("net.jstreams.WriterBlocked")) {
+                blocked++;
+                assertEquals(512, event.getLong("bytesRequested"));
+                assertTrue(event.getStackTrace() != null);
+            } else if (name.equals("net.jstreams.FlushWait")) {
+                flushWaits++;
+            }
+        }
+        assertEquals(8 * 1024, batchBytes);
+        assertTrue("no writer stalls recorded", blocked > 0);
+        assertEquals(1, flushWaits);
+    }
+}
@@ -0,0 +1,196 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestFlowAdapters {
+
+    private static class CountingInputStream extends FilterInputStream {
+        final AtomicLong bytesRead = new AtomicLong();
+        volatile boolean closed = false;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) bytesRead.addAndGet(n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+
+    private static byte[] data(int length) throws IOException {
+        byte[] b = new byte[length];
+        new SyntheticDataInputStream(length).read(0, b, 0, length);
+        return b;
+    }
+
+    @Test(timeout = 60000)
+    public void publisherToSubscriberRoundTrips() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            byte[] content = data(8 * 1000 * 1000 + 3);
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            CoalescingSubscriber subscriber = new CoalescingSubscriber(new DelayOutputStream(sink, 1),
+                    new CoalescingOptions().setInitialBufferSize(16 * 1024).setMaxBufferSize(256 * 1024), 8);
+            new InputStreamPublisher(new java.io.ByteArrayInputStream(content), executor, 10000, 4)
+                    .subscribe(subscriber);
+            assertEquals(content.length, (long) subscriber.getCompletion().get(30, TimeUnit.SECONDS));
+            assertArrayEquals(content, sink.toByteArray());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void demandFollowsRingSpace() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch release = new CountDownLatch(1);
+        OutputStream stuck = new NullOutputStream() {
+            @Override
+            public void flush() throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+        };
+        try {
+            CountingInputStream source = new CountingInputStream(new SyntheticDataInputStream(100L << 20));
+            CoalescingSubscriber subscriber = new CoalescingSubscriber(stuck,
+                    new CoalescingOptions().setInitialBufferSize(64 * 1024).setMaxBufferSize(64 * 1024), 4);
+            new InputStreamPublisher(source, executor, 8192, 2).subscribe(subscriber);
+            Thread.sleep(500);
+            // the ring, the subscriber's outstanding buffers, the publisher's read-ahead - and nothing more
+            long read = source.bytesRead.get();
+            assertTrue("read " + read, read > 0 && read <= 64 * 1024 * 2 + (4 + 2 + 1) * 8192);
+            Thread.sleep(200);
+            assertEquals(read, source.bytesRead.get());   // stalled, without a thread blocked on it
+            release.countDown();
+            assertEquals(100L << 20, (long) subscriber.getCompletion().get(30, TimeUnit.SECONDS));
+            assertTrue(source.closed);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void fullRingWithRetryPolicyKeepsGoing() throws Exception {
+        // with retries the ring frees a batch only once it is persisted; the subscriber must still see that space
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            byte[] content = data(64 * 3000);
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            CoalescingSubscriber subscriber = new CoalescingSubscriber(sink, new CoalescingOptions()
+                    .setMaxBufferSize(4096).setMaxRingSize(4096).setRetryPolicy(new RetryPolicy(3, 1, 1)), 4);
+            new InputStreamPublisher(new java.io.ByteArrayInputStream(content), executor, 3000, 2)
+                    .subscribe(subscriber);
+            assertEquals(content.length, (long) subscriber.getCompletion().get(30, TimeUnit.SECONDS));
+            assertArrayEquals(content, sink.toByteArray());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void sinkErrorCancelsUpstream() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CountingInputStream source = new CountingInputStream(new SyntheticDataInputStream(100L << 20));
+            CoalescingSubscriber subscriber = new CoalescingSubscriber(new NullOutputStream() {
+                @Override
+                public void flush() throws IOException {
+                    throw new IOException("disk gone");
+                }
+            }, new CoalescingOptions(), 4);
+            new InputStreamPublisher(source, executor).subscribe(subscriber);
+            try {
+                subscriber.getCompletion().get(30, TimeUnit.SECONDS);
+                fail("should have failed");
+            } catch (ExecutionException ex) {
+                assertEquals("disk gone", ex.getCause().getMessage());
+            }
+            for (int i = 0; i < 100 && !source.closed; i++) Thread.sleep(10);
+            assertTrue(source.closed);
+            assertTrue(source.bytesRead.get() < (100L << 20));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void publisherFollowsTheSpec() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            InputStreamPublisher publisher = new InputStreamPublisher(new SyntheticDataInputStream(1000), executor);
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            final CountDownLatch done = new CountDownLatch(1);
+            publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+                public void onSubscribe(Flow.Subscription s) {
+                    s.request(0);     // not allowed (rule 3.9)
+                }
+
+                public void onNext(ByteBuffer item) {
+                    fail("no demand was signalled");
+                }
+
+                public void onError(Throwable t) {
+                    error.set(t);
+                    done.countDown();
+                }
+
+                public void onComplete() {
+                    done.countDown();
+                }
+            });
+            done.await();
+            assertTrue(error.get() instanceof IllegalArgumentException);
+
+            final AtomicReference<Throwable> second = new AtomicReference<Throwable>();
+            publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+                public void onSubscribe(Flow.Subscription s) {}
+
+                public void onNext(ByteBuffer item) {}
+
+                public void onError(Throwable t) {
+                    second.set(t);
+                }
+
+                public void onComplete() {}
+            });
+            assertTrue(second.get() instanceof IllegalStateException);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package net.jstreams.streams;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestRecordSplitter {
+
+    private static final Pattern LINE = Pattern.compile("This is line ([0-9]+) of the file.");
+
+    // InputValidator's format, in shuffled-length lines so chunk edges land everywhere
+    private static byte[] lines(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append("This is line ").append(i).append(" of the file.");
+            sb.append(i % 3 == 0 ? "\r\n" : "\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String str(ByteBuffer b) {
+        return StandardCharsets.UTF_8.decode(b.duplicate()).toString();
+    }
+
+    // parses every line in parallel and checks each line number shows up once, in order
+    private static void checkLines(Stream<ByteBuffer> records, int n) {
+        List<Integer> numbers = records.map(b -> {
+            Matcher m = LINE.matcher(str(b));
+            if (!m.matches()) throw new AssertionError("bad line: " + str(b));
+            return Integer.parseInt(m.group(1));
+        }).collect(Collectors.toList());
+        assertEquals(n, numbers.size());
+        for (int i = 0; i < n; i++) assertEquals(i, (int) numbers.get(i));
+    }
+
+    @Test
+    public void linesFromInputStream() {
+        for (int chunk : new int[]{7, 100, 4096, 1 << 20}) {
+            checkLines(RecordSplitter.lines(new ByteArrayInputStream(lines(20000)), chunk), 20000);
+        }
+    }
+
+    @Test
+    public void linesFromPositionedSource() {
+        final byte[] data = lines(20000);
+        PositionedReadable src = (position, b, off, len) -> {
+            if (position >= data.length) return -1;
+            int n = (int) Math.min(len, data.length - position);
+            System.arraycopy(data, (int) position, b, off, n);
+            return n;
+        };
+        for (int chunk : new int[]{7, 100, 4096, 1 << 20}) {
+            checkLines(RecordSplitter.lines(src, data.length, chunk), 20000);
+        }
+    }
+
+    @Test
+    public void edgeLines() {
+        byte[] data = "a\n\nlong line here\r\nlast".getBytes(StandardCharsets.UTF_8);
+        List<String> got = RecordSplitter.lines(new ByteArrayInputStream(data), 4)
+                .map(TestRecordSplitter::str).collect(Collectors.toList());
+        assertEquals(List.of("a", "", "long line here", "last"), got);
+    }
+
+    @Test
+    public void frames() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        for (int i = 0; i < 5000; i++) {
+            byte[] payload = new byte[i % 300];
+            for (int j = 0; j < payload.length; j++) payload[j] = (byte) (i + j);
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+        for (int chunk : new int[]{3, 1000, 1 << 20}) {
+            List<ByteBuffer> frames = RecordSplitter.frames(new ByteArrayInputStream(bos.toByteArray()), chunk)
+                    .collect(Collectors.toList());
+            assertEquals(5000, frames.size());
+            for (int i = 0; i < 5000; i++) {
+                ByteBuffer f = frames.get(i);
+                assertEquals(i % 300, f.remaining());
+                byte[] expected = new byte[i % 300];
+                for (int j = 0; j < expected.length; j++) expected[j] = (byte) (i + j);
+                byte[] actual = new byte[f.remaining()];
+                f.duplicate().get(actual);
+                assertArrayEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void truncatedFrameIsAnError() {
+        byte[] data = {0, 0, 0, 10, 1, 2, 3};
+        try {
+            RecordSplitter.frames(new ByteArrayInputStream(data), 64).count();
+            fail("expected a truncated frame error");
+        } catch (UncheckedIOException ex) {
+            // expected
+        }
+    }
+}